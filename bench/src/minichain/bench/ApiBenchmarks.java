@@ -0,0 +1,219 @@
+package minichain.bench;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import minichain.Amount;
+import minichain.ApiServer;
+import minichain.Block;
+import minichain.BlockCodec;
+import minichain.CryptoService;
+import minichain.InMemoryMetrics;
+import minichain.MiniChain;
+import minichain.Metrics;
+import minichain.MetricsRegistry;
+import minichain.Node;
+import minichain.ProofOfWork;
+import minichain.StringUtil;
+import minichain.Transaction;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.Wallet;
+
+/**
+ * Load tests the {@link ApiServer} of a single node with a local load
+ * generator. bench.apiConnections clients (10,000 by default) each open a
+ * connection on a virtual thread of their own and send bench.apiRequests
+ * requests (10 by default) one after the other: balances of random wallets,
+ * transactions, blocks and the tip. While they run, the node mines a block
+ * every 200 ms, which clears the response cache. The test runs once with a
+ * cache of 10,000 responses and once without one, and reports the p50 and p99
+ * latency, the throughput and the cache hit rate.
+ *
+ * Client and server share the JVM, so each connection takes two file
+ * descriptors; the open file limit has to allow for that.
+ */
+public class ApiBenchmarks {
+
+	private static final ProofOfWork PROOF_OF_WORK = ProofOfWork.fixed(8);
+	private static final int CHECKPOINT_INTERVAL = 1000;
+	private static final int WALLETS = 100;
+	private static final long BLOCK_MILLIS = 200;
+
+	public static void run(Bench bench) throws Exception {
+		int connections = Integer.getInteger("bench.apiConnections", 10_000);
+		int requests = Integer.getInteger("bench.apiRequests", 10);
+
+		boolean logging = MiniChain.logging;
+		MiniChain.logging = false;
+		try {
+			for (int cacheSize : new int[] { 10_000, 0 }) {
+				String name = "api." + connections + (cacheSize == 0 ? ".uncached" : ".cached");
+				if (bench.enabled(name))
+					bench.note(name + ": " + load(cacheSize, connections, requests));
+			}
+		} finally {
+			MiniChain.logging = logging;
+		}
+	}
+
+	private static String load(int cacheSize, int connections, int requests) throws Exception {
+		// A chain whose genesis block pays every wallet, and one transfer per
+		// wallet submitted through the server
+		Wallet funder = new Wallet();
+		List<Wallet> wallets = new ArrayList<Wallet>(WALLETS);
+		for (int i = 0; i < WALLETS; i++) {
+			wallets.add(new Wallet());
+		}
+		Transaction genesisTransaction = new Transaction(funder.publicKey, funder.publicKey,
+				Amount.coins(10 * WALLETS), null);
+		genesisTransaction.generateSignature(funder.privateKey);
+		genesisTransaction.transactionId = "0";
+		UtxoSet genesisUtxos = new UtxoSet();
+		for (int i = 0; i < WALLETS; i++) {
+			TransactionOutput output = new TransactionOutput(wallets.get(i).publicKey, Amount.coins(10), "0", i);
+			genesisTransaction.outputs.add(output);
+			genesisUtxos.put(output);
+		}
+		Block genesis = new Block("0", PROOF_OF_WORK);
+		genesis.addTransaction(genesisTransaction);
+		genesis.mineBlock(PROOF_OF_WORK);
+
+		Node node = new Node("api", genesis, genesisTransaction.outputs, PROOF_OF_WORK, CHECKPOINT_INTERVAL,
+				(from, message, except) -> {
+				});
+		ApiServer server = new ApiServer(node, new InetSocketAddress("127.0.0.1", 0), cacheSize);
+		ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+		HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clients).build();
+		server.start();
+		String base = "http://127.0.0.1:" + server.getPort();
+		try {
+			BlockCodec codec = new BlockCodec();
+			for (int i = 0; i < WALLETS; i++) {
+				Transaction transfer = wallets.get(i).sendFunds(wallets.get((i + 1) % WALLETS).publicKey, Amount.COIN,
+						genesisUtxos);
+				ByteBuffer encoded = codec.encode(transfer);
+				byte[] body = new byte[encoded.remaining()];
+				encoded.get(body);
+				HttpResponse<String> response = client.send(
+						HttpRequest.newBuilder(URI.create(base + "/transactions"))
+								.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+						HttpResponse.BodyHandlers.ofString());
+				if (response.statusCode() != 202)
+					return "submission failed: " + response.body();
+			}
+			// Transactions get their ids when they are added to a block
+			List<String> blockHashes = new ArrayList<String>();
+			List<String> transactionIds = new ArrayList<String>();
+			blockHashes.add(genesis.hash);
+			for (int i = 0; i < 10; i++) {
+				Block block = node.mine(WALLETS / 10).join();
+				blockHashes.add(block.hash);
+				for (Transaction transaction : block.transactions) {
+					transactionIds.add(transaction.transactionId);
+				}
+			}
+
+			String[] paths = new String[1000];
+			Random random = new Random(42);
+			for (int i = 0; i < paths.length; i++) {
+				int kind = random.nextInt(10);
+				if (kind < 5)
+					paths[i] = "/balance/" + StringUtil.bytesToHex(
+							CryptoService.compressKey(wallets.get(random.nextInt(WALLETS)).publicKey));
+				else if (kind < 8)
+					paths[i] = "/transactions/" + transactionIds.get(random.nextInt(transactionIds.size()));
+				else if (kind < 9)
+					paths[i] = "/blocks/" + blockHashes.get(random.nextInt(blockHashes.size()));
+				else
+					paths[i] = "/tip";
+			}
+
+			// A short run to warm up both sides, then the measured one with fresh
+			// metrics
+			drive(node, client, clients, base, paths, Math.min(connections, 1000), requests);
+			MetricsRegistry saved = Metrics.registry();
+			Metrics.use(new InMemoryMetrics());
+			try {
+				return drive(node, client, clients, base, paths, connections, requests);
+			} finally {
+				Metrics.use(saved);
+			}
+		} finally {
+			server.stop();
+			node.shutdown();
+			clients.shutdown();
+		}
+	}
+
+	// Sends requests for random paths from many connections at once while the
+	// node mines blocks, and summarizes the latencies.
+	private static String drive(Node node, HttpClient client, ExecutorService clients, String base, String[] paths,
+			int connections, int requests) throws InterruptedException {
+		long[] latencies = new long[connections * requests];
+		AtomicInteger errors = new AtomicInteger();
+		CountDownLatch ready = new CountDownLatch(connections);
+		CountDownLatch done = new CountDownLatch(connections);
+		for (int c = 0; c < connections; c++) {
+			int connection = c;
+			clients.execute(() -> {
+				Random choices = new Random(connection);
+				ready.countDown();
+				try {
+					ready.await();
+					for (int r = 0; r < requests; r++) {
+						HttpRequest request = HttpRequest
+								.newBuilder(URI.create(base + paths[choices.nextInt(paths.length)])).build();
+						long start = System.nanoTime();
+						try {
+							HttpResponse<byte[]> response = client.send(request,
+									HttpResponse.BodyHandlers.ofByteArray());
+							if (response.statusCode() != 200)
+								errors.incrementAndGet();
+						} catch (Exception e) {
+							errors.incrementAndGet();
+						}
+						latencies[connection * requests + r] = System.nanoTime() - start;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+
+		ready.await();
+		long start = System.nanoTime();
+		int blocks = 0;
+		while (!done.await(BLOCK_MILLIS, TimeUnit.MILLISECONDS)) {
+			node.mine(0).join();
+			blocks++;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Arrays.sort(latencies);
+		long hits = Metrics.apiCacheHits.get();
+		long lookups = hits + Metrics.apiCacheMisses.get();
+		return String.format(
+				"%d requests, p50 %.2f ms, p99 %.2f ms, max %.1f ms, %.0f requests/s, server mean %.0f us, "
+						+ "cache hits %.0f%%, %d blocks appended, %d errors",
+				latencies.length, latencies[latencies.length / 2] / 1e6,
+				latencies[(int) (latencies.length * 0.99)] / 1e6, latencies[latencies.length - 1] / 1e6,
+				latencies.length / seconds, Metrics.apiNanos.getMean() / 1e3,
+				lookups == 0 ? 0 : hits * 100.0 / lookups, blocks, errors.get());
+	}
+}
@@ -0,0 +1,46 @@
+package minichain.bench;
+
+import minichain.Amount;
+import minichain.MiniChain;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.Wallet;
+
+/**
+ * Benchmarks Wallet.getBalance against UTXO sets of 10 thousand to 1 million
+ * outputs spread over 100 owners. The largest size can be lowered with the
+ * bench.maxUtxos system property.
+ */
+public class BalanceBenchmarks {
+
+	public static void run(Bench bench) {
+		int max = Integer.getInteger("bench.maxUtxos", 1_000_000);
+		Wallet[] owners = new Wallet[100];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = new Wallet();
+		}
+
+		UtxoSet saved = MiniChain.UTXOs;
+		try {
+			for (int size = 10_000; size <= max; size *= 10) {
+				String name = "balance.getBalance." + size;
+				if (!bench.enabled(name))
+					continue;
+
+				MiniChain.UTXOs = utxos(owners, size);
+				Wallet wallet = owners[0];
+				bench.run(name, () -> wallet.getBalance());
+			}
+		} finally {
+			MiniChain.UTXOs = saved;
+		}
+	}
+
+	static UtxoSet utxos(Wallet[] owners, int size) {
+		UtxoSet utxos = new UtxoSet();
+		for (int i = 0; i < size; i++) {
+			utxos.put(new TransactionOutput(owners[i % owners.length].publicKey, Amount.COIN, "parent" + i));
+		}
+		return utxos;
+	}
+}
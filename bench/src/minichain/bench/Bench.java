@@ -0,0 +1,207 @@
+package minichain.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Bench class is a small benchmark harness. Each benchmark is warmed up,
+ * then measured for a number of timed iterations. Next to the time per
+ * operation it reports the bytes allocated per operation on the calling thread
+ * and the collections that ran during the measurement, like the gc profiler
+ * of JMH.
+ * 
+ * The harness is configured with system properties:
+ * 
+ * <pre>
+ * bench.warmup      warmup time in milliseconds (default 1000)
+ * bench.time        time per measured iteration in milliseconds (default 1000)
+ * bench.iterations  number of measured iterations (default 3)
+ * bench.filter      only run benchmarks whose name contains this text
+ * bench.out         write the results to this CSV file
+ * bench.baseline    compare the results with an earlier CSV file
+ * </pre>
+ * 
+ * While the harness is active, System.out is silenced so that the console
+ * output of the code under test does not skew the measurements.
+ */
+public final class Bench {
+
+	// A benchmarked operation. The result is consumed so the JIT cannot remove the
+	// work.
+	public interface Op {
+		Object run() throws Exception;
+	}
+
+	// The measurements of one benchmark.
+	public static final class Result {
+		public final String name;
+		public final long operations;
+		public final double nanosPerOp;
+		public final double bytesPerOp;
+		public final long gcCount;
+		public final long gcMillis;
+
+		Result(String name, long operations, double nanosPerOp, double bytesPerOp, long gcCount, long gcMillis) {
+			this.name = name;
+			this.operations = operations;
+			this.nanosPerOp = nanosPerOp;
+			this.bytesPerOp = bytesPerOp;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	private final long warmupNanos = Long.getLong("bench.warmup", 1000) * 1_000_000;
+	private final long iterationNanos = Long.getLong("bench.time", 1000) * 1_000_000;
+	private final int iterations = Integer.getInteger("bench.iterations", 3);
+	private final String filter = System.getProperty("bench.filter", "");
+	private final Map<String, Double> baseline = readBaseline(System.getProperty("bench.baseline"));
+	private final List<Result> results = new ArrayList<Result>();
+
+	private final PrintStream out = System.out;
+	private volatile int sink;
+
+	public Bench() {
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		out.printf("%-40s %14s %14s %12s %6s %8s %9s%n", "benchmark", "ns/op", "ops/s", "B/op", "gc", "gc ms",
+				"vs base");
+	}
+
+	// Returns whether a benchmark with the given name would run, so callers can
+	// skip expensive setup.
+	public boolean enabled(String name) {
+		return name.contains(filter);
+	}
+
+	/**
+	 * Warms up and measures an operation and prints the result.
+	 * 
+	 * @param name The name of the benchmark
+	 * @param op   The operation to measure
+	 * @return The result, or null if the benchmark was filtered out
+	 */
+	public Result run(String name, Op op) {
+		if (!enabled(name))
+			return null;
+
+		try {
+			measure(op, warmupNanos);
+
+			long gcCountBefore = gcCount();
+			long gcMillisBefore = gcMillis();
+			long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+			long operations = 0;
+			long nanos = 0;
+			for (int i = 0; i < iterations; i++) {
+				long[] iteration = measure(op, iterationNanos);
+				operations += iteration[0];
+				nanos += iteration[1];
+			}
+			long allocated = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+			Result result = new Result(name, operations, (double) nanos / operations, (double) allocated / operations,
+					gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+			results.add(result);
+			print(result);
+			return result;
+		} catch (Exception e) {
+			throw new RuntimeException(name + " failed", e);
+		}
+	}
+
+	// Runs the operation until the given time has passed and returns the number
+	// of operations and the elapsed nanoseconds.
+	private long[] measure(Op op, long duration) throws Exception {
+		long start = System.nanoTime();
+		long operations = 0;
+		long elapsed;
+		int hash = 0;
+		do {
+			Object value = op.run();
+			hash += value == null ? 0 : value.hashCode();
+			operations++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < duration);
+		sink = hash;
+		return new long[] { operations, elapsed };
+	}
+
+	// Prints a line of extra information between the results.
+	public void note(String text) {
+		out.println(text);
+	}
+
+	private void print(Result result) {
+		Double base = baseline.get(result.name);
+		String change = base == null ? "" : String.format("%+.1f%%", (result.nanosPerOp - base) * 100 / base);
+		out.printf("%-40s %14.1f %14.1f %12.1f %6d %8d %9s%n", result.name, result.nanosPerOp,
+				1e9 / result.nanosPerOp, result.bytesPerOp, result.gcCount, result.gcMillis, change);
+	}
+
+	// Restores System.out and writes the results to the file named by bench.out,
+	// if set.
+	public void finish() {
+		System.setOut(out);
+		String file = System.getProperty("bench.out");
+		if (file == null)
+			return;
+
+		List<String> lines = new ArrayList<String>();
+		lines.add("benchmark,ns/op,B/op,gc,gc ms");
+		for (Result result : results) {
+			lines.add(result.name + "," + result.nanosPerOp + "," + result.bytesPerOp + "," + result.gcCount + ","
+					+ result.gcMillis);
+		}
+		try {
+			Files.write(Path.of(file), lines);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static Map<String, Double> readBaseline(String file) {
+		Map<String, Double> baseline = new HashMap<String, Double>();
+		if (file == null)
+			return baseline;
+
+		try {
+			List<String> lines = Files.readAllLines(Path.of(file));
+			for (String line : lines.subList(1, lines.size())) {
+				String[] columns = line.split(",");
+				baseline.put(columns[0], Double.parseDouble(columns[1]));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return baseline;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+}
@@ -0,0 +1,60 @@
+package minichain.bench;
+
+import java.security.Security;
+
+/**
+ * Runs all benchmark suites. Pass suite names (crypto, merkle, mining, balance,
+ * validation, codec, index, snapshot, payout, metrics, reorg, network, heap,
+ * keys, api, prune, history) to run only those suites, and see {@link Bench} for the system
+ * properties that control the harness.
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+		String suites = args.length == 0
+				? "crypto merkle mining balance validation codec index snapshot payout metrics reorg network heap keys api"
+						+ " prune history"
+				: String.join(" ", args);
+
+		Bench bench = new Bench();
+		try {
+			if (suites.contains("crypto"))
+				CryptoBenchmarks.run(bench);
+			if (suites.contains("merkle"))
+				MerkleBenchmarks.run(bench);
+			if (suites.contains("mining"))
+				MiningBenchmarks.run(bench);
+			if (suites.contains("balance"))
+				BalanceBenchmarks.run(bench);
+			if (suites.contains("validation"))
+				ValidationBenchmarks.run(bench);
+			if (suites.contains("codec"))
+				CodecBenchmarks.run(bench);
+			if (suites.contains("index"))
+				IndexBenchmarks.run(bench);
+			if (suites.contains("snapshot"))
+				SnapshotBenchmarks.run(bench);
+			if (suites.contains("payout"))
+				PayoutBenchmarks.run(bench);
+			if (suites.contains("metrics"))
+				MetricsBenchmarks.run(bench);
+			if (suites.contains("reorg"))
+				ReorgBenchmarks.run(bench);
+			if (suites.contains("network"))
+				NetworkBenchmarks.run(bench);
+			if (suites.contains("heap"))
+				HeapBenchmarks.run(bench);
+			if (suites.contains("keys"))
+				KeyBenchmarks.run(bench);
+			if (suites.contains("api"))
+				ApiBenchmarks.run(bench);
+			if (suites.contains("prune"))
+				PruneBenchmarks.run(bench);
+			if (suites.contains("history"))
+				HistoryBenchmarks.run(bench);
+		} finally {
+			bench.finish();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package minichain.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import com.google.gson.Gson;
+
+import minichain.Amount;
+import minichain.Block;
+import minichain.BlockCodec;
+import minichain.ProofOfWork;
+import minichain.StringUtil;
+import minichain.Transaction;
+import minichain.TransactionInput;
+import minichain.TransactionOutput;
+import minichain.Wallet;
+
+/**
+ * Compares the binary BlockCodec with the Gson output of StringUtil.getJson on
+ * blocks of 1, 100 and 1000 transfers between ten wallets, both in size and in
+ * encoding and decoding time.
+ */
+public class CodecBenchmarks {
+
+	public static void run(Bench bench) {
+		Wallet[] wallets = new Wallet[10];
+		for (int i = 0; i < wallets.length; i++) {
+			wallets[i] = new Wallet();
+		}
+		Gson gson = new Gson();
+		BlockCodec codec = new BlockCodec();
+
+		for (int size : new int[] { 1, 100, 1000 }) {
+			Block block = block(wallets, size);
+			byte[] encoded = toBytes(codec.encode(block));
+			int json = StringUtil.getJson(block).getBytes(StandardCharsets.UTF_8).length;
+			int compactJson = gson.toJson(block).getBytes(StandardCharsets.UTF_8).length;
+			bench.note(String.format("codec size %d transactions: binary %d B, json %d B, compact json %d B", size,
+					encoded.length, json, compactJson));
+
+			bench.run("codec.encode." + size, () -> codec.encode(block).remaining());
+			bench.run("codec.decode." + size, () -> BlockCodec.decode(ByteBuffer.wrap(encoded)));
+			bench.run("codec.getJson." + size, () -> StringUtil.getJson(block));
+			bench.run("codec.gson." + size, () -> gson.toJson(block));
+		}
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	// Builds a mined block of signed transfers, each spending one output and
+	// creating a payment and a change output.
+	static Block block(Wallet[] wallets, int size) {
+		Block block = new Block("0");
+		for (int i = 0; i < size; i++) {
+			Wallet from = wallets[i % wallets.length];
+			Wallet to = wallets[(i + 1) % wallets.length];
+
+			ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+			inputs.add(new TransactionInput(StringUtil.applySha256("output" + i)));
+			Transaction transaction = new Transaction(from.publicKey, to.publicKey, Amount.coins(5), inputs);
+			transaction.generateSignature(from.privateKey);
+			transaction.transactionId = StringUtil.applySha256("transaction" + i);
+			transaction.outputs.add(new TransactionOutput(to.publicKey, Amount.coins(5), transaction.transactionId));
+			transaction.outputs.add(new TransactionOutput(from.publicKey, Amount.coins(5), transaction.transactionId));
+			block.transactions.add(transaction);
+		}
+		block.mineBlock(ProofOfWork.fixed(4));
+		return block;
+	}
+}
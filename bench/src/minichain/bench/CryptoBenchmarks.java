@@ -0,0 +1,34 @@
+package minichain.bench;
+
+import java.util.ArrayList;
+
+import minichain.Amount;
+import minichain.StringUtil;
+import minichain.Transaction;
+import minichain.Wallet;
+
+/**
+ * Benchmarks SHA-256 hashing and ECDSA signing and verification, through
+ * StringUtil and through the canonical payload of a transaction.
+ */
+public class CryptoBenchmarks {
+
+	public static void run(Bench bench) {
+		Wallet wallet = new Wallet();
+		String key = StringUtil.getStringFromKey(wallet.publicKey);
+		String data = key + key + Long.toString(Amount.coins(42));
+		byte[] signature = StringUtil.applyECDSASig(wallet.privateKey, data);
+
+		bench.run("crypto.applySha256", () -> StringUtil.applySha256(data));
+		bench.run("crypto.applyECDSASig", () -> StringUtil.applyECDSASig(wallet.privateKey, data));
+		bench.run("crypto.verifyECDSASig", () -> StringUtil.verifyECDSASig(wallet.publicKey, data, signature));
+
+		Transaction transaction = new Transaction(wallet.publicKey, wallet.publicKey, Amount.coins(42), new ArrayList<>());
+		transaction.generateSignature(wallet.privateKey);
+		bench.run("crypto.transaction.generateSignature", () -> {
+			transaction.generateSignature(wallet.privateKey);
+			return transaction.signature;
+		});
+		bench.run("crypto.transaction.verifySignature", () -> transaction.verifySignature());
+	}
+}
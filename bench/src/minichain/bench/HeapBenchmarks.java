@@ -0,0 +1,70 @@
+package minichain.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import minichain.Amount;
+import minichain.CryptoService;
+import minichain.StringUtil;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.Wallet;
+
+/**
+ * Measures the heap a UTXO set takes per unspent output, with a million
+ * outputs owned by 1000 wallets. The outputs come in pairs of a payment and
+ * its change, like those of transfers, so two outputs share a parent
+ * transaction id. The number of outputs can be lowered with the
+ * bench.heapOutputs system property. The lookup benchmarks show what a
+ * get and a put followed by a remove cost in a set of that size.
+ */
+public class HeapBenchmarks {
+
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	public static void run(Bench bench) {
+		int count = Integer.getInteger("bench.heapOutputs", 1_000_000);
+		Wallet[] owners = new Wallet[1000];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = new Wallet();
+		}
+
+		long before = usedHeap();
+		List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(count);
+		for (int i = 0; i < count; i += 2) {
+			String parent = StringUtil.bytesToHex(CryptoService.sha256(Integer.toString(i).getBytes()));
+			outputs.add(new TransactionOutput(owners[i % owners.length].publicKey, Amount.COIN, parent, 0));
+			outputs.add(new TransactionOutput(owners[(i + 1) % owners.length].publicKey, Amount.COIN, parent, 1));
+		}
+
+		UtxoSet utxos = new UtxoSet();
+		for (TransactionOutput output : outputs) {
+			utxos.put(output);
+		}
+		String[] ids = new String[1024];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = outputs.get(i * (count / ids.length)).id;
+		}
+		outputs = null; // only the set keeps the outputs now
+		long after = usedHeap();
+		bench.note(String.format("heap.utxo: %d outputs, %.1f MB, %d bytes per output", utxos.size(),
+				(after - before) / 1e6, (after - before) / utxos.size()));
+
+		int[] next = new int[1];
+		bench.run("heap.utxo.get", () -> utxos.get(ids[next[0]++ & 1023]));
+		bench.run("heap.utxo.removePut", () -> {
+			TransactionOutput output = utxos.remove(ids[next[0]++ & 1023]);
+			utxos.put(output);
+			return output;
+		});
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return MEMORY.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,116 @@
+package minichain.bench;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import minichain.AddressIndex;
+import minichain.Amount;
+import minichain.Block;
+import minichain.KeyHandle;
+import minichain.StringUtil;
+import minichain.Transaction;
+import minichain.TransactionInput;
+import minichain.TransactionOutput;
+import minichain.Wallet;
+
+/**
+ * Benchmarks the AddressIndex on a synthetic chain of 1000 blocks with 1000
+ * transfers each, every one of them between one busy key and one of 1000
+ * others, so the busy key has a history of a million entries. The number of
+ * transfers can be lowered with the bench.historyTransactions system property.
+ * The blocks repeat 10 distinct ones, since the index copies what it needs.
+ *
+ * The page benchmarks read 100 entries at the start and at the end of the
+ * history. The stream benchmark sums the amounts of the whole history through
+ * a lazy stream, and the scan benchmark computes the same sum the way it had to
+ * be done without the index, by walking the transactions of every block.
+ */
+public class HistoryBenchmarks {
+
+	private static final int OTHERS = 1000;
+	private static final int TEMPLATES = 10;
+
+	public static void run(Bench bench) {
+		int count = Integer.getInteger("bench.historyTransactions", 1_000_000);
+		int perBlock = Math.max(1, count / 1000);
+
+		Wallet busy = new Wallet();
+		List<PublicKey> others = new ArrayList<PublicKey>(OTHERS);
+		for (int i = 0; i < OTHERS; i++) {
+			others.add(new Wallet().publicKey);
+		}
+
+		List<Block> templates = new ArrayList<Block>(TEMPLATES);
+		int sequence = 0;
+		for (int b = 0; b < TEMPLATES; b++) {
+			Block block = new Block("0");
+			for (int t = 0; t < perBlock; t++) {
+				PublicKey other = others.get(sequence % OTHERS);
+				boolean sends = sequence % 2 == 0;
+				block.transactions.add(transfer(sends ? busy.publicKey : other, sends ? other : busy.publicKey,
+						Amount.COIN * (1 + sequence % 7), sequence));
+				sequence++;
+			}
+			templates.add(block);
+		}
+
+		List<Block> chain = new ArrayList<Block>();
+		AddressIndex index = new AddressIndex();
+		long start = System.nanoTime();
+		for (int height = 0; (long) height * perBlock < count; height++) {
+			Block block = templates.get(height % TEMPLATES);
+			index.add(block, height);
+			chain.add(block);
+		}
+		long nanos = System.nanoTime() - start;
+		int entries = index.count(busy.publicKey);
+		bench.note(String.format(
+				"history of %d transfers: %d entries, %d of the busy key, %.1f MB, %.1f bytes per entry,"
+						+ " added in %.0f ns per transfer",
+				chain.size() * perBlock, index.size(), entries, index.memoryBytes() / 1e6,
+				(double) index.memoryBytes() / index.size(), (double) nanos / (chain.size() * perBlock)));
+
+		bench.run("history.page.first", () -> index.page(busy.publicKey, 0, 100));
+		bench.run("history.page.last", () -> index.page(busy.publicKey,
+				AddressIndex.cursor(chain.size() - 1, Math.max(0, perBlock - 100)), 100));
+		bench.run("history.stream.sum." + entries,
+				() -> index.history(busy.publicKey, 0).mapToLong(entry -> entry.amount).sum());
+		KeyHandle key = KeyHandle.of(busy.publicKey);
+		bench.run("history.scan.sum." + entries, () -> {
+			long sum = 0;
+			for (Block block : chain) {
+				for (Transaction transaction : block.transactions) {
+					long change = 0;
+					boolean touched = transaction.getSenderHandle().equals(key);
+					if (touched)
+						change -= transaction.getInputsValue();
+					for (TransactionOutput output : transaction.outputs) {
+						if (output.getOwner().equals(key)) {
+							change += output.value;
+							touched = true;
+						}
+					}
+					if (touched)
+						sum += Math.abs(change);
+				}
+			}
+			return sum;
+		});
+	}
+
+	// Creates a transfer with a resolved input and its outputs, like one of a
+	// validated block. It is not signed, since the index does not check that.
+	private static Transaction transfer(PublicKey from, PublicKey to, long value, int sequence) {
+		TransactionInput input = new TransactionInput(StringUtil.applySha256("output" + sequence));
+		input.UTXO = new TransactionOutput(from, value + Amount.COIN, StringUtil.applySha256("parent" + sequence), 0);
+		ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+		inputs.add(input);
+
+		Transaction transaction = new Transaction(from, to, value, inputs);
+		transaction.transactionId = StringUtil.applySha256("transfer" + sequence);
+		transaction.outputs.add(new TransactionOutput(to, value, transaction.transactionId, 0));
+		transaction.outputs.add(new TransactionOutput(from, Amount.COIN, transaction.transactionId, 1));
+		return transaction;
+	}
+}
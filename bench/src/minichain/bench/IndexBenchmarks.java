@@ -0,0 +1,52 @@
+package minichain.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import minichain.Amount;
+import minichain.Block;
+import minichain.ChainIndex;
+import minichain.StringUtil;
+import minichain.Transaction;
+
+/**
+ * Benchmarks ChainIndex lookups of blocks and transactions on a synthetic chain
+ * of 1000 blocks with up to 1000 transactions each. The number of
+ * transactions can be lowered with the bench.indexTransactions system
+ * property.
+ */
+public class IndexBenchmarks {
+
+	public static void run(Bench bench) {
+		int count = Integer.getInteger("bench.indexTransactions", 1_000_000);
+		int perBlock = Math.max(1, count / 1000);
+
+		List<Block> chain = new ArrayList<Block>();
+		List<String> transactionIds = new ArrayList<String>(count);
+		ChainIndex index = new ChainIndex(count);
+		String previousHash = "0";
+		for (int height = 0; transactionIds.size() < count; height++) {
+			Block block = new Block(previousHash);
+			for (int t = 0; t < perBlock && transactionIds.size() < count; t++) {
+				Transaction transaction = new Transaction(null, null, Amount.COIN, new ArrayList<>());
+				transaction.transactionId = StringUtil.applySha256("transaction" + transactionIds.size());
+				block.transactions.add(transaction);
+				transactionIds.add(transaction.transactionId);
+			}
+			index.add(block, height);
+			chain.add(block);
+			previousHash = block.hash;
+		}
+		bench.note(String.format("index of %d blocks and %d transactions: %.1f MB", chain.size(), count,
+				index.memoryBytes() / 1e6));
+
+		Random random = new Random(42);
+		bench.run("index.heightOf", () -> index.heightOf(chain.get(random.nextInt(chain.size())).hash, chain));
+		bench.run("index.locateTransaction",
+				() -> index.locateTransaction(transactionIds.get(random.nextInt(transactionIds.size()))));
+		bench.run("index.getTransaction",
+				() -> index.getTransaction(transactionIds.get(random.nextInt(transactionIds.size())), chain));
+		bench.run("index.locateTransaction.missing", () -> index.locateTransaction(StringUtil.applySha256("missing")));
+	}
+}
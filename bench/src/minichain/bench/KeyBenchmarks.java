@@ -0,0 +1,101 @@
+package minichain.bench;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import minichain.DeterministicKey;
+import minichain.KeyPool;
+import minichain.Metrics;
+import minichain.Wallet;
+
+/**
+ * Measures how many wallets per second can be created in parallel: with a new
+ * random key pair each, from a full KeyPool, and derived from a seed with
+ * DeterministicKey. Every operation creates bench.keyWallets wallets (1000 by
+ * default) on bench.keyThreads threads (the number of processors by default).
+ * The derive benchmarks show the cost of a child key alone and with its public
+ * key computed.
+ */
+public class KeyBenchmarks {
+
+	public static void run(Bench bench) throws Exception {
+		int count = Integer.getInteger("bench.keyWallets", 1000);
+		int threads = Integer.getInteger("bench.keyThreads", Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		byte[] seed = new byte[32];
+		new SecureRandom().nextBytes(seed);
+		DeterministicKey account = DeterministicKey.fromSeed(seed).derive(DeterministicKey.HARDENED);
+		account.getKeyPair();
+
+		try {
+			Bench.Result random = bench.run("keys.wallets.random." + count,
+					() -> create(executor, threads, count, i -> new Wallet()));
+			note(bench, random, count, threads);
+
+			Bench.Result derived = bench.run("keys.wallets.derived." + count,
+					() -> create(executor, threads, count, i -> new Wallet(account.derive(i).getKeyPair())));
+			note(bench, derived, count, threads);
+
+			if (bench.enabled("keys.wallets.pool." + count)) {
+				// A burst into a full pool, timed once per round since the pool has to
+				// fill up again in between
+				KeyPool pool = new KeyPool(count, threads);
+				try {
+					for (int round = 0; round < 3; round++) {
+						while (pool.size() < count) {
+							Thread.sleep(10);
+						}
+						long misses = Metrics.keyPoolMisses.get();
+						long start = System.nanoTime();
+						create(executor, threads, count, i -> new Wallet(pool));
+						long nanos = System.nanoTime() - start;
+						bench.note(String.format("keys.wallets.pool.%d: %.0f wallets/s on %d threads, %d generated by"
+								+ " callers", count, count * 1e9 / nanos, threads, Metrics.keyPoolMisses.get() - misses));
+					}
+				} finally {
+					pool.shutdown();
+				}
+			}
+
+			int[] next = new int[1];
+			bench.run("keys.derive", () -> account.derive(next[0]++));
+			bench.run("keys.derive.keyPair", () -> account.derive(next[0]++).getKeyPair());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// Creates count wallets, split evenly across the threads.
+	private static List<Wallet> create(ExecutorService executor, int threads, int count, IntFunction<Wallet> wallet)
+			throws Exception {
+		List<Future<List<Wallet>>> parts = new ArrayList<Future<List<Wallet>>>();
+		for (int t = 0; t < threads; t++) {
+			int from = count * t / threads;
+			int to = count * (t + 1) / threads;
+			parts.add(executor.submit(() -> {
+				List<Wallet> wallets = new ArrayList<Wallet>(to - from);
+				for (int i = from; i < to; i++) {
+					wallets.add(wallet.apply(i));
+				}
+				return wallets;
+			}));
+		}
+		List<Wallet> wallets = new ArrayList<Wallet>(count);
+		for (Future<List<Wallet>> part : parts) {
+			wallets.addAll(part.get());
+		}
+		return wallets;
+	}
+
+	private static void note(Bench bench, Bench.Result result, int count, int threads) {
+		if (result != null)
+			bench.note(String.format("%s: %.0f wallets/s on %d threads", result.name, count * 1e9 / result.nanosPerOp,
+					threads));
+	}
+}
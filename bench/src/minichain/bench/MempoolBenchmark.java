@@ -0,0 +1,97 @@
+package minichain.bench;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import minichain.Amount;
+import minichain.Mempool;
+import minichain.Transaction;
+import minichain.TransactionInput;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.Wallet;
+
+/**
+ * Measures how many transactions per second the mempool accepts with 1, 4, 16
+ * and 64 submitting threads. Every transaction spends its own output, so all
+ * of them are accepted and the numbers show signature verification and input
+ * claiming under contention.
+ * 
+ * Usage: MempoolBenchmark [transactions]
+ */
+public class MempoolBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+
+		UtxoSet utxos = new UtxoSet();
+		List<Transaction> transactions = createTransactions(utxos, count);
+
+		System.out.println("threads  transactions/s");
+		for (int threads : new int[] { 1, 4, 16, 64 }) {
+			submit(new Mempool(utxos), transactions, threads); // warm up
+			Mempool mempool = new Mempool(utxos);
+			long nanos = submit(mempool, transactions, threads);
+			if (mempool.size() != transactions.size())
+				throw new IllegalStateException("Only " + mempool.size() + " transactions were accepted");
+			System.out.printf("%7d  %14.0f%n", threads, transactions.size() * 1e9 / nanos);
+		}
+	}
+
+	// Funds a few senders with one output per transaction and signs a
+	// transaction that spends each output.
+	static List<Transaction> createTransactions(UtxoSet utxos, int count) {
+		Wallet recipient = new Wallet();
+		Wallet[] senders = new Wallet[16];
+		for (int s = 0; s < senders.length; s++) {
+			senders[s] = new Wallet();
+		}
+
+		List<Transaction> transactions = new ArrayList<Transaction>(count);
+		for (int i = 0; i < count; i++) {
+			Wallet sender = senders[i % senders.length];
+			TransactionOutput funds = new TransactionOutput(sender.publicKey, Amount.coins(10), "funding" + i);
+			utxos.put(funds);
+
+			ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+			inputs.add(new TransactionInput(funds.id));
+			Transaction transaction = new Transaction(sender.publicKey, recipient.publicKey, Amount.coins(5), inputs);
+			transaction.generateSignature(sender.privateKey);
+			transactions.add(transaction);
+		}
+		return transactions;
+	}
+
+	// Submits all transactions from the given number of threads and returns the
+	// elapsed time in nanoseconds.
+	static long submit(Mempool mempool, List<Transaction> transactions, int threads) throws InterruptedException {
+		AtomicInteger next = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			new Thread(() -> {
+				try {
+					start.await();
+					int i;
+					while ((i = next.getAndIncrement()) < transactions.size()) {
+						mempool.submit(transactions.get(i));
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		return System.nanoTime() - begin;
+	}
+}
@@ -0,0 +1,44 @@
+package minichain.bench;
+
+import java.util.ArrayList;
+
+import minichain.Amount;
+import minichain.MerkleTree;
+import minichain.StringUtil;
+import minichain.Transaction;
+
+/**
+ * Benchmarks the Merkle root of blocks with 1, 100 and 10,000 transactions,
+ * built at once and by appending one transaction at a time, and the creation
+ * of inclusion proofs.
+ */
+public class MerkleBenchmarks {
+
+	public static void run(Bench bench) {
+		for (int size : new int[] { 1, 100, 10_000 }) {
+			ArrayList<Transaction> transactions = transactions(size);
+			bench.run("merkle.getMerkleRoot." + size, () -> StringUtil.getMerkleRoot(transactions));
+			bench.run("merkle.append." + size, () -> {
+				MerkleTree tree = new MerkleTree();
+				for (Transaction transaction : transactions) {
+					tree.append(transaction.transactionId);
+				}
+				return tree.getRoot();
+			});
+		}
+
+		MerkleTree tree = MerkleTree.build(transactions(10_000));
+		bench.run("merkle.prove.10000", () -> tree.prove(4321).toBytes());
+	}
+
+	// Creates unsigned transactions that only carry an id.
+	static ArrayList<Transaction> transactions(int size) {
+		ArrayList<Transaction> transactions = new ArrayList<Transaction>(size);
+		for (int i = 0; i < size; i++) {
+			Transaction transaction = new Transaction(null, null, Amount.COIN, new ArrayList<>());
+			transaction.transactionId = StringUtil.applySha256("transaction" + i);
+			transactions.add(transaction);
+		}
+		return transactions;
+	}
+}
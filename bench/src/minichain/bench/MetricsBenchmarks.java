@@ -0,0 +1,62 @@
+package minichain.bench;
+
+import minichain.Block;
+import minichain.InMemoryMetrics;
+import minichain.Metrics;
+import minichain.MetricsRegistry;
+import minichain.MiniChain;
+import minichain.NoopMetrics;
+import minichain.ProofOfWork;
+
+/**
+ * Benchmarks the cost of recording metrics with the in-memory and no-op
+ * registries, and of mining an easy block with console logging on and in quiet
+ * mode.
+ */
+public class MetricsBenchmarks {
+
+	private static final ProofOfWork EASY = ProofOfWork.fixed(4);
+
+	public static void run(Bench bench) {
+		InMemoryMetrics inMemory = new InMemoryMetrics();
+		record(bench, "inMemory", inMemory);
+		record(bench, "noop", NoopMetrics.INSTANCE);
+
+		MetricsRegistry saved = Metrics.registry();
+		boolean logging = MiniChain.logging;
+		try {
+			Metrics.use(inMemory);
+			MiniChain.logging = true;
+			bench.run("metrics.mineBlock.logging", () -> mine());
+
+			Metrics.use(NoopMetrics.INSTANCE);
+			MiniChain.logging = false;
+			bench.run("metrics.mineBlock.quiet", () -> mine());
+		} finally {
+			Metrics.use(saved);
+			MiniChain.logging = logging;
+		}
+	}
+
+	private static void record(Bench bench, String name, MetricsRegistry registry) {
+		MetricsRegistry.Counter counter = registry.counter("bench.counter");
+		MetricsRegistry.Histogram histogram = registry.histogram("bench.histogram");
+		bench.run("metrics.counter." + name, () -> {
+			counter.increment();
+			return counter;
+		});
+		long[] value = { 0 };
+		bench.run("metrics.histogram." + name, () -> {
+			histogram.record(value[0]++ & 0xFFFFF);
+			return histogram;
+		});
+	}
+
+	// Mines a block with 4 leading zero bits, which takes about 16 hashes, so the
+	// cost around the nonce search dominates.
+	private static String mine() {
+		Block block = new Block("0");
+		block.mineBlock(EASY);
+		return block.hash;
+	}
+}
@@ -0,0 +1,78 @@
+package minichain.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import minichain.AdaptiveProofOfWork;
+import minichain.Block;
+import minichain.ParallelMiner;
+import minichain.ProofOfWork;
+import minichain.Target;
+
+/**
+ * Benchmarks mining an empty block with 4 to 20 leading zero bits, on one
+ * thread and with a ParallelMiner using every core, and with double SHA-256.
+ * Allocations of the miner threads are not included in B/op.
+ * 
+ * It then mines a chain with an adaptive proof of work that starts far too
+ * easy and prints how the block interval and target settle. The target
+ * interval is set with bench.blockMillis (default 20).
+ */
+public class MiningBenchmarks {
+
+	public static void run(Bench bench) {
+		ParallelMiner miner = new ParallelMiner();
+		try {
+			for (int zeroBits = 4; zeroBits <= 20; zeroBits += 4) {
+				ProofOfWork proofOfWork = ProofOfWork.fixed(zeroBits);
+				bench.run("mining.mineBlock." + zeroBits, () -> {
+					Block block = new Block("0");
+					block.mineBlock(proofOfWork);
+					return block.hash;
+				});
+				bench.run("mining.mineBlock.parallel." + zeroBits, () -> {
+					Block block = new Block("0");
+					block.mineBlock(proofOfWork, miner);
+					return block.hash;
+				});
+			}
+
+			ProofOfWork doubleSha256 = new AdaptiveProofOfWork(ProofOfWork.DOUBLE_SHA256, Target.ofZeroBits(12), 0,
+					0);
+			bench.run("mining.mineBlock.doubleSha256.12", () -> {
+				Block block = new Block("0");
+				block.mineBlock(doubleSha256);
+				return block.hash;
+			});
+
+			if (bench.enabled("mining.retarget"))
+				retarget(bench, miner, Long.getLong("bench.blockMillis", 20));
+		} finally {
+			miner.shutdown();
+		}
+	}
+
+	// Mines 300 blocks with a window of 20 blocks and reports the average
+	// interval and target of every 50 blocks.
+	private static void retarget(Bench bench, ParallelMiner miner, long blockMillis) {
+		ProofOfWork proofOfWork = new AdaptiveProofOfWork(ProofOfWork.SHA256, Target.ofZeroBits(4), 20, blockMillis);
+		List<Block> chain = new ArrayList<Block>();
+		Block genesis = new Block("0");
+		genesis.mineBlock(proofOfWork, miner);
+		chain.add(genesis);
+
+		bench.note("mining.retarget: " + blockMillis + " ms per block, window 20");
+		for (int height = 1; height <= 300; height++) {
+			Block block = new Block(chain.get(height - 1).hash);
+			block.target = proofOfWork.nextTarget(chain, height);
+			block.mineBlock(proofOfWork, miner);
+			chain.add(block);
+
+			if (height % 50 == 0) {
+				long millis = block.getTimeStamp() - chain.get(height - 50).getTimeStamp();
+				bench.note(String.format("  blocks %3d-%3d: %5.1f ms per block, target %s", height - 49, height,
+						millis / 50.0, Target.toString(block.target)));
+			}
+		}
+	}
+}
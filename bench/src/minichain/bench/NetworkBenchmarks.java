@@ -0,0 +1,187 @@
+package minichain.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import minichain.Amount;
+import minichain.Block;
+import minichain.BlockTree;
+import minichain.InProcessNetwork;
+import minichain.MiniChain;
+import minichain.Node;
+import minichain.ProofOfWork;
+import minichain.Transaction;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.Wallet;
+
+/**
+ * Simulates networks of 10, 30 and 100 {@link Node}s in one JVM, connected by
+ * an {@link InProcessNetwork} with 8 random peers per node and 2-5 ms of
+ * latency per hop. Blocks are found at random nodes with exponentially
+ * distributed intervals of 100 ms on average, while wallets submit transfers
+ * to random nodes during the first half of the run. Every node validates every
+ * transaction and block it receives, so on a machine with few cores the CPU
+ * work grows with the node count.
+ *
+ * For each network size the simulation reports how long blocks took to reach
+ * the other nodes, how many blocks ended up off the main chain (stale) and how
+ * many arrived before their parent (orphans), and how many transfers per
+ * second were confirmed. The sizes can be changed with the bench.networkNodes
+ * system property, e.g. "10,50", and the number of transfers with
+ * bench.networkTransactions.
+ */
+public class NetworkBenchmarks {
+
+	private static final ProofOfWork PROOF_OF_WORK = ProofOfWork.fixed(8);
+	private static final int CHECKPOINT_INTERVAL = 1000;
+	private static final int BLOCKS = 30;
+	private static final long BLOCK_MILLIS = 100;
+	private static final int BLOCK_SIZE = 100; // transactions per block
+	private static final int DEGREE = 8;
+	private static final long LATENCY_MICROS = 2000;
+	private static final long JITTER_MICROS = 3000;
+
+	public static void run(Bench bench) throws InterruptedException {
+		int count = Integer.getInteger("bench.networkTransactions", 100);
+		int[] sizes = Arrays.stream(System.getProperty("bench.networkNodes", "10,30,100").split(","))
+				.mapToInt(size -> Integer.parseInt(size.trim())).toArray();
+
+		boolean logging = MiniChain.logging;
+		MiniChain.logging = false;
+		try {
+			// One genesis output per wallet, each spent by one signed transfer
+			Wallet funder = new Wallet();
+			List<Wallet> wallets = new ArrayList<Wallet>(count);
+			for (int i = 0; i < count; i++) {
+				wallets.add(new Wallet());
+			}
+			Transaction genesisTransaction = new Transaction(funder.publicKey, funder.publicKey,
+					Amount.coins(10 * count), null);
+			genesisTransaction.generateSignature(funder.privateKey);
+			genesisTransaction.transactionId = "0";
+			UtxoSet genesisUtxos = new UtxoSet();
+			for (int i = 0; i < count; i++) {
+				TransactionOutput output = new TransactionOutput(wallets.get(i).publicKey, Amount.coins(10), "0", i);
+				genesisTransaction.outputs.add(output);
+				genesisUtxos.put(output);
+			}
+			Block genesis = new Block("0", PROOF_OF_WORK);
+			genesis.addTransaction(genesisTransaction);
+			genesis.mineBlock(PROOF_OF_WORK);
+
+			List<Transaction> transfers = new ArrayList<Transaction>(count);
+			for (int i = 0; i < count; i++) {
+				Wallet to = wallets.get((i + 1) % count);
+				transfers.add(wallets.get(i).sendFunds(to.publicKey, Amount.COIN, genesisUtxos));
+			}
+
+			for (int size : sizes) {
+				String name = "network." + size;
+				if (bench.enabled(name))
+					bench.note(name + ": " + simulate(size, genesis, genesisTransaction.outputs, transfers));
+			}
+		} finally {
+			MiniChain.logging = logging;
+		}
+	}
+
+	private static String simulate(int size, Block genesis, List<TransactionOutput> genesisOutputs,
+			List<Transaction> transfers) throws InterruptedException {
+		Random random = new Random(size);
+		InProcessNetwork network = new InProcessNetwork(LATENCY_MICROS, JITTER_MICROS);
+		List<Node> nodes = new ArrayList<Node>(size);
+		for (int i = 0; i < size; i++) {
+			nodes.add(new Node("node-" + i, genesis, genesisOutputs, PROOF_OF_WORK, CHECKPOINT_INTERVAL, network));
+		}
+		network.connectRandom(nodes, DEGREE, random);
+
+		try {
+			long start = System.nanoTime();
+			List<CompletableFuture<Block>> mined = new ArrayList<CompletableFuture<Block>>(BLOCKS);
+			int submitted = 0;
+			for (int b = 0; b < BLOCKS; b++) {
+				int until = Math.min(transfers.size(), (b + 1) * transfers.size() * 2 / BLOCKS);
+				for (; submitted < until; submitted++) {
+					nodes.get(random.nextInt(size)).submit(transfers.get(submitted));
+				}
+				Thread.sleep(Math.round(-Math.log(1 - random.nextDouble()) * BLOCK_MILLIS));
+				mined.add(nodes.get(random.nextInt(size)).mine(BLOCK_SIZE));
+			}
+			CompletableFuture.allOf(mined.toArray(CompletableFuture<?>[]::new)).join();
+			if (!network.awaitIdle(10, TimeUnit.MINUTES))
+				return "gossip did not settle";
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			// Time from the miner to every other node, per block and to the last node
+			List<Long> hops = new ArrayList<Long>();
+			List<Long> full = new ArrayList<Long>();
+			for (CompletableFuture<Block> future : mined) {
+				Block block = future.join();
+				long origin = Long.MAX_VALUE;
+				for (Node node : nodes) {
+					long arrival = node.getArrival(block.hash);
+					if (arrival >= 0)
+						origin = Math.min(origin, arrival);
+				}
+				long last = 0;
+				for (Node node : nodes) {
+					long arrival = node.getArrival(block.hash);
+					if (arrival > origin) {
+						hops.add(arrival - origin);
+						last = Math.max(last, arrival - origin);
+					}
+				}
+				full.add(last);
+			}
+
+			long orphans = 0;
+			long received = 0;
+			for (Node node : nodes) {
+				orphans += node.getBlockCount(BlockTree.Result.ORPHAN);
+				for (BlockTree.Result result : BlockTree.Result.values()) {
+					received += node.getBlockCount(result);
+				}
+			}
+
+			List<Block> chain = nodes.get(0).getChain();
+			boolean converged = true;
+			for (Node node : nodes) {
+				converged &= node.getTip().hash.equals(chain.get(chain.size() - 1).hash);
+			}
+			int confirmed = 0;
+			for (int i = 1; i < chain.size(); i++) {
+				confirmed += chain.get(i).transactions.size();
+			}
+			int stale = BLOCKS - (chain.size() - 1);
+
+			return String.format(
+					"%d blocks, %d stale (%.0f%%), %d of %d arrivals orphaned, propagation mean %.1f ms, "
+							+ "to all nodes p50 %.1f ms p90 %.1f ms, %d/%d transfers confirmed, %.0f tx/s, "
+							+ "%d messages, %.1f MB%s%s",
+					BLOCKS, stale, stale * 100.0 / BLOCKS, orphans, received, mean(hops) / 1e6,
+					percentile(full, 0.5) / 1e6, percentile(full, 0.9) / 1e6, confirmed, transfers.size(),
+					confirmed / seconds, network.getMessages(), network.getBytes() / 1e6,
+					converged ? "" : ", tips differ",
+					network.getErrors() == 0 ? "" : ", " + network.getErrors() + " errors");
+		} finally {
+			for (Node node : nodes) {
+				node.shutdown();
+			}
+			network.shutdown();
+		}
+	}
+
+	private static double mean(List<Long> values) {
+		return values.stream().mapToLong(Long::longValue).average().orElse(0);
+	}
+
+	private static double percentile(List<Long> values, double p) {
+		long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+		return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))];
+	}
+}
@@ -0,0 +1,62 @@
+package minichain.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import minichain.Amount;
+import minichain.MiniChain;
+import minichain.Payout;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.Wallet;
+
+/**
+ * Compares paying 10,000 recipients with one Wallet.sendFunds call each against
+ * a single Wallet.sendBatch call. The paying wallet owns 100 outputs and the
+ * payouts go to 1000 distinct wallets. The number of payouts can be changed
+ * with the bench.payouts system property.
+ */
+public class PayoutBenchmarks {
+
+	public static void run(Bench bench) {
+		int count = Integer.getInteger("bench.payouts", 10_000);
+
+		Wallet payer = new Wallet();
+		Wallet[] recipients = new Wallet[1000];
+		for (int i = 0; i < recipients.length; i++) {
+			recipients[i] = new Wallet();
+		}
+		List<Payout> payouts = new ArrayList<Payout>(count);
+		for (int i = 0; i < count; i++) {
+			payouts.add(new Payout(recipients[i % recipients.length].publicKey, Amount.COIN + i));
+		}
+
+		UtxoSet saved = MiniChain.UTXOs;
+		MiniChain.UTXOs = new UtxoSet();
+		try {
+			for (int i = 0; i < 100; i++) {
+				MiniChain.UTXOs.put(new TransactionOutput(payer.publicKey, Amount.coins(1_000_000), "funding" + i));
+			}
+
+			Bench.Result single = bench.run("payout.sendFunds." + count, () -> {
+				int sent = 0;
+				for (Payout payout : payouts) {
+					if (payer.sendFunds(payout.recipient, payout.value) != null)
+						sent++;
+				}
+				return sent;
+			});
+			note(bench, single, count);
+
+			Bench.Result batch = bench.run("payout.sendBatch." + count, () -> payer.sendBatch(payouts).size());
+			note(bench, batch, count);
+		} finally {
+			MiniChain.UTXOs = saved;
+		}
+	}
+
+	private static void note(Bench bench, Bench.Result result, int count) {
+		if (result != null)
+			bench.note(String.format("%s: %.0f payouts/s", result.name, count * 1e9 / result.nanosPerOp));
+	}
+}
@@ -0,0 +1,86 @@
+package minichain.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+import minichain.Block;
+import minichain.BlockCodec;
+import minichain.BlockPipeline;
+import minichain.ParallelMiner;
+import minichain.ProofOfWork;
+import minichain.Transaction;
+import minichain.UtxoSet;
+
+/**
+ * Assembles blocks from the same signed transactions twice: inline with
+ * Block.addTransaction, one block after the other, and with the BlockPipeline.
+ * Prints the transactions per second of both and the queue depth and latency
+ * of every pipeline stage.
+ * 
+ * Usage: PipelineBenchmark [transactions] [blockSize] [zeroBits]
+ */
+public class PipelineBenchmark {
+
+	public static void main(String[] args) {
+		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		ProofOfWork proofOfWork = ProofOfWork.fixed(args.length > 2 ? Integer.parseInt(args[2]) : 12);
+		ParallelMiner miner = new ParallelMiner();
+
+		UtxoSet inlineUtxos = new UtxoSet();
+		List<Transaction> transactions = MempoolBenchmark.createTransactions(inlineUtxos, count);
+		UtxoSet pipelineUtxos = inlineUtxos.copy();
+
+		BlockCodec codec = new BlockCodec();
+		List<byte[]> encoded = new ArrayList<byte[]>(count);
+		for (Transaction transaction : transactions) {
+			ByteBuffer buffer = codec.encode(transaction);
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			encoded.add(bytes);
+		}
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		Block genesis = new Block("0");
+		genesis.mineBlock(proofOfWork, miner);
+		long start = System.nanoTime();
+		String previousHash = genesis.hash;
+		int blocks = 0;
+		for (int from = 0; from < count; from += blockSize) {
+			Block block = new Block(previousHash);
+			for (Transaction transaction : transactions.subList(from, Math.min(from + blockSize, count))) {
+				block.addTransaction(transaction, inlineUtxos);
+			}
+			block.mineBlock(proofOfWork, miner);
+			previousHash = block.hash;
+			blocks++;
+		}
+		long inlineNanos = System.nanoTime() - start;
+
+		List<Block> mined = new ArrayList<Block>();
+		start = System.nanoTime();
+		BlockPipeline pipeline = new BlockPipeline(pipelineUtxos, List.of(genesis), proofOfWork, miner, blockSize,
+				50, mined::add);
+		for (byte[] record : encoded) {
+			pipeline.submit(record);
+		}
+		pipeline.close();
+		long pipelineNanos = System.nanoTime() - start;
+
+		System.setOut(out);
+		System.out.printf("inline:   %d blocks, %.0f transactions/s%n", blocks, count * 1e9 / inlineNanos);
+		System.out.printf("pipeline: %d blocks, %.0f transactions/s (%d rejected)%n", mined.size(),
+				count * 1e9 / pipelineNanos, pipeline.getInvalidSignatures() + pipeline.getConflicts());
+		for (BlockPipeline.StageStats stats : pipeline.getStats()) {
+			System.out.println("  " + stats);
+		}
+		miner.shutdown();
+	}
+}
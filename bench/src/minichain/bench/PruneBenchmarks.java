@@ -0,0 +1,275 @@
+package minichain.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import minichain.Amount;
+import minichain.Block;
+import minichain.BlockTree;
+import minichain.ChainIndex;
+import minichain.ChainPruner;
+import minichain.IncrementalValidator;
+import minichain.MiniChain;
+import minichain.ProofOfWork;
+import minichain.Transaction;
+import minichain.TransactionInput;
+import minichain.TransactionOutput;
+import minichain.UtxoView;
+import minichain.Wallet;
+
+/**
+ * Runs a long-lived chain of bench.pruneBlocks blocks (5000 by default) with
+ * bench.pruneWallets transfers each (20 by default), the way a node keeps it:
+ * a block tree with its validator and a chain index. Every wallet passes its
+ * whole balance on to the next one in each block, so all but the newest
+ * outputs are spent and the UTXO set stays small. The chain is built three
+ * times: with every block whole, pruned beyond a depth of 100 blocks, and
+ * pruned to a memory budget of 16 MB. Each run reports the live heap at the end,
+ * the largest heap left after a collection during the run, and the number and
+ * pauses of the collections, which are read from the notifications of the
+ * garbage collectors.
+ */
+public class PruneBenchmarks {
+
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+	private static final ProofOfWork PROOF_OF_WORK = ProofOfWork.fixed(4);
+
+	public static void run(Bench bench) {
+		int blocks = Integer.getInteger("bench.pruneBlocks", 5000);
+		int wallets = Integer.getInteger("bench.pruneWallets", 20);
+
+		boolean logging = MiniChain.logging;
+		MiniChain.logging = false;
+		try {
+			if (bench.enabled("prune.whole"))
+				bench.note("prune.whole: " + measure(blocks, wallets, 0, 0));
+			if (bench.enabled("prune.depth"))
+				bench.note("prune.depth: " + measure(blocks, wallets, 100, Long.MAX_VALUE));
+			if (bench.enabled("prune.budget"))
+				bench.note("prune.budget: " + measure(blocks, wallets, IncrementalValidator.DEFAULT_UNDO_DEPTH,
+						16 << 20));
+		} finally {
+			MiniChain.logging = logging;
+		}
+	}
+
+	/**
+	 * Builds a chain and measures the heap and the collections while it grows.
+	 *
+	 * @param depth        The pruning depth, 0 to keep every block whole
+	 * @param memoryBudget The memory budget of the pruner
+	 * @return A summary of the run
+	 */
+	private static String measure(int blocks, int wallets, int depth, long memoryBudget) {
+		List<Wallet> owners = new ArrayList<Wallet>(wallets);
+		for (int i = 0; i < wallets; i++) {
+			owners.add(new Wallet());
+		}
+		long before = usedHeap();
+
+		// A genesis block that pays every wallet
+		Transaction genesisTransaction = new Transaction(owners.get(0).publicKey, owners.get(0).publicKey,
+				Amount.coins(wallets), null);
+		genesisTransaction.generateSignature(owners.get(0).privateKey);
+		genesisTransaction.transactionId = "0";
+		for (int i = 0; i < wallets; i++) {
+			genesisTransaction.outputs.add(new TransactionOutput(owners.get(i).publicKey, Amount.COIN, "0", i));
+		}
+		Block genesis = new Block("0");
+		genesis.transactions.add(genesisTransaction);
+		genesis.mineBlock(PROOF_OF_WORK);
+
+		IncrementalValidator validator = new IncrementalValidator(genesis, genesisTransaction.outputs, PROOF_OF_WORK,
+				MiniChain.checkpointInterval, false);
+		List<Block> chain = new ArrayList<Block>();
+		BlockTree tree = new BlockTree(validator, chain);
+		ChainIndex index = new ChainIndex();
+		index.add(genesis, 0);
+		tree.addListener(new BlockTree.Listener() {
+			@Override
+			public void connected(Block block, int height) {
+				index.add(block, height);
+			}
+
+			@Override
+			public void disconnected(Block block, int height) {
+				index.remove(block, height);
+			}
+		});
+		ChainPruner pruner = null;
+		if (depth > 0) {
+			pruner = new ChainPruner(validator, tree, chain, depth, memoryBudget);
+			tree.addListener(pruner);
+		}
+
+		GcRecorder gc = new GcRecorder();
+		long start = System.nanoTime();
+		try {
+			for (int b = 0; b < blocks; b++) {
+				Block block = new Block(tree.getTip().hash);
+				block.target = tree.nextTarget(block.previousHash);
+				Pending pending = new Pending(validator.getUtxos());
+				for (int i = 0; i < wallets; i++) {
+					Wallet owner = owners.get(i);
+					ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+					long balance = 0;
+					for (TransactionOutput output : validator.getUtxos().outputsOf(owner.keyHandle)) {
+						inputs.add(new TransactionInput(output.id));
+						balance += output.value;
+					}
+					Transaction transfer = new Transaction(owner.publicKey, owners.get((i + 1) % wallets).publicKey,
+							balance, inputs);
+					transfer.generateSignature(owner.privateKey);
+					block.addTransaction(transfer, pending);
+				}
+				block.mineBlock(PROOF_OF_WORK);
+				if (tree.add(block) != BlockTree.Result.EXTENDED)
+					throw new IllegalStateException("Block " + b + " rejected: " + tree.getLastFailure());
+				if (pruner != null)
+					pruner.prune();
+			}
+		} finally {
+			gc.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long after = usedHeap();
+
+		if (!validator.revalidate(chain).isValid())
+			throw new IllegalStateException("The chain does not revalidate");
+		return String.format(
+				"%d blocks, %d transactions, %.1f MB live at the end (%d bytes per block), %.1f MB peak after a"
+						+ " collection, %d collections, pauses %.0f ms in total, %d ms at most, %.0f blocks/s,"
+						+ " %d bodies kept, %.2f MB of bodies estimated, %.2f MB retained estimated, %d UTXOs",
+				blocks, blocks * wallets, (after - before) / 1e6, (after - before) / blocks,
+				(gc.peakAfter - before) / 1e6, gc.count, (double) gc.totalMillis, gc.maxMillis, blocks / seconds,
+				pruner == null ? chain.size() : chain.size() - pruner.getFirstRetained(),
+				(pruner == null ? wholeBytes(chain) : pruner.getBodyBytes()) / 1e6,
+				(pruner == null ? wholeBytes(chain) + headerBytes(chain) : pruner.getRetainedBytes()) / 1e6,
+				validator.getUtxos().size());
+	}
+
+	private static long wholeBytes(List<Block> chain) {
+		long bytes = 0;
+		for (Block block : chain) {
+			bytes += ChainPruner.bodyBytes(block);
+		}
+		return bytes;
+	}
+
+	private static long headerBytes(List<Block> chain) {
+		long bytes = 0;
+		for (Block block : chain) {
+			bytes += ChainPruner.headerBytes(block);
+		}
+		return bytes;
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return MEMORY.getHeapMemoryUsage().getUsed();
+	}
+
+	// The outputs a block spends and creates on top of those at the tip.
+	private static class Pending implements UtxoView {
+		private final UtxoView tip;
+		private final HashMap<String, TransactionOutput> created = new HashMap<String, TransactionOutput>();
+		private final HashSet<String> spent = new HashSet<String>();
+
+		Pending(UtxoView tip) {
+			this.tip = tip;
+		}
+
+		@Override
+		public TransactionOutput get(String id) {
+			TransactionOutput output = created.get(id);
+			return output != null || spent.contains(id) ? output : tip.get(id);
+		}
+
+		@Override
+		public void put(TransactionOutput output) {
+			created.put(output.id, output);
+		}
+
+		@Override
+		public TransactionOutput remove(String id) {
+			TransactionOutput output = get(id);
+			if (created.remove(id) == null)
+				spent.add(id);
+			return output;
+		}
+	}
+
+	// Counts the collections that end while it is open, with their pauses and
+	// the heap left after them. Concurrent cycles of G1 and ZGC are not pauses
+	// and are left out.
+	private static class GcRecorder implements NotificationListener {
+		private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+		private final HashSet<String> heapPools = new HashSet<String>();
+		volatile int count;
+		volatile long totalMillis;
+		volatile long maxMillis;
+		volatile long peakAfter;
+
+		GcRecorder() {
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP)
+					heapPools.add(pool.getName());
+			}
+			for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+				if (collector instanceof NotificationEmitter emitter) {
+					emitter.addNotificationListener(this, null, null);
+					emitters.add(emitter);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void handleNotification(Notification notification, Object handback) {
+			if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+				return;
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+					.from((CompositeData) notification.getUserData());
+			if (info.getGcName().contains("Concurrent") || info.getGcName().contains("Cycles"))
+				return;
+
+			long millis = info.getGcInfo().getDuration();
+			count++;
+			totalMillis += millis;
+			maxMillis = Math.max(maxMillis, millis);
+			long used = 0;
+			for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+				if (heapPools.contains(pool.getKey()))
+					used += pool.getValue().getUsed();
+			}
+			peakAfter = Math.max(peakAfter, used);
+		}
+
+		void close() {
+			for (NotificationEmitter emitter : emitters) {
+				try {
+					emitter.removeNotificationListener(this);
+				} catch (Exception e) {
+					// already removed
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package minichain.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import minichain.Amount;
+import minichain.Block;
+import minichain.BlockTree;
+import minichain.IncrementalValidator;
+import minichain.ParallelMiner;
+import minichain.ProofOfWork;
+import minichain.Transaction;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.Wallet;
+
+/**
+ * Measures reorganizations of 1, 10 and 100 blocks on top of chains of 1000
+ * and 10,000 blocks. Two branches with one transfer per block grow from the
+ * tip of the chain, and each block that gives the other branch more work
+ * switches the main chain back and forth. The prefix blocks are empty, since
+ * only the blocks that are disconnected and connected should matter; the
+ * time must not grow with the length of the chain.
+ */
+public class ReorgBenchmarks {
+
+	private static final ProofOfWork NO_WORK = ProofOfWork.fixed(0); // any hash meets the target
+	private static final int SWITCHES = 10;
+
+	public static void run(Bench bench) {
+		for (int length : new int[] { 1000, 10_000 }) {
+			for (int depth : new int[] { 1, 10, 100 }) {
+				String name = "reorg." + length + "." + depth;
+				if (!bench.enabled(name))
+					continue;
+				long nanos = measure(length, depth);
+				bench.note(String.format("%s: %.3f ms per reorganization of %d-%d blocks", name, nanos / 1e6,
+						depth, depth + SWITCHES - 1));
+			}
+		}
+	}
+
+	/**
+	 * Builds a chain and two branches from its tip and switches between them.
+	 *
+	 * @param length The number of blocks before the fork, including the genesis
+	 *               block
+	 * @param depth  The length of the first branch when the second overtakes it
+	 * @return The average time of one reorganization in nanoseconds
+	 */
+	private static long measure(int length, int depth) {
+		UtxoSet utxos = new UtxoSet();
+		ParallelMiner miner = new ParallelMiner(1);
+		try {
+			Wallet walletA = new Wallet();
+			Wallet walletB = new Wallet();
+
+			Transaction genesisTransaction = new Transaction(walletA.publicKey, walletA.publicKey, Amount.coins(1000), null);
+			genesisTransaction.generateSignature(walletA.privateKey);
+			genesisTransaction.transactionId = "0";
+			genesisTransaction.outputs.add(new TransactionOutput(walletA.publicKey, Amount.coins(1000), "0"));
+			utxos.put(genesisTransaction.outputs.get(0));
+			List<TransactionOutput> genesisOutputs = genesisTransaction.outputs;
+
+			Block genesis = new Block("0");
+			genesis.addTransaction(genesisTransaction);
+			genesis.mineBlock(NO_WORK, miner);
+
+			IncrementalValidator validator = new IncrementalValidator(genesis, genesisOutputs, NO_WORK, 1000, false);
+			BlockTree tree = new BlockTree(validator, new ArrayList<Block>());
+			Block tip = genesis;
+			for (int i = 1; i < length; i++) {
+				Block block = new Block(tip.hash);
+				block.mineBlock(NO_WORK, miner);
+				tree.add(block);
+				tip = block;
+			}
+
+			// Both branches start from the outputs at the fork
+			List<Block> first = branch(tip, depth + SWITCHES, walletA, walletB, utxos.copy(), miner);
+			List<Block> second = branch(tip, depth + SWITCHES, walletA, walletB, utxos.copy(), miner);
+
+			for (int i = 0; i < depth; i++) {
+				tree.add(first.get(i));
+				tree.add(second.get(i));
+			}
+
+			// Every block of the branch that is behind by one block ties it, and the
+			// next one overtakes the main chain
+			long total = 0;
+			List<Block> behind = second;
+			for (int i = depth; i < depth + SWITCHES; i++) {
+				long start = System.nanoTime();
+				BlockTree.Result result = tree.add(behind.get(i));
+				total += System.nanoTime() - start;
+				if (result != BlockTree.Result.REORGANIZED)
+					throw new IllegalStateException("Expected a reorganization, got " + result);
+
+				behind = behind == first ? second : first;
+				if (tree.add(behind.get(i)) != BlockTree.Result.SIDE_BRANCH)
+					throw new IllegalStateException("Expected a side branch");
+			}
+			return total / SWITCHES;
+		} finally {
+			miner.shutdown();
+		}
+	}
+
+	// Mines blocks on top of the given one, whose unspent outputs are given, in
+	// which the wallets pass a coin back and forth.
+	private static List<Block> branch(Block from, int length, Wallet walletA, Wallet walletB, UtxoSet utxos,
+			ParallelMiner miner) {
+		List<Block> blocks = new ArrayList<Block>(length);
+		Block previous = from;
+		for (int i = 0; i < length; i++) {
+			Wallet sender = i % 2 == 0 ? walletA : walletB;
+			Wallet recipient = i % 2 == 0 ? walletB : walletA;
+			Block block = new Block(previous.hash);
+			block.addTransaction(sender.sendFunds(recipient.publicKey, Amount.COIN, utxos), utxos);
+			block.mineBlock(NO_WORK, miner);
+			blocks.add(block);
+			previous = block;
+		}
+		return blocks;
+	}
+}
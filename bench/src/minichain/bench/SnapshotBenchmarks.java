@@ -0,0 +1,150 @@
+package minichain.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import minichain.Amount;
+import minichain.Block;
+import minichain.BlockStore;
+import minichain.ProofOfWork;
+import minichain.StringUtil;
+import minichain.Transaction;
+import minichain.TransactionInput;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.UtxoSnapshot;
+import minichain.Wallet;
+
+/**
+ * Compares a cold start from a UTXO snapshot with a full replay of the block
+ * store. The store holds 1000 blocks with 1,000,000 transfers between 1000
+ * wallets in total, and the snapshot is taken ten blocks before the tip. The
+ * number of transfers can be lowered with the bench.snapshotTransactions
+ * system property. Replay does not check signatures, so the transfers are left
+ * unsigned.
+ */
+public class SnapshotBenchmarks {
+
+	private static final ProofOfWork NO_WORK = ProofOfWork.fixed(0); // any hash meets the target
+
+	public static void run(Bench bench) {
+		int count = Integer.getInteger("bench.snapshotTransactions", 1_000_000);
+		int perBlock = Math.max(1, count / 1000);
+
+		Path directory;
+		try {
+			directory = Files.createTempDirectory("minichain-snapshot");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Path snapshot = directory.resolve("utxo.snapshot");
+		Path missing = directory.resolve("missing.snapshot");
+
+		try {
+			int snapshotHeight = build(directory.resolve("blocks"), snapshot, count, perBlock);
+			try (BlockStore store = new BlockStore(directory.resolve("blocks"))) {
+				UtxoSet utxos = UtxoSnapshot.restore(missing, store);
+				bench.note(String.format("snapshot of %d outputs at height %d of %d: %.1f MB", utxos.size(),
+						snapshotHeight, store.size() - 1, Files.size(snapshot) / 1e6));
+			}
+
+			bench.run("snapshot.fullReplay", () -> {
+				try (BlockStore store = new BlockStore(directory.resolve("blocks"))) {
+					return UtxoSnapshot.restore(missing, store).size();
+				}
+			});
+			bench.run("snapshot.coldStart", () -> {
+				try (BlockStore store = new BlockStore(directory.resolve("blocks"))) {
+					return UtxoSnapshot.restore(snapshot, store).size();
+				}
+			});
+			bench.run("snapshot.read", () -> UtxoSnapshot.read(snapshot).utxos.size());
+
+			UtxoSet utxos = UtxoSnapshot.read(snapshot).utxos;
+			Path written = directory.resolve("written.snapshot");
+			bench.run("snapshot.write", () -> {
+				UtxoSnapshot.write(written, utxos, snapshotHeight, StringUtil.applySha256("tip"));
+				return written;
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			delete(directory);
+		}
+	}
+
+	// Writes a chain of transfers to a block store and a snapshot ten blocks
+	// before its tip, and returns the height of the snapshot.
+	private static int build(Path blocks, Path snapshot, int count, int perBlock) {
+		Wallet[] wallets = new Wallet[1000];
+		for (int i = 0; i < wallets.length; i++) {
+			wallets[i] = new Wallet();
+		}
+
+		UtxoSet utxos = new UtxoSet();
+		List<TransactionOutput> unspent = new ArrayList<TransactionOutput>();
+		Random random = new Random(42);
+		int snapshotHeight = -1;
+
+		try (BlockStore store = new BlockStore(blocks)) {
+			Transaction genesisTransaction = new Transaction(null, null, Amount.coins(wallets.length), null);
+			genesisTransaction.transactionId = "0";
+			for (Wallet wallet : wallets) {
+				genesisTransaction.outputs.add(new TransactionOutput(wallet.publicKey, Amount.COIN, "0"));
+			}
+			Block block = new Block("0");
+			block.transactions.add(genesisTransaction);
+			block.mineBlock(NO_WORK);
+			store.append(block);
+			utxos.apply(block);
+			unspent.addAll(genesisTransaction.outputs);
+
+			int lastHeight = (count + perBlock - 1) / perBlock;
+			for (int height = 1, created = 0; created < count; height++) {
+				block = new Block(block.hash);
+				for (int t = 0; t < perBlock && created < count; t++, created++) {
+					int spent = random.nextInt(unspent.size());
+					TransactionOutput input = unspent.get(spent);
+					unspent.set(spent, unspent.get(unspent.size() - 1));
+					unspent.remove(unspent.size() - 1);
+
+					ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+					inputs.add(new TransactionInput(input.id));
+					Wallet to = wallets[random.nextInt(wallets.length)];
+					long value = input.value / 2;
+					Transaction transaction = new Transaction(input.reciepient, to.publicKey, value, inputs);
+					transaction.transactionId = StringUtil.applySha256("transaction" + created);
+					transaction.outputs.add(new TransactionOutput(to.publicKey, value, transaction.transactionId));
+					transaction.outputs.add(
+							new TransactionOutput(input.reciepient, input.value - value, transaction.transactionId));
+					unspent.addAll(transaction.outputs);
+					block.transactions.add(transaction);
+				}
+				block.mineBlock(NO_WORK);
+				store.append(block);
+				utxos.apply(block);
+
+				if (height == Math.max(0, lastHeight - 10)) {
+					UtxoSnapshot.write(snapshot, utxos, height, block.hash);
+					snapshotHeight = height;
+				}
+			}
+		}
+		return snapshotHeight;
+	}
+
+	private static void delete(Path directory) {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package minichain.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import minichain.Amount;
+import minichain.Block;
+import minichain.ChainValidator;
+import minichain.IncrementalValidator;
+import minichain.ParallelMiner;
+import minichain.ProofOfWork;
+import minichain.Transaction;
+import minichain.TransactionOutput;
+import minichain.UtxoSet;
+import minichain.Wallet;
+
+/**
+ * Benchmarks full chain validation on synthetic chains of 10, 100 and 1000
+ * blocks with one transfer per block, with sequential and parallel signature
+ * checks. The incremental benchmarks append the same chain block by block, and
+ * revalidate the chain from its last checkpoint, taken every 100 blocks.
+ */
+public class ValidationBenchmarks {
+
+	static final ProofOfWork PROOF_OF_WORK = ProofOfWork.fixed(4);
+	static final int CHECKPOINT_INTERVAL = 100;
+
+	public static void run(Bench bench) {
+		for (int length : new int[] { 10, 100, 1000 }) {
+			String name = "validation.isChainValid." + length;
+			if (!bench.enabled(name))
+				continue;
+
+			List<TransactionOutput> genesisOutputs = new ArrayList<TransactionOutput>();
+			List<Block> chain = chain(length, genesisOutputs);
+			bench.run(name,
+					() -> new ChainValidator(false).validate(chain, genesisOutputs, PROOF_OF_WORK).isValid());
+			bench.run(name + ".parallel",
+					() -> new ChainValidator(true).validate(chain, genesisOutputs, PROOF_OF_WORK).isValid());
+
+			bench.run("validation.incremental." + length, () -> {
+				IncrementalValidator validator = new IncrementalValidator(chain.get(0), genesisOutputs, PROOF_OF_WORK,
+						CHECKPOINT_INTERVAL, false);
+				for (int i = 1; i < chain.size(); i++) {
+					if (!validator.validate(chain.get(i)).isValid())
+						return false;
+				}
+				return true;
+			});
+
+			IncrementalValidator validator = new IncrementalValidator(chain.get(0), genesisOutputs, PROOF_OF_WORK,
+					CHECKPOINT_INTERVAL, false);
+			for (int i = 1; i < chain.size(); i++) {
+				validator.validate(chain.get(i));
+			}
+			bench.run("validation.revalidate." + length, () -> validator.revalidate(chain).isValid());
+		}
+	}
+
+	/**
+	 * Builds a valid chain in which two wallets pass coins back and forth.
+	 * 
+	 * @param length         The number of blocks, including the genesis block
+	 * @param genesisOutputs Receives the outputs of the genesis transaction
+	 * @return The mined chain
+	 */
+	static List<Block> chain(int length, List<TransactionOutput> genesisOutputs) {
+		UtxoSet utxos = new UtxoSet();
+		ParallelMiner miner = new ParallelMiner(1);
+		try {
+			Wallet walletA = new Wallet();
+			Wallet walletB = new Wallet();
+
+			Transaction genesisTransaction = new Transaction(walletA.publicKey, walletA.publicKey, Amount.coins(1000), null);
+			genesisTransaction.generateSignature(walletA.privateKey);
+			genesisTransaction.transactionId = "0";
+			genesisTransaction.outputs.add(new TransactionOutput(walletA.publicKey, Amount.coins(1000), "0"));
+			utxos.put(genesisTransaction.outputs.get(0));
+			genesisOutputs.addAll(genesisTransaction.outputs);
+
+			List<Block> chain = new ArrayList<Block>(length);
+			Block genesis = new Block("0");
+			genesis.addTransaction(genesisTransaction);
+			genesis.mineBlock(PROOF_OF_WORK, miner);
+			chain.add(genesis);
+
+			for (int i = 1; i < length; i++) {
+				Wallet from = i % 2 == 1 ? walletA : walletB;
+				Wallet to = i % 2 == 1 ? walletB : walletA;
+				Block block = new Block(chain.get(i - 1).hash);
+				block.addTransaction(from.sendFunds(to.publicKey, Amount.COIN, utxos), utxos);
+				block.mineBlock(PROOF_OF_WORK, miner);
+				chain.add(block);
+			}
+			return chain;
+		} finally {
+			miner.shutdown();
+		}
+	}
+}
@@ -0,0 +1,7 @@
+module minichain.bench {
+	requires minichain;
+	requires jdk.management;
+	requires java.net.http;
+	requires gson;
+	requires org.bouncycastle.provider;
+}
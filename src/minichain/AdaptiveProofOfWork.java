@@ -0,0 +1,112 @@
+package minichain;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * The AdaptiveProofOfWork class retargets every block from the timestamps of
+ * a sliding window of the blocks before it, so blocks keep arriving at the
+ * chosen interval as the hash rate changes:
+ *
+ * <pre>
+ * next target = average target of the last n blocks * actual time of the last n blocks / (n * interval)
+ * </pre>
+ *
+ * where n is the window, or fewer blocks near the genesis block. The actual
+ * time is clamped to a quarter and four times the expected time, so a single
+ * odd timestamp cannot move the target far, and the target never becomes
+ * easier than zero leading bits. Averaging the targets of the window instead
+ * of scaling only the last one keeps the target from overshooting. Unlike the
+ * old hex difficulty, the target changes in small steps rather than by factors
+ * of 16.
+ *
+ * The timestamps come from the miners, so the {@link ChainValidator} bounds
+ * them: a block may not be earlier than the median of the blocks before it,
+ * nor more than one window of intervals ahead of local time.
+ */
+public class AdaptiveProofOfWork implements ProofOfWork {
+
+	private static final BigInteger MAX_TARGET = Target.toBigInteger(Target.ofZeroBits(0));
+
+	private final HashFunction hashFunction;
+	private final int initialTarget;
+	private final int window;
+	private final long blockMillis;
+
+	/**
+	 * Creates a proof of work.
+	 *
+	 * @param hashFunction  The function block headers are hashed with
+	 * @param initialTarget The compact target of the first blocks
+	 * @param window        The number of block intervals the target is computed
+	 *                      from, or 0 to keep the initial target
+	 * @param blockMillis   The desired time between blocks, in milliseconds
+	 */
+	public AdaptiveProofOfWork(HashFunction hashFunction, int initialTarget, int window, long blockMillis) {
+		if (window < 0)
+			throw new IllegalArgumentException("window must not be negative");
+		if (window > 0 && blockMillis < 1)
+			throw new IllegalArgumentException("blockMillis must be at least 1");
+
+		this.hashFunction = hashFunction;
+		this.initialTarget = initialTarget;
+		this.window = window;
+		this.blockMillis = blockMillis;
+	}
+
+	@Override
+	public HashFunction getHashFunction() {
+		return hashFunction;
+	}
+
+	@Override
+	public int getInitialTarget() {
+		return initialTarget;
+	}
+
+	@Override
+	public int getWindow() {
+		return window;
+	}
+
+	public long getBlockMillis() {
+		return blockMillis;
+	}
+
+	// A miner can only stretch the time of a window by this much, so the target
+	// becomes at most twice as easy however far ahead it stamps its blocks.
+	@Override
+	public long getMaxFutureMillis() {
+		if (window == 0)
+			return ProofOfWork.super.getMaxFutureMillis();
+		return window * blockMillis;
+	}
+
+	@Override
+	public int nextTarget(List<Block> previous, int height) {
+		if (window == 0 || height == 0)
+			return initialTarget;
+
+		int n = Math.min(window, height - 1); // the genesis block has no interval before it
+		if (previous.size() < n + 1)
+			throw new IllegalArgumentException(
+					"The target at height " + height + " needs the " + (n + 1) + " blocks before it");
+
+		int last = previous.size() - 1;
+		if (n == 0)
+			return previous.get(last).target;
+
+		BigInteger sum = BigInteger.ZERO;
+		for (int i = last - n + 1; i <= last; i++) {
+			sum = sum.add(Target.toBigInteger(previous.get(i).target));
+		}
+
+		long expected = n * blockMillis;
+		long actual = previous.get(last).getTimeStamp() - previous.get(last - n).getTimeStamp();
+		actual = Math.max(expected / 4, Math.min(expected * 4, actual));
+
+		BigInteger next = sum.multiply(BigInteger.valueOf(actual))
+				.divide(BigInteger.valueOf(n).multiply(BigInteger.valueOf(expected)));
+		return Target.compact(next.max(BigInteger.ONE).min(MAX_TARGET));
+	}
+}
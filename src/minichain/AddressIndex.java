@@ -0,0 +1,455 @@
+package minichain;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The AddressIndex class keeps the transaction history of every key on the
+ * main chain: for each owner, the transactions that touched it, oldest first,
+ * with the height of their block, the transaction id, whether the owner
+ * received or sent coins, and the amount. It is updated block by block as a
+ * listener of the block tree, and a block that leaves the main chain takes its
+ * entries with it, so the history stays complete after the outputs are spent
+ * and after the block bodies are pruned.
+ *
+ * The amount of an entry is the net change of the owner's balance, the outputs
+ * the transaction pays to the owner minus the inputs it spends. The sender of
+ * a payment to itself has a SENT entry of 0.
+ *
+ * Each entry takes six longs in primitive arrays of up to 1024 entries per
+ * owner, with the id of a transaction in four of them as in {@link Hash}.
+ * Histories are read from a cursor, the height of an entry and its index among
+ * the entries of its owner at that height, see {@link #cursor}. A
+ * reorganization only changes the entries at the heights it replaced, so a
+ * cursor still points to the same entries below them rather than to an array
+ * position that has moved. {@link #history} returns a lazy stream that copies
+ * a batch of entries at a time under the read lock, so a history of millions
+ * of entries can be walked in constant memory, and {@link #page} returns one
+ * page together with the cursor of the next.
+ */
+public class AddressIndex implements BlockTree.Listener {
+
+	public enum Direction {
+		RECEIVED, SENT
+	}
+
+	private static final KeyRegistry KEYS = KeyRegistry.INSTANCE;
+	private static final int WORDS = 6; // longs per entry: height and flags, amount, id
+	private static final int CHUNK = 1024; // entries per array, the first one grows up to it
+	private static final int BATCH = 256; // entries a stream copies at a time
+	private static final long SENT = 1; // flags in the low bits of the first word
+	private static final long TEXT_ID = 2; // the id is not a hash, a is its index in textIds
+
+	private Owner[] owners = new Owner[16]; // indexed by key id
+	private final ArrayList<String> textIds = new ArrayList<String>(); // e.g. the "0" of the genesis transaction
+	private long size;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// The history of one owner in arrays of CHUNK entries.
+	private static final class Owner {
+		final ArrayList<long[]> chunks = new ArrayList<long[]>();
+		int size;
+
+		void append(long meta, long amount, long a, long b, long c, long d) {
+			int chunk = size / CHUNK;
+			int offset = size % CHUNK * WORDS;
+			if (chunk == chunks.size())
+				chunks.add(new long[(chunk == 0 ? 4 : CHUNK) * WORDS]);
+			long[] words = chunks.get(chunk);
+			if (offset == words.length) {
+				words = Arrays.copyOf(words, words.length * 2);
+				chunks.set(chunk, words);
+			}
+			words[offset] = meta;
+			words[offset + 1] = amount;
+			words[offset + 2] = a;
+			words[offset + 3] = b;
+			words[offset + 4] = c;
+			words[offset + 5] = d;
+			size++;
+		}
+
+		long word(int position, int word) {
+			return chunks.get(position / CHUNK)[position % CHUNK * WORDS + word];
+		}
+
+		int height(int position) {
+			return (int) (word(position, 0) >>> 32);
+		}
+
+		// Returns the position of the first entry at or above the height.
+		int find(long height) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (height(middle) < height)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+
+		// Returns the position of the entry a cursor points to, or of the first
+		// entry after it if the owner has fewer entries at its height.
+		int position(long cursor) {
+			long height = cursor >>> 32;
+			int first = find(height);
+			return (int) Math.min(first + (cursor & 0xFFFFFFFFL), find(height + 1));
+		}
+
+		// Drops the entries from the given position on.
+		void truncate(int position) {
+			size = position;
+			while (chunks.size() > (size + CHUNK - 1) / CHUNK) {
+				chunks.remove(chunks.size() - 1);
+			}
+		}
+	}
+
+	@Override
+	public void connected(Block block, int height) {
+		add(block, height);
+	}
+
+	@Override
+	public void disconnected(Block block, int height) {
+		remove(block, height);
+	}
+
+	/**
+	 * Adds the transactions of a block appended at the given height to the
+	 * histories of the keys they touch. The inputs of the transactions must be
+	 * resolved, as they are once the block has been validated.
+	 *
+	 * @param block  The block
+	 * @param height The height of the block in the chain
+	 */
+	public void add(Block block, int height) {
+		HashMap<Integer, Long> changes = new HashMap<Integer, Long>();
+		lock.writeLock().lock();
+		try {
+			for (Transaction transaction : block.transactions) {
+				changes.clear();
+				long spent = transaction.inputs == null ? 0 : transaction.getInputsValue();
+				changes.put(KEYS.intern(transaction.getSenderHandle()), -spent);
+				for (TransactionOutput output : transaction.outputs) {
+					changes.merge(KEYS.intern(output.getOwner()), output.value, Long::sum);
+				}
+
+				long a, b, c, d, flags;
+				Hash id = Hash.parse(transaction.transactionId);
+				if (id != null) {
+					a = id.a;
+					b = id.b;
+					c = id.c;
+					d = id.d;
+					flags = 0;
+				} else {
+					a = textIds.size();
+					b = c = d = 0;
+					flags = TEXT_ID;
+					textIds.add(transaction.transactionId);
+				}
+				for (Map.Entry<Integer, Long> change : changes.entrySet()) {
+					long amount = change.getValue();
+					long meta = (long) height << 32 | flags | (amount > 0 ? 0 : SENT);
+					owner(change.getKey()).append(meta, Math.abs(amount), a, b, c, d);
+					size++;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private Owner owner(int id) {
+		if (id >= owners.length)
+			owners = Arrays.copyOf(owners, Math.max(id + 1, owners.length * 2));
+		Owner owner = owners[id];
+		if (owner == null) {
+			owner = new Owner();
+			owners[id] = owner;
+		}
+		return owner;
+	}
+
+	/**
+	 * Removes the entries of a block that left the main chain from the histories
+	 * of the keys it touched. Blocks are removed from the tip down.
+	 *
+	 * @param block  The block
+	 * @param height The height the block had
+	 */
+	public void remove(Block block, int height) {
+		lock.writeLock().lock();
+		try {
+			for (Transaction transaction : block.transactions) {
+				truncate(KEYS.find(transaction.getSenderHandle()), height);
+				for (TransactionOutput output : transaction.outputs) {
+					truncate(KEYS.find(output.getOwner()), height);
+				}
+				// The text ids of the block are the last ones added
+				if (Hash.parse(transaction.transactionId) == null && !textIds.isEmpty())
+					textIds.remove(textIds.size() - 1);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Drops the entries of an owner from the given height on.
+	private void truncate(int id, int height) {
+		if (id < 0 || id >= owners.length || owners[id] == null)
+			return;
+		Owner owner = owners[id];
+		int position = owner.size;
+		while (position > 0 && owner.height(position - 1) >= height) {
+			position--;
+		}
+		size -= owner.size - position;
+		owner.truncate(position);
+	}
+
+	/**
+	 * Returns the cursor of an entry in a history.
+	 *
+	 * @param height The height of the entry
+	 * @param index  The index of the entry among those of its owner at that
+	 *               height, 0 for the first
+	 * @return The cursor, 0 for the oldest entry of every history
+	 */
+	public static long cursor(int height, int index) {
+		if (height < 0 || index < 0)
+			throw new IllegalArgumentException("The height and index must not be negative");
+		return (long) height << 32 | index;
+	}
+
+	/**
+	 * Streams the history of a key from a cursor on, oldest first. The entries
+	 * are read lazily, a batch at a time, so a stream that is not consumed to the
+	 * end reads no more than it needs. Blocks appended while the stream is open
+	 * are included.
+	 *
+	 * @param key    The public key
+	 * @param cursor The cursor of the first entry, 0 for the oldest
+	 * @return The entries
+	 */
+	public Stream<Entry> history(PublicKey key, long cursor) {
+		if (cursor < 0 || (cursor & 0xFFFFFFFFL) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Not a cursor: " + cursor);
+		return StreamSupport.stream(new HistorySpliterator(KEYS.find(KeyHandle.of(key)), cursor), false);
+	}
+
+	/**
+	 * Returns a page of the history of a key.
+	 *
+	 * @param key    The public key
+	 * @param cursor The cursor of the first entry, 0 for the oldest, or the
+	 *               cursor of the previous page
+	 * @param limit  The maximum number of entries
+	 * @return The entries and the cursor of the next page
+	 */
+	public Page page(PublicKey key, long cursor, int limit) {
+		if (limit < 1)
+			throw new IllegalArgumentException("The limit must be at least 1");
+		List<Entry> entries = history(key, cursor).limit(limit + 1).toList();
+		if (entries.size() <= limit)
+			return new Page(entries, entries.isEmpty() ? cursor : entries.get(entries.size() - 1).cursor + 1, false);
+		return new Page(entries.subList(0, limit), entries.get(limit).cursor, true);
+	}
+
+	// Returns the number of entries in the history of a key.
+	public int count(PublicKey key) {
+		int id = KEYS.find(KeyHandle.of(key));
+		lock.readLock().lock();
+		try {
+			return id < 0 || id >= owners.length || owners[id] == null ? 0 : owners[id].size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Returns the number of entries of all keys.
+	public long size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Returns the bytes held by the arrays of the histories.
+	public long memoryBytes() {
+		lock.readLock().lock();
+		try {
+			long bytes = (long) owners.length * 4;
+			for (Owner owner : owners) {
+				if (owner == null)
+					continue;
+				for (long[] chunk : owner.chunks) {
+					bytes += 16 + chunk.length * 8L;
+				}
+			}
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	private Entry entry(long[] buffer, int index, long cursor) {
+		int offset = index * WORDS;
+		long meta = buffer[offset];
+		Hash hash = null;
+		String text = null;
+		if ((meta & TEXT_ID) != 0) {
+			lock.readLock().lock();
+			try {
+				text = textIds.get((int) buffer[offset + 2]);
+			} finally {
+				lock.readLock().unlock();
+			}
+		} else {
+			hash = new Hash(buffer[offset + 2], buffer[offset + 3], buffer[offset + 4], buffer[offset + 5]);
+		}
+		return new Entry((int) (meta >>> 32), hash, text, (meta & SENT) != 0 ? Direction.SENT : Direction.RECEIVED,
+				buffer[offset + 1], cursor);
+	}
+
+	// Reads the history of one owner a batch at a time. Between batches it keeps
+	// a cursor rather than a position, so a reorganization in between does not
+	// make it skip or repeat entries below the heights it replaced.
+	private final class HistorySpliterator implements Spliterator<Entry> {
+		private final int id;
+		private long cursor; // of the next entry to read from the index
+		private final long[] buffer = new long[BATCH * WORDS];
+		private final long[] cursors = new long[BATCH];
+		private int buffered;
+		private int next; // in the buffer
+
+		HistorySpliterator(int id, long cursor) {
+			this.id = id;
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Entry> action) {
+			if (next == buffered) {
+				buffered = read();
+				next = 0;
+				if (buffered == 0)
+					return false;
+				cursor = cursors[buffered - 1] + 1; // clamped to the next height when read
+			}
+			action.accept(entry(buffer, next, cursors[next++]));
+			return true;
+		}
+
+		// Copies up to a batch of entries from the cursor on into the buffer,
+		// together with their cursors, and returns how many there were.
+		private int read() {
+			lock.readLock().lock();
+			try {
+				if (id < 0 || id >= owners.length || owners[id] == null)
+					return 0;
+				Owner owner = owners[id];
+				int position = owner.position(cursor);
+				int read = Math.min(BATCH, owner.size - position);
+				int height = -1;
+				int index = 0;
+				for (int i = 0; i < read; i++) {
+					int from = position + i;
+					System.arraycopy(owner.chunks.get(from / CHUNK), from % CHUNK * WORDS, buffer, i * WORDS, WORDS);
+					if (i == 0) {
+						height = owner.height(from);
+						index = from - owner.find(height);
+					} else if (owner.height(from) == height) {
+						index++;
+					} else {
+						height = owner.height(from);
+						index = 0;
+					}
+					cursors[i] = cursor(height, index);
+				}
+				return read;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public Spliterator<Entry> trySplit() {
+			return null; // the history is read in order
+		}
+
+		@Override
+		public long estimateSize() {
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+	}
+
+	/**
+	 * A transaction in the history of a key.
+	 */
+	public static final class Entry {
+		public final int height;
+		public final Direction direction;
+		public final long amount; // the net change of the balance, always positive or 0
+		public final long cursor; // reads the history from this entry on
+		private final Hash hash; // the id, written out when it is first asked for
+		private String transactionId;
+
+		Entry(int height, Hash hash, String transactionId, Direction direction, long amount, long cursor) {
+			this.height = height;
+			this.hash = hash;
+			this.transactionId = transactionId;
+			this.direction = direction;
+			this.amount = amount;
+			this.cursor = cursor;
+		}
+
+		public String getTransactionId() {
+			if (transactionId == null)
+				transactionId = hash.toString();
+			return transactionId;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + height + " " + getTransactionId() + " " + direction + " " + Amount.toString(amount);
+		}
+	}
+
+	/**
+	 * Entries of a history and the cursor that continues after them.
+	 */
+	public static final class Page {
+		public final List<Entry> entries;
+		public final long next; // the cursor of the next page
+		public final boolean more; // whether the history had more entries when the page was read
+
+		Page(List<Entry> entries, long next, boolean more) {
+			this.entries = entries;
+			this.next = next;
+			this.more = more;
+		}
+	}
+}
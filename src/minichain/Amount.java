@@ -0,0 +1,60 @@
+package minichain;
+
+import java.math.BigDecimal;
+
+/**
+ * The Amount class holds the helpers for amounts of coins. Amounts are plain
+ * longs counting the smallest unit, one hundred millionth of a coin, so they
+ * are added exactly, sums do not depend on the order they are taken in and
+ * every amount has a single encoding for hashing and signing.
+ * 
+ * All arithmetic is checked and throws an ArithmeticException instead of
+ * silently overflowing.
+ */
+public final class Amount {
+
+	public static final int DECIMALS = 8;
+	public static final long COIN = 100_000_000L; // units in one coin
+
+	private Amount() {
+	}
+
+	// Returns the amount for a whole number of coins.
+	public static long coins(long coins) {
+		return Math.multiplyExact(coins, COIN);
+	}
+
+	/**
+	 * Parses a decimal number of coins such as "12.5".
+	 * 
+	 * @param coins The number of coins, with at most eight decimals
+	 * @return The amount
+	 * @throws ArithmeticException if the number has more than eight decimals or
+	 *                             does not fit
+	 */
+	public static long parse(String coins) {
+		return new BigDecimal(coins).movePointRight(DECIMALS).longValueExact();
+	}
+
+	public static long add(long a, long b) {
+		return Math.addExact(a, b);
+	}
+
+	public static long subtract(long a, long b) {
+		return Math.subtractExact(a, b);
+	}
+
+	// Returns the sum of the amounts.
+	public static long sum(long[] amounts) {
+		long total = 0;
+		for (long amount : amounts) {
+			total = Math.addExact(total, amount);
+		}
+		return total;
+	}
+
+	// Formats the amount as a number of coins without trailing zeros.
+	public static String toString(long amount) {
+		return BigDecimal.valueOf(amount, DECIMALS).stripTrailingZeros().toPlainString();
+	}
+}
@@ -0,0 +1,420 @@
+package minichain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The ApiServer class serves the chain of a {@link Node} over HTTP with JSON
+ * responses. Every request runs on a virtual thread of its own.
+ *
+ * <pre>
+ * GET  /tip                  the hash and height of the tip
+ * GET  /balance/{key}        the balance of a key at the tip
+ * GET  /blocks/{hash}        a block of the main chain
+ * GET  /transactions/{id}    a transaction of the main chain
+ * GET  /history/{key}        a page of the transactions that touched a key,
+ *                            ?cursor= where the page starts, the next of the
+ *                            previous page, ?limit= its size
+ * POST /transactions         submits a transaction encoded with BlockCodec, of
+ *                            at most 1 MB
+ * </pre>
+ *
+ * Keys are written as the hexadecimal compressed point, see
+ * {@link CryptoService#compressKey}. The responses to GET requests are kept in
+ * a bounded cache, which is cleared whenever a block is connected to or
+ * disconnected from the main chain of the node. All responses are written by
+ * one shared Gson instance.
+ */
+public class ApiServer {
+
+	private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create(); // thread-safe
+	private static final int BACKLOG = 4096; // pending connections, capped by the OS
+	private static final int DEFAULT_PAGE = 100; // history entries per page
+	private static final int MAX_PAGE = 1000;
+	private static final int MAX_BODY = 1 << 20; // bytes of a posted transaction
+
+	private final Node node;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private final Cache cache;
+
+	/**
+	 * Creates a server for a node. It accepts requests once it is started.
+	 *
+	 * @param node      The node whose chain is served
+	 * @param address   The address to listen on, port 0 for any free port
+	 * @param cacheSize The number of GET responses cached, 0 for none
+	 * @throws IOException if the address cannot be bound
+	 */
+	public ApiServer(Node node, InetSocketAddress address, int cacheSize) throws IOException {
+		this.node = node;
+		this.cache = new Cache(cacheSize);
+		this.server = HttpServer.create(address, BACKLOG);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		node.addListener(new BlockTree.Listener() {
+			@Override
+			public void connected(Block block, int height) {
+				cache.invalidate();
+			}
+
+			@Override
+			public void disconnected(Block block, int height) {
+				cache.invalidate();
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	// Stops accepting requests and waits up to a second for those in progress.
+	public void stop() {
+		server.stop(1);
+		executor.shutdown();
+	}
+
+	// Returns the port the server listens on.
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		try {
+			String path = exchange.getRequestURI().getPath();
+			Response response;
+			if (exchange.getRequestMethod().equals("GET"))
+				response = get(path, exchange.getRequestURI().getRawQuery());
+			else if (exchange.getRequestMethod().equals("POST"))
+				response = post(path, exchange);
+			else
+				response = error(405, "Method not allowed");
+			send(exchange, response);
+		} catch (RuntimeException e) {
+			send(exchange, error(500, String.valueOf(e.getMessage())));
+		} finally {
+			exchange.close();
+			Metrics.apiNanos.record(System.nanoTime() - start);
+		}
+	}
+
+	// Answers from the cache, or queries the node and caches the answer unless a
+	// block was appended meanwhile.
+	private Response get(String path, String parameters) {
+		String key = parameters == null ? path : path + "?" + parameters;
+		long generation = cache.generation();
+		Response response = cache.get(key);
+		if (response != null) {
+			Metrics.apiCacheHits.increment();
+			return response;
+		}
+		Metrics.apiCacheMisses.increment();
+
+		response = query(path, parameters);
+		if (response.status == 200 || response.status == 404)
+			cache.put(key, response, generation);
+		return response;
+	}
+
+	private Response query(String path, String parameters) {
+		try {
+			if (path.equals("/tip")) {
+				Block tip = node.getTip();
+				return json(200, new TipDto(tip.hash, node.getHeightOf(tip.hash)));
+			}
+			if (path.startsWith("/balance/")) {
+				String key = path.substring("/balance/".length());
+				PublicKey owner = CryptoService.decompressKey(HexFormat.of().parseHex(key));
+				return json(200, new BalanceDto(key, node.getBalance(owner)));
+			}
+			if (path.startsWith("/blocks/")) {
+				String hash = path.substring("/blocks/".length());
+				int height = node.getHeightOf(hash);
+				Block block = node.getBlock(height);
+				if (block == null || !block.hash.equals(hash))
+					return error(404, "No block " + hash + " on the main chain");
+				return json(200, new BlockDto(block, height));
+			}
+			if (path.startsWith("/transactions/")) {
+				String id = path.substring("/transactions/".length());
+				Transaction transaction = node.getTransaction(id);
+				if (transaction == null)
+					return error(404, "No transaction " + id + " on the main chain");
+				return json(200, new TransactionDto(transaction));
+			}
+			if (path.startsWith("/history/")) {
+				String key = path.substring("/history/".length());
+				PublicKey owner = CryptoService.decompressKey(HexFormat.of().parseHex(key));
+				long cursor = parameter(parameters, "cursor", 0);
+				long limit = parameter(parameters, "limit", DEFAULT_PAGE);
+				if (limit < 1 || limit > MAX_PAGE)
+					return error(400, "The limit must be from 1 to " + MAX_PAGE);
+				return json(200, new HistoryDto(key, node.getHistory(owner, cursor, (int) limit)));
+			}
+			return error(404, "Not found");
+		} catch (IllegalArgumentException e) {
+			return error(400, e.getMessage());
+		}
+	}
+
+	// Reads a number from the query string, e.g. cursor=100&limit=50.
+	private static long parameter(String parameters, String name, long otherwise) {
+		if (parameters == null)
+			return otherwise;
+		for (String parameter : parameters.split("&")) {
+			if (parameter.startsWith(name + "=")) {
+				try {
+					return Long.parseLong(parameter.substring(name.length() + 1));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Not a number: " + parameter);
+				}
+			}
+		}
+		return otherwise;
+	}
+
+	// Reads at most MAX_BODY bytes of the body, so a large or endless one cannot
+	// fill the heap.
+	private Response post(String path, HttpExchange exchange) throws IOException {
+		if (!path.equals("/transactions"))
+			return error(404, "Not found");
+		byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY + 1);
+		if (body.length > MAX_BODY)
+			return error(413, "A transaction takes at most " + MAX_BODY + " bytes");
+		return submit(body);
+	}
+
+	private Response submit(byte[] body) {
+		try {
+			Mempool.Result result = node.submit(body).join();
+			return json(result == Mempool.Result.ACCEPTED ? 202 : 422, new ResultDto(result.name()));
+		} catch (IllegalArgumentException e) {
+			return error(400, e.getMessage());
+		} catch (CompletionException e) {
+			// Thrown on the thread of the node by a transaction that decodes but
+			// cannot be handled. Its message is internal, so it is not sent.
+			return error(400, "Not a valid transaction");
+		}
+	}
+
+	private static Response json(int status, Object dto) {
+		return new Response(status, GSON.toJson(dto).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Response error(int status, String message) {
+		return json(status, new ErrorDto(message));
+	}
+
+	private static void send(HttpExchange exchange, Response response) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(response.status, response.body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(response.body);
+		}
+	}
+
+	private static String hex(PublicKey key) {
+		return key == null ? null : StringUtil.bytesToHex(CryptoService.compressKey(key));
+	}
+
+	// A status and JSON body, ready to be sent again.
+	private static final class Response {
+		final int status;
+		final byte[] body;
+
+		Response(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	// The responses by path. Once it holds capacity responses it takes no more
+	// until the next block clears it, which is cheaper than evicting and rarely
+	// matters, since no response outlives a block. Reads take no lock, so
+	// virtual threads never pin their carrier on a monitor here.
+	private static final class Cache {
+		private final int capacity;
+		private final ConcurrentHashMap<String, Response> responses = new ConcurrentHashMap<String, Response>();
+		private final AtomicLong generation = new AtomicLong(); // incremented on every invalidation
+
+		Cache(int capacity) {
+			this.capacity = capacity;
+		}
+
+		long generation() {
+			return generation.get();
+		}
+
+		Response get(String path) {
+			return responses.get(path);
+		}
+
+		// Caches a response read in the given generation. If the cache was
+		// invalidated since, the response may describe the chain before the last
+		// block, so it is dropped again.
+		void put(String path, Response response, long generation) {
+			if (capacity == 0 || responses.size() >= capacity || generation != this.generation.get())
+				return;
+			responses.put(path, response);
+			if (generation != this.generation.get())
+				responses.remove(path, response);
+		}
+
+		void invalidate() {
+			generation.incrementAndGet();
+			responses.clear();
+		}
+	}
+
+	// The JSON forms of the responses, with keys and signatures in hexadecimal.
+
+	static final class TipDto {
+		final String hash;
+		final int height;
+
+		TipDto(String hash, int height) {
+			this.hash = hash;
+			this.height = height;
+		}
+	}
+
+	static final class BalanceDto {
+		final String key;
+		final long balance;
+		final String coins;
+
+		BalanceDto(String key, long balance) {
+			this.key = key;
+			this.balance = balance;
+			this.coins = Amount.toString(balance);
+		}
+	}
+
+	static final class BlockDto {
+		final String hash;
+		final String previousHash;
+		final String merkleRoot;
+		final int height;
+		final long timeStamp;
+		final int nonce;
+		final int target;
+		final boolean pruned; // the transactions have been dropped
+		final List<TransactionDto> transactions = new ArrayList<TransactionDto>();
+
+		BlockDto(Block block, int height) {
+			this.hash = block.hash;
+			this.previousHash = block.previousHash;
+			this.merkleRoot = block.merkleRoot;
+			this.height = height;
+			this.timeStamp = block.getTimeStamp();
+			this.nonce = block.getNonce();
+			this.target = block.target;
+			this.pruned = block.isPruned();
+			for (Transaction transaction : block.transactions) {
+				transactions.add(new TransactionDto(transaction));
+			}
+		}
+	}
+
+	static final class TransactionDto {
+		final String id;
+		final String sender;
+		final String recipient; // null for a batch transaction
+		final long value;
+		final String signature;
+		final List<String> inputs = new ArrayList<String>();
+		final List<OutputDto> outputs = new ArrayList<OutputDto>();
+
+		TransactionDto(Transaction transaction) {
+			this.id = transaction.transactionId;
+			this.sender = hex(transaction.sender);
+			this.recipient = hex(transaction.recipient);
+			this.value = transaction.value;
+			this.signature = transaction.signature == null ? null : StringUtil.bytesToHex(transaction.signature);
+			if (transaction.inputs != null) {
+				for (TransactionInput input : transaction.inputs) {
+					inputs.add(input.transactionOutputId);
+				}
+			}
+			for (TransactionOutput output : transaction.outputs) {
+				outputs.add(new OutputDto(output));
+			}
+		}
+	}
+
+	static final class OutputDto {
+		final String id;
+		final String recipient;
+		final long value;
+
+		OutputDto(TransactionOutput output) {
+			this.id = output.id;
+			this.recipient = hex(output.reciepient);
+			this.value = output.value;
+		}
+	}
+
+	static final class HistoryDto {
+		final String key;
+		final List<EntryDto> entries = new ArrayList<EntryDto>();
+		final long next; // the cursor of the next page
+		final boolean more;
+
+		HistoryDto(String key, AddressIndex.Page page) {
+			this.key = key;
+			for (AddressIndex.Entry entry : page.entries) {
+				entries.add(new EntryDto(entry));
+			}
+			this.next = page.next;
+			this.more = page.more;
+		}
+	}
+
+	static final class EntryDto {
+		final int height;
+		final String transactionId;
+		final String direction;
+		final long amount;
+
+		EntryDto(AddressIndex.Entry entry) {
+			this.height = entry.height;
+			this.transactionId = entry.getTransactionId();
+			this.direction = entry.direction.name();
+			this.amount = entry.amount;
+		}
+	}
+
+	static final class ResultDto {
+		final String result;
+
+		ResultDto(String result) {
+			this.result = result;
+		}
+	}
+
+	static final class ErrorDto {
+		final String error;
+
+		ErrorDto(String error) {
+			this.error = error;
+		}
+	}
+}
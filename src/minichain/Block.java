@@ -16,49 +16,197 @@ public class Block {
 	public ArrayList<Transaction> transactions = new ArrayList<Transaction>(); // The list of transactions in this block
 	private long timeStamp; // The timestamp of when this block was created
 	private int nonce; // The nonce used for mining this block
+	public int target; // The compact target the hash must not exceed, 0 until it is chosen
+	private transient MerkleTree merkleTree = new MerkleTree(); // grows as transactions are added
+	private transient boolean pruned; // the transactions were dropped, see prune()
+	private transient UtxoView pending; // MiniChain.UTXOs with what the transactions spent and created
 
 	public Block(String previousHash) {
+		this(previousHash, MiniChain.proofOfWork);
+	}
+
+	// Creates a block whose first hash uses the hash function of the given proof
+	// of work, so that chains other than MiniChain's never touch its fields.
+	public Block(String previousHash, ProofOfWork proofOfWork) {
 		this.previousHash = previousHash;
 		this.timeStamp = new Date().getTime();
 
-		this.hash = calculateHash();
+		this.hash = calculateHash(proofOfWork);
+	}
+
+	// Recreates a block that has already been mined, e.g. when reading it from
+	// the block store.
+	Block(String hash, String previousHash, String merkleRoot, long timeStamp, int target, int nonce) {
+		this.hash = hash;
+		this.previousHash = previousHash;
+		this.merkleRoot = merkleRoot;
+		this.timeStamp = timeStamp;
+		this.target = target;
+		this.nonce = nonce;
+	}
+
+	/**
+	 * Returns the Merkle tree over the transactions of this block. The tree is
+	 * rebuilt if the transaction list was changed without addTransaction.
+	 * 
+	 * @return The Merkle tree, for the root or inclusion proofs
+	 */
+	public synchronized MerkleTree getMerkleTree() {
+		if (pruned)
+			throw new IllegalStateException("Block " + hash + " has been pruned");
+		if (merkleTree == null || merkleTree.size() != transactions.size())
+			merkleTree = MerkleTree.build(transactions);
+		return merkleTree;
+	}
+
+	/**
+	 * Drops the transactions of this block and keeps its header: the hashes, the
+	 * Merkle root, the timestamp, the target and the nonce. The block still links
+	 * the chain and proves its work, but its transactions can only be read again
+	 * from a block store. See {@link ChainPruner}.
+	 */
+	synchronized void prune() {
+		transactions = new ArrayList<Transaction>(0);
+		merkleTree = null;
+		pruned = true;
 	}
 
-	// Calculates the hash for this block.
+	// Returns whether the transactions of this block have been dropped.
+	public synchronized boolean isPruned() {
+		return pruned;
+	}
+
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	public int getNonce() {
+		return nonce;
+	}
+
+	// Calculates the hash for this block with the hash function of the chain.
 	public String calculateHash() {
-		String calculatedhash = StringUtil
-				.applySha256(previousHash + Long.toString(timeStamp) + Integer.toString(nonce) + merkleRoot);
+		return calculateHash(MiniChain.proofOfWork);
+	}
 
-		return calculatedhash;
-	} 
+	// Calculates the hash for this block with the hash function of the given
+	// proof of work.
+	public String calculateHash(ProofOfWork proofOfWork) {
+		return header().hashHex(nonce, proofOfWork.getHashFunction());
+	}
 
-	// Mines the block by finding a hash that starts with a certain number of zeros
-	public void mineBlock(int difficulty) {
-		merkleRoot = StringUtil.getMerkleRoot(transactions);
-		String target = StringUtil.getDificultyString(difficulty);
-		while (!hash.substring(0, difficulty).equals(target)) {
+	// Encodes everything but the nonce into a binary header.
+	BlockHeader header() {
+		return new BlockHeader(previousHash, merkleRoot, timeStamp, target);
+	}
+
+	// Stores the nonce and hash found by a miner.
+	void setSolution(int nonce, String hash) {
+		this.nonce = nonce;
+		this.hash = hash;
+	}
+
+	// Mines the block by finding a hash that does not exceed its target. A block
+	// without a target gets the initial target of the proof of work.
+	public void mineBlock(ProofOfWork proofOfWork) {
+		long start = System.nanoTime();
+		int firstNonce = nonce;
+		if (target == 0)
+			target = proofOfWork.getInitialTarget();
+		merkleRoot = getMerkleTree().getRootHex();
+		byte[] buffer = header().newBuffer();
+		byte[] limit = Target.expand(target);
+		byte[] digest = new byte[32];
+		ProofOfWork.HashFunction hashFunction = proofOfWork.getHashFunction();
+		BlockHeader.hash(buffer, nonce, digest, hashFunction);
+		while (!Target.meets(digest, limit)) {
 			nonce++;
-			hash = calculateHash();
+			BlockHeader.hash(buffer, nonce, digest, hashFunction);
+		}
+		hash = StringUtil.bytesToHex(digest);
+
+		long hashes = (long) nonce - firstNonce + 1;
+		long nanos = System.nanoTime() - start;
+		recordMining(hashes, nanos, nanos == 0 ? 0 : hashes * 1_000_000_000L / nanos);
+	}
+
+	// Mines the block by splitting the nonce search across the miner's workers.
+	public void mineBlock(ProofOfWork proofOfWork, ParallelMiner miner) {
+		if (target == 0)
+			target = proofOfWork.getInitialTarget();
+		merkleRoot = getMerkleTree().getRootHex();
+		if (!miner.mine(this, proofOfWork)) {
+			throw new IllegalStateException("No nonce found for target " + Target.toString(target));
+		}
+
+		long hashes = 0;
+		long nanos = 0;
+		for (ParallelMiner.WorkerStats stats : miner.getLastStats()) {
+			hashes += stats.hashes;
+			nanos = Math.max(nanos, stats.nanos);
 		}
-		System.out.println("Block Mined!!! : " + hash);
+		recordMining(hashes, nanos, Math.round(miner.getLastHashRate()));
 	}
 
-	// Adds a transaction to this block.
+	private void recordMining(long hashes, long nanos, long hashRate) {
+		Metrics.blocksMined.increment();
+		Metrics.nonceAttempts.add(hashes);
+		Metrics.miningNanos.record(nanos);
+		Metrics.hashRate.record(hashRate);
+		if (MiniChain.logging)
+			System.out.println("Block Mined!!! : " + hash);
+	}
+
+	// Adds a transaction to this block, spending outputs of MiniChain.UTXOs. The
+	// set itself only changes once the block joins the main chain, so until then
+	// the block keeps what its transactions spend and create on top of it. Safe
+	// to call from several threads.
 	public boolean addTransaction(Transaction transaction) {
+		if ("0".equals(previousHash))
+			return addTransaction(transaction, null); // the genesis block spends nothing
+		return addTransaction(transaction, getPendingUtxos());
+	}
+
+	// Returns MiniChain.UTXOs as the transactions added so far leave them.
+	synchronized UtxoView getPendingUtxos() {
+		if (pending == null)
+			pending = new IncrementalValidator.PendingUtxos(MiniChain.UTXOs);
+		return pending;
+	}
+
+	// Forgets what the transactions spent and created on top of MiniChain.UTXOs,
+	// once the block has been handed to the chain.
+	synchronized void discardPending() {
+		pending = null;
+	}
+
+	/**
+	 * Adds a transaction to this block. Safe to call from several threads.
+	 * 
+	 * @param transaction The signed transaction
+	 * @param utxos       The unspent outputs at the parent of the block, updated
+	 *                    with the transaction
+	 * @return Whether the transaction was valid and added
+	 */
+	public synchronized boolean addTransaction(Transaction transaction, UtxoView utxos) {
 
 		if (transaction == null)
 			return false;
 
 		// If the block is not the genesis block, process the transaction
 		if ((!"0".equals(previousHash))) {
-			if ((transaction.processTransaction() != true)) {
-				System.out.println("Transaction failed to process. Discarded.");
+			if ((transaction.processTransaction(utxos) != true)) {
+				if (MiniChain.logging)
+					System.out.println("Transaction failed to process. Discarded.");
 				return false;
 			}
 		}
 
 		transactions.add(transaction);
-		System.out.println("Transaction Successfully added to Block");
+		merkleTree.append(transaction.transactionId);
+		Metrics.transactionsAccepted.increment();
+		if (MiniChain.logging)
+			System.out.println("Transaction Successfully added to Block");
 
 		return true;
 	}
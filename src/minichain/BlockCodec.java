@@ -0,0 +1,468 @@
+package minichain;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The BlockCodec class converts blocks and transactions to and from a compact
+ * binary form used for storage, networking and hashing. Every record starts
+ * with a format version, so the schema can evolve without breaking readers.
+ *
+ * <pre>
+ * block       = version hash previousHash merkleRoot timeStamp(8) target(4) nonce(4) keys varint(count) transaction*
+ * transaction = id keyRef(sender) keyRef(recipient) varlong(value) bytes(signature) inputs outputs payouts
+ * inputs      = varint(count + 1, 0 for null) id*
+ * outputs     = varint(count) output*
+ * output      = id keyRef(recipient) varlong(value) id(parent)
+ * payouts     = varint(count + 1, 0 for null) (keyRef(recipient) varlong(value))*
+ * keys        = varint(count) bytes(compressed point)*
+ * id          = 0 (null) | 1 hash(32) | 2 bytes(UTF-8 text)
+ * bytes       = varint(length + 1, 0 for null) byte*
+ * </pre>
+ *
+ * Hashes are written as 32 raw bytes, counts, lengths and amounts as varints,
+ * and public keys as compressed curve points. Each distinct key is written once
+ * into a dictionary at the start of the record and referenced by its varint
+ * index (0 for null) everywhere else.
+ *
+ * Encoding writes straight into a ByteBuffer, either the codec's own growing
+ * buffer or one supplied by the caller, and decoding reads straight from the
+ * given buffer, which may be a memory-mapped region of a segment file.
+ * 
+ * A list of unspent outputs, as written to a {@link UtxoSnapshot}, is encoded
+ * as version keys outputs.
+ * 
+ * Records of version 2, which predate batch transactions and have no payouts,
+ * and of version 3 can still be read. Blocks before version 4 have no target
+ * and read as target 0; their hashes were taken over a header without it, so
+ * they no longer validate.
+ * 
+ * Records come from peers and clients as well as from the block store. Every
+ * count and length is checked against the bytes left in the buffer before
+ * anything is allocated for it, and a malformed record fails with an
+ * IllegalArgumentException.
+ */
+public class BlockCodec {
+
+	public static final byte VERSION = 4; // 3 had no block target, 2 no payouts, 1 stored amounts as floats
+	private static final byte OLDEST_VERSION = 2;
+
+	// Tags written in front of every id.
+	private static final byte ID_NULL = 0;
+	private static final byte ID_HASH = 1;
+	private static final byte ID_TEXT = 2;
+
+	// The fewest bytes each element of a count can take, to check counts against.
+	private static final int MIN_TRANSACTION_BYTES = 7;
+	private static final int MIN_OUTPUT_BYTES = 4;
+	private static final int MIN_PAYOUT_BYTES = 2;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(1024);
+	private boolean growable;
+	private final Map<KeyHandle, Integer> keyRefs = new HashMap<KeyHandle, Integer>();
+	private final List<KeyHandle> keys = new ArrayList<KeyHandle>();
+
+	/**
+	 * Encodes a block into the codec's own buffer. The returned buffer is ready to
+	 * be read and is only valid until the next call on this codec.
+	 *
+	 * @param block The block to encode
+	 * @return The encoded block
+	 */
+	public ByteBuffer encode(Block block) {
+		buffer.clear();
+		growable = true;
+		putBlock(block);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a block into the given buffer, starting at its position.
+	 *
+	 * @param block The block to encode
+	 * @param out   The buffer to write to
+	 * @throws BufferOverflowException if the block does not fit
+	 */
+	public void encode(Block block, ByteBuffer out) {
+		ByteBuffer own = buffer;
+		buffer = out;
+		growable = false;
+		try {
+			putBlock(block);
+		} finally {
+			buffer = own;
+		}
+	}
+
+	// Encodes a single transaction with its own key dictionary.
+	public ByteBuffer encode(Transaction transaction) {
+		buffer.clear();
+		growable = true;
+		keyRefs.clear();
+		keys.clear();
+		collectKeys(transaction);
+		ensure(1);
+		buffer.put(VERSION);
+		putKeys();
+		putTransaction(transaction);
+		buffer.flip();
+		return buffer;
+	}
+
+	// Encodes a list of outputs with their own key dictionary.
+	ByteBuffer encodeOutputs(List<TransactionOutput> outputs) {
+		buffer.clear();
+		growable = true;
+		keyRefs.clear();
+		keys.clear();
+		for (TransactionOutput output : outputs) {
+			addKey(output.getOwner());
+		}
+		ensure(1);
+		buffer.put(VERSION);
+		putKeys();
+		putOutputs(outputs);
+		buffer.flip();
+		return buffer;
+	}
+
+	private void putBlock(Block block) {
+		if (block.isPruned())
+			throw new IllegalStateException("Block " + block.hash + " has been pruned");
+		keyRefs.clear();
+		keys.clear();
+		for (Transaction transaction : block.transactions) {
+			collectKeys(transaction);
+		}
+
+		ensure(1);
+		buffer.put(VERSION);
+		putId(block.hash);
+		putId(block.previousHash);
+		putId(block.merkleRoot);
+		ensure(16);
+		buffer.putLong(block.getTimeStamp());
+		buffer.putInt(block.target);
+		buffer.putInt(block.getNonce());
+		putKeys();
+
+		putVarint(block.transactions.size());
+		for (Transaction transaction : block.transactions) {
+			putTransaction(transaction);
+		}
+	}
+
+	// Adds every key used by the transaction to the dictionary.
+	private void collectKeys(Transaction transaction) {
+		if (transaction.sender != null)
+			addKey(transaction.getSenderHandle());
+		if (transaction.recipient != null)
+			addKey(transaction.getRecipientHandle());
+		for (TransactionOutput output : transaction.outputs) {
+			addKey(output.getOwner());
+		}
+		if (transaction.payouts != null) {
+			for (Payout payout : transaction.payouts) {
+				addKey(payout.getRecipientHandle());
+			}
+		}
+	}
+
+	private void addKey(KeyHandle key) {
+		if (!keyRefs.containsKey(key)) {
+			keys.add(key);
+			keyRefs.put(key, keys.size());
+		}
+	}
+
+	private void putKeys() {
+		putVarint(keys.size());
+		for (KeyHandle key : keys) {
+			putBytes(key.compressed());
+		}
+	}
+
+	private void putKeyRef(KeyHandle key) {
+		putVarint(key == null ? 0 : keyRefs.get(key));
+	}
+
+	private void putTransaction(Transaction transaction) {
+		putId(transaction.transactionId);
+		putKeyRef(transaction.sender == null ? null : transaction.getSenderHandle());
+		putKeyRef(transaction.recipient == null ? null : transaction.getRecipientHandle());
+		putVarlong(transaction.value);
+		putBytes(transaction.signature);
+
+		if (transaction.inputs == null) {
+			putVarint(0);
+		} else {
+			putVarint(transaction.inputs.size() + 1);
+			for (TransactionInput input : transaction.inputs) {
+				putId(input.transactionOutputId);
+			}
+		}
+
+		putOutputs(transaction.outputs);
+
+		if (transaction.payouts == null) {
+			putVarint(0);
+		} else {
+			putVarint(transaction.payouts.size() + 1);
+			for (Payout payout : transaction.payouts) {
+				putKeyRef(payout.getRecipientHandle());
+				putVarlong(payout.value);
+			}
+		}
+	}
+
+	private void putOutputs(List<TransactionOutput> outputs) {
+		putVarint(outputs.size());
+		for (TransactionOutput output : outputs) {
+			putId(output.id);
+			putKeyRef(output.getOwner());
+			putVarlong(output.value);
+			putId(output.parentTransactionId);
+		}
+	}
+
+	/**
+	 * Decodes a block from the current position of the buffer. Equal public keys
+	 * within the block are decoded into the same key object.
+	 *
+	 * @param in The buffer to read from
+	 * @return The decoded block
+	 */
+	public static Block decode(ByteBuffer in) {
+		byte version = checkVersion(in);
+		String hash = getId(in);
+		String previousHash = getId(in);
+		String merkleRoot = getId(in);
+		long timeStamp = in.getLong();
+		int target = version >= 4 ? in.getInt() : 0;
+		int nonce = in.getInt();
+		Block block = new Block(hash, previousHash, merkleRoot, timeStamp, target, nonce);
+
+		PublicKey[] keys = getKeys(in);
+		int count = getCount(in, MIN_TRANSACTION_BYTES);
+		block.transactions.ensureCapacity(count);
+		for (int t = 0; t < count; t++) {
+			block.transactions.add(getTransaction(in, keys, version));
+		}
+		return block;
+	}
+
+	// Decodes a transaction written by encode(Transaction).
+	public static Transaction decodeTransaction(ByteBuffer in) {
+		byte version = checkVersion(in);
+		return getTransaction(in, getKeys(in), version);
+	}
+
+	// Decodes a list of outputs written by encodeOutputs.
+	static List<TransactionOutput> decodeOutputs(ByteBuffer in) {
+		checkVersion(in);
+		PublicKey[] keys = getKeys(in);
+		List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+		getOutputs(in, keys, outputs);
+		return outputs;
+	}
+
+	private static byte checkVersion(ByteBuffer in) {
+		byte version = in.get();
+		if (version < OLDEST_VERSION || version > VERSION)
+			throw new IllegalArgumentException("Unsupported codec version " + version);
+		return version;
+	}
+
+	private static PublicKey[] getKeys(ByteBuffer in) {
+		PublicKey[] keys = new PublicKey[getCount(in, 1) + 1]; // index 0 stands for null
+		for (int k = 1; k < keys.length; k++) {
+			keys[k] = CryptoService.decompressKey(getBytes(in));
+		}
+		return keys;
+	}
+
+	private static Transaction getTransaction(ByteBuffer in, PublicKey[] keys, byte version) {
+		String transactionId = getId(in);
+		PublicKey sender = getKey(in, keys);
+		PublicKey recipient = getKey(in, keys);
+		long value = getVarlong(in);
+		byte[] signature = getBytes(in);
+
+		ArrayList<TransactionInput> inputs = null;
+		int inputCount = getNullableCount(in, 1);
+		if (inputCount >= 0) {
+			inputs = new ArrayList<TransactionInput>(inputCount);
+			for (int i = 0; i < inputCount; i++) {
+				inputs.add(new TransactionInput(getId(in)));
+			}
+		}
+
+		Transaction transaction = new Transaction(sender, recipient, value, inputs);
+		transaction.transactionId = transactionId;
+		transaction.signature = signature;
+
+		getOutputs(in, keys, transaction.outputs);
+
+		int payoutCount = version < 3 ? -1 : getNullableCount(in, MIN_PAYOUT_BYTES);
+		if (payoutCount >= 0) {
+			transaction.payouts = new ArrayList<Payout>(payoutCount);
+			for (int p = 0; p < payoutCount; p++) {
+				PublicKey payee = getKey(in, keys);
+				transaction.payouts.add(new Payout(payee, getVarlong(in)));
+			}
+		}
+		return transaction;
+	}
+
+	private static void getOutputs(ByteBuffer in, PublicKey[] keys, List<TransactionOutput> outputs) {
+		int count = getCount(in, MIN_OUTPUT_BYTES);
+		for (int o = 0; o < count; o++) {
+			String id = getId(in);
+			PublicKey owner = getKey(in, keys);
+			long value = getVarlong(in);
+			outputs.add(new TransactionOutput(id, owner, value, getId(in)));
+		}
+	}
+
+	private static PublicKey getKey(ByteBuffer in, PublicKey[] keys) {
+		int ref = getVarint(in);
+		if (ref < 0 || ref >= keys.length)
+			throw new IllegalArgumentException("Unknown key reference " + ref);
+		return keys[ref];
+	}
+
+	// Reads a count of elements that take at least minBytes bytes each, and
+	// checks that they can fit in the bytes left.
+	private static int getCount(ByteBuffer in, int minBytes) {
+		return checkCount(in, getVarint(in), minBytes);
+	}
+
+	// Reads a count stored plus one, and returns -1 for null.
+	private static int getNullableCount(ByteBuffer in, int minBytes) {
+		int stored = getVarint(in);
+		return stored == 0 ? -1 : checkCount(in, stored - 1, minBytes);
+	}
+
+	private static int checkCount(ByteBuffer in, int count, int minBytes) {
+		if (count < 0 || (long) count * minBytes > in.remaining())
+			throw new IllegalArgumentException("Count " + count + " does not fit in the " + in.remaining()
+					+ " bytes left");
+		return count;
+	}
+
+	private void putId(String id) {
+		if (id == null) {
+			ensure(1);
+			buffer.put(ID_NULL);
+		} else if (Hash.isHash(id)) {
+			ensure(33);
+			buffer.put(ID_HASH);
+			buffer.put(StringUtil.hexToBytes32(id));
+		} else {
+			ensure(1);
+			buffer.put(ID_TEXT);
+			putBytes(id.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static String getId(ByteBuffer in) {
+		byte tag = in.get();
+		switch (tag) {
+		case ID_NULL:
+			return null;
+		case ID_HASH:
+			byte[] hash = new byte[32];
+			in.get(hash);
+			return StringUtil.bytesToHex(hash);
+		case ID_TEXT:
+			return new String(getBytes(in), StandardCharsets.UTF_8);
+		default:
+			throw new IllegalArgumentException("Unknown id tag " + tag);
+		}
+	}
+
+	// Writes a length-prefixed byte array. The length is stored plus one, so 0
+	// stands for null.
+	private void putBytes(byte[] bytes) {
+		if (bytes == null) {
+			putVarint(0);
+		} else {
+			putVarint(bytes.length + 1);
+			ensure(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	private static byte[] getBytes(ByteBuffer in) {
+		int length = getNullableCount(in, 1);
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	// Writes a non-negative int in 7-bit groups, least significant group first.
+	private void putVarint(int value) {
+		ensure(5);
+		while ((value & ~0x7f) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static int getVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	// Writes a long in 7-bit groups like putVarint. Amounts are never negative,
+	// so small amounts take few bytes.
+	private void putVarlong(long value) {
+		ensure(10);
+		while ((value & ~0x7fL) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static long getVarlong(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varlong");
+	}
+
+	// Grows the codec's own buffer so that at least the given number of bytes
+	// fit.
+	private void ensure(int bytes) {
+		if (buffer.remaining() < bytes) {
+			if (!growable)
+				throw new BufferOverflowException();
+
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+}
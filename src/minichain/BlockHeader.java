@@ -0,0 +1,66 @@
+package minichain;
+
+/**
+ * The BlockHeader class is the binary form of a block header that gets hashed
+ * while mining. The header is 80 bytes long:
+ * 
+ * <pre>
+ * previousHash (32) | merkleRoot (32) | timeStamp (8) | target (4) | nonce (4)
+ * </pre>
+ * 
+ * The compact {@link Target} is part of the header, so a block cannot claim a
+ * different target than the one it was mined for.
+ * 
+ * Everything before the nonce is encoded once per block, so each mining
+ * attempt only patches the last four bytes and re-hashes the buffer.
+ */
+public class BlockHeader {
+
+	public static final int SIZE = 80;
+	static final int NONCE_OFFSET = 76;
+
+	private final byte[] template;
+
+	public BlockHeader(String previousHash, String merkleRoot, long timeStamp, int target) {
+		template = new byte[SIZE];
+		System.arraycopy(StringUtil.hexToBytes32(previousHash), 0, template, 0, 32);
+		System.arraycopy(StringUtil.hexToBytes32(merkleRoot), 0, template, 32, 32);
+		for (int i = 0; i < 8; i++) {
+			template[64 + i] = (byte) (timeStamp >>> (56 - 8 * i));
+		}
+		for (int i = 0; i < 4; i++) {
+			template[72 + i] = (byte) (target >>> (24 - 8 * i));
+		}
+	}
+
+	// Returns a private copy of the header that a single thread can patch nonces
+	// into.
+	public byte[] newBuffer() {
+		return template.clone();
+	}
+
+	/**
+	 * Writes the nonce into a header buffer and hashes it. With the SHA-256
+	 * functions of {@link ProofOfWork} nothing is allocated.
+	 * 
+	 * @param buffer       A header buffer obtained from {@link #newBuffer()}
+	 * @param nonce        The nonce to try
+	 * @param digest       A 32 byte array that receives the hash
+	 * @param hashFunction The hash function of the proof of work
+	 */
+	public static void hash(byte[] buffer, int nonce, byte[] digest, ProofOfWork.HashFunction hashFunction) {
+		buffer[NONCE_OFFSET] = (byte) (nonce >>> 24);
+		buffer[NONCE_OFFSET + 1] = (byte) (nonce >>> 16);
+		buffer[NONCE_OFFSET + 2] = (byte) (nonce >>> 8);
+		buffer[NONCE_OFFSET + 3] = (byte) nonce;
+
+		hashFunction.hash(buffer, SIZE, digest);
+	}
+
+	// Hashes the header with the given nonce and returns the hash in hexadecimal.
+	public String hashHex(int nonce, ProofOfWork.HashFunction hashFunction) {
+		byte[] digest = new byte[32];
+		hash(newBuffer(), nonce, digest, hashFunction);
+		return StringUtil.bytesToHex(digest);
+	}
+}
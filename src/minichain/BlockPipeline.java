@@ -0,0 +1,424 @@
+package minichain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The BlockPipeline class assembles blocks from encoded transactions in six
+ * stages, each running on its own threads and connected to the next by a
+ * bounded queue:
+ *
+ * <pre>
+ * decode -> verify signatures -> resolve inputs -> create outputs -> build Merkle tree -> mine
+ * </pre>
+ *
+ * Signatures are verified on one thread per processor. Input resolution runs
+ * on a single thread, claims every input it accepts so that a later
+ * transaction cannot spend it again, and cuts the accepted transactions into
+ * blocks. Because every stage works on its own block, the Merkle tree of the
+ * next block is built while the current one is being mined. A full queue
+ * blocks the stage in front of it, so a slow stage slows down submissions
+ * instead of letting the queues grow.
+ *
+ * {@link #getStats()} reports the queue depth and processing time of every
+ * stage, which shows where the pipeline is held up. A record that makes a
+ * stage throw is dropped and counted as malformed, and the stage goes on with
+ * the next one.
+ *
+ * The verification threads can pass transactions on in a different order than
+ * they were submitted, and outputs are only created once the block of their
+ * transaction has left the resolve stage. A transaction that spends an output
+ * of another transaction still in the pipeline is therefore dropped as a
+ * conflict; submit it once the block with its parent has been mined.
+ */
+public class BlockPipeline {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+	private final UtxoSet utxos;
+	private final ProofOfWork proofOfWork;
+	private final ParallelMiner miner;
+	private final int blockSize;
+	private final long maxWaitMillis;
+	private final Consumer<Block> sink;
+
+	private final Set<String> claimed = ConcurrentHashMap.newKeySet(); // inputs of transactions in the pipeline
+	private final LongAdder malformed = new LongAdder();
+	private final LongAdder invalidSignatures = new LongAdder();
+	private final LongAdder conflicts = new LongAdder();
+	private final ArrayList<Block> recent; // the last blocks of the chain, owned by the mine stage
+	private int height; // the height of the last block in recent
+
+	// The end of the input, passed down from stage to stage on close.
+	private static final byte[] END_RECORD = new byte[0];
+	private static final Transaction END_TRANSACTION = new Transaction(null, null, 0, null);
+	private static final ArrayList<Transaction> END_BATCH = new ArrayList<Transaction>();
+	private static final Block END_BLOCK = new Block("0");
+
+	private final Stage<byte[]> decode;
+	private final Stage<Transaction> verify;
+	private final Stage<Transaction> resolve;
+	private final Stage<ArrayList<Transaction>> outputs;
+	private final Stage<ArrayList<Transaction>> merkle;
+	private final Stage<Block> mine;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	private ArrayList<Transaction> batch = new ArrayList<Transaction>(); // owned by the resolve stage
+
+	/**
+	 * Creates and starts a pipeline that extends the given chain.
+	 *
+	 * @param utxos         The unspent outputs, which the pipeline updates as it
+	 *                      creates outputs
+	 * @param chain         The chain the new blocks follow, starting with the
+	 *                      genesis block
+	 * @param proofOfWork   The hash function and targets of the chain
+	 * @param miner         The miner that searches the nonces
+	 * @param blockSize     The most transactions in one block
+	 * @param maxWaitMillis How long a partly filled block waits for more
+	 *                      transactions before it is mined
+	 * @param sink          Receives every mined block, in chain order, on the
+	 *                      mining thread
+	 */
+	public BlockPipeline(UtxoSet utxos, List<Block> chain, ProofOfWork proofOfWork, ParallelMiner miner,
+			int blockSize, long maxWaitMillis, Consumer<Block> sink) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("blockSize must be at least 1");
+
+		this.utxos = utxos;
+		this.recent = new ArrayList<Block>(
+				chain.subList(Math.max(0, chain.size() - proofOfWork.getWindow() - 1), chain.size()));
+		this.height = chain.size() - 1;
+		this.proofOfWork = proofOfWork;
+		this.miner = miner;
+		this.blockSize = blockSize;
+		this.maxWaitMillis = maxWaitMillis;
+		this.sink = sink;
+
+		decode = new Stage<byte[]>("decode", END_RECORD);
+		verify = new Stage<Transaction>("verify", END_TRANSACTION);
+		resolve = new Stage<Transaction>("resolve", END_TRANSACTION);
+		outputs = new Stage<ArrayList<Transaction>>("outputs", END_BATCH);
+		merkle = new Stage<ArrayList<Transaction>>("merkle", END_BATCH);
+		mine = new Stage<Block>("mine", END_BLOCK);
+
+		decode.start(1, this::decode, verify, null);
+		verify.start(Runtime.getRuntime().availableProcessors(), this::verify, resolve, null);
+		resolve.start(1, this::resolve, outputs, this::cutBlock);
+		outputs.start(1, this::createOutputs, merkle, null);
+		merkle.start(1, this::buildMerkleTree, mine, null);
+		mine.start(1, this::mine, null, null);
+	}
+
+	/**
+	 * Adds an encoded transaction, as written by {@link BlockCodec#encode(Transaction)},
+	 * waiting while the first queue is full.
+	 *
+	 * @param encoded The encoded transaction
+	 */
+	public void submit(byte[] encoded) {
+		decode.put(encoded);
+	}
+
+	// The stage handlers return what they pass on to the next stage, or null to
+	// pass on nothing.
+
+	private Transaction decode(byte[] encoded) {
+		Transaction transaction;
+		try {
+			transaction = BlockCodec.decodeTransaction(ByteBuffer.wrap(encoded));
+		} catch (RuntimeException e) {
+			malformed.increment();
+			return null;
+		}
+		if (transaction.sender == null || transaction.inputs == null) {
+			malformed.increment(); // only a genesis transaction has no inputs
+			return null;
+		}
+		return transaction;
+	}
+
+	private Transaction verify(Transaction transaction) {
+		boolean valid;
+		try {
+			valid = transaction.verifySignature();
+		} catch (RuntimeException e) {
+			valid = false; // e.g. signature bytes that cannot be decoded
+		}
+		if (valid)
+			return transaction;
+		invalidSignatures.increment();
+		Metrics.rejectedSignature.increment();
+		return null;
+	}
+
+	// Claims the inputs of the transaction and adds it to the current block if
+	// they are all unspent and not claimed by an earlier transaction. Returns the
+	// block once it is full.
+	private ArrayList<Transaction> resolve(Transaction transaction) {
+		List<String> taken = new ArrayList<String>(transaction.inputs.size());
+		for (TransactionInput input : transaction.inputs) {
+			if (!claimed.add(input.transactionOutputId)) {
+				reject(taken);
+				return null;
+			}
+			taken.add(input.transactionOutputId);
+
+			// Checked after claiming: an output the outputs stage spends in between
+			// is already missing from the set
+			if (!utxos.contains(input.transactionOutputId)) {
+				reject(taken);
+				return null;
+			}
+		}
+
+		transaction.resolveInputs(utxos);
+		if (transaction.getInputsValue() < MiniChain.minimumTransaction) {
+			reject(taken);
+			return null;
+		}
+		if (!transaction.hasValidAmounts()) {
+			claimed.removeAll(taken);
+			conflicts.increment();
+			Metrics.rejectedFunds.increment();
+			return null;
+		}
+
+		batch.add(transaction);
+		if (batch.size() < blockSize)
+			return null;
+		ArrayList<Transaction> full = batch;
+		batch = new ArrayList<Transaction>();
+		return full;
+	}
+
+	private void reject(List<String> taken) {
+		claimed.removeAll(taken);
+		conflicts.increment();
+		Metrics.rejectedConflict.increment();
+	}
+
+	// Sends a partly filled block on when no transactions arrive for a while or
+	// the input ends.
+	private void cutBlock() {
+		if (!batch.isEmpty()) {
+			outputs.put(batch);
+			batch = new ArrayList<Transaction>();
+		}
+	}
+
+	private ArrayList<Transaction> createOutputs(ArrayList<Transaction> transactions) {
+		for (Transaction transaction : transactions) {
+			transaction.createOutputs(utxos);
+			for (TransactionInput input : transaction.inputs) {
+				claimed.remove(input.transactionOutputId);
+			}
+		}
+		return transactions;
+	}
+
+	private Block buildMerkleTree(ArrayList<Transaction> transactions) {
+		Block block = new Block(null);
+		block.transactions = transactions;
+		block.getMerkleTree();
+		return block;
+	}
+
+	private Block mine(Block block) {
+		block.previousHash = recent.get(recent.size() - 1).hash;
+		block.target = proofOfWork.nextTarget(recent, height + 1);
+		block.mineBlock(proofOfWork, miner);
+		// Counted only once mined, so a failed block does not skip a height
+		recent.add(block);
+		height++;
+		if (recent.size() > proofOfWork.getWindow() + 1)
+			recent.remove(0);
+		sink.accept(block);
+		return null;
+	}
+
+	/**
+	 * Mines the remaining transactions and stops the pipeline once the last block
+	 * has been handed to the sink.
+	 */
+	public void close() {
+		decode.put(END_RECORD);
+		try {
+			finished.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Returns the number of records dropped because they could not be decoded or
+	// made a stage fail.
+	public long getMalformed() {
+		return malformed.sum();
+	}
+
+	// Returns the number of transactions dropped because of an invalid signature.
+	public long getInvalidSignatures() {
+		return invalidSignatures.sum();
+	}
+
+	// Returns the number of transactions dropped because an input was missing,
+	// already claimed or too small, or the inputs did not cover the value.
+	public long getConflicts() {
+		return conflicts.sum();
+	}
+
+	// Returns the queue depth and processing times of every stage, in pipeline
+	// order.
+	public List<StageStats> getStats() {
+		List<StageStats> stats = new ArrayList<StageStats>();
+		for (Stage<?> stage : List.of(decode, verify, resolve, outputs, merkle, mine)) {
+			stats.add(stage.stats());
+		}
+		return stats;
+	}
+
+	/**
+	 * One stage of the pipeline: the bounded queue it takes work from, the threads
+	 * that work on it and how long the work took.
+	 */
+	private final class Stage<T> {
+
+		final String name;
+		final T end;
+		final BlockingQueue<T> queue = new ArrayBlockingQueue<T>(DEFAULT_QUEUE_CAPACITY);
+		final AtomicInteger maxDepth = new AtomicInteger();
+		final LongAdder items = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		final AtomicInteger running = new AtomicInteger();
+
+		Stage(String name, T end) {
+			this.name = name;
+			this.end = end;
+		}
+
+		void put(T item) {
+			try {
+				queue.put(item);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			maxDepth.accumulateAndGet(queue.size(), Math::max);
+		}
+
+		/**
+		 * Starts the threads of the stage.
+		 *
+		 * @param threads The number of threads
+		 * @param handler Processes one item and returns what to pass on, or null
+		 * @param next    The next stage, or null for the last one
+		 * @param onIdle  Runs when the queue stays empty for the maximum wait and
+		 *                before the end of the input is passed on, or null
+		 */
+		<R> void start(int threads, Function<T, R> handler, Stage<R> next, Runnable onIdle) {
+			running.set(threads);
+			for (int t = 0; t < threads; t++) {
+				Thread thread = new Thread(() -> work(handler, next, onIdle), "pipeline-" + name);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		private <R> void work(Function<T, R> handler, Stage<R> next, Runnable onIdle) {
+			try {
+				while (true) {
+					T item = onIdle == null ? queue.take() : queue.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+					if (item == null) {
+						onIdle.run();
+						continue;
+					}
+					if (item == end) {
+						if (running.decrementAndGet() > 0) {
+							queue.put(end); // let the other threads of the stage see it
+							return;
+						}
+						queue.remove(end);
+						if (onIdle != null)
+							onIdle.run();
+						if (next == null) {
+							finished.countDown();
+						} else {
+							next.put(next.end);
+						}
+						return;
+					}
+
+					// Only the handler is timed, not the wait for room in the next queue
+					long start = System.nanoTime();
+					R result;
+					try {
+						result = handler.apply(item);
+					} catch (RuntimeException e) {
+						malformed.increment(); // drop the item, the stage must keep running
+						result = null;
+					}
+					long elapsed = System.nanoTime() - start;
+					items.increment();
+					nanos.add(elapsed);
+					maxNanos.accumulateAndGet(elapsed, Math::max);
+
+					if (result != null && next != null)
+						next.put(result);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		StageStats stats() {
+			return new StageStats(name, queue.size(), maxDepth.get(), items.sum(), nanos.sum(), maxNanos.get());
+		}
+	}
+
+	/**
+	 * The queue depth of one stage and the time it spent on its items. Time spent
+	 * waiting for room in the next queue is not included.
+	 */
+	public static class StageStats {
+
+		public final String stage;
+		public final int queueDepth;
+		public final int maxQueueDepth;
+		public final long items;
+		public final long nanos;
+		public final long maxNanos;
+
+		public StageStats(String stage, int queueDepth, int maxQueueDepth, long items, long nanos, long maxNanos) {
+			this.stage = stage;
+			this.queueDepth = queueDepth;
+			this.maxQueueDepth = maxQueueDepth;
+			this.items = items;
+			this.nanos = nanos;
+			this.maxNanos = maxNanos;
+		}
+
+		public double getAverageMicros() {
+			return items == 0 ? 0 : nanos / 1000d / items;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-8s queue %d (max %d), %d items, %.1f us avg, %.1f us max", stage, queueDepth,
+					maxQueueDepth, items, getAverageMicros(), maxNanos / 1000d);
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package minichain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The BlockStore class keeps the chain on disk in append-only segment files.
+ * Every block is written as a length-prefixed {@link BlockCodec} record to the
+ * current segment, and a new segment is started once it would grow past the
+ * segment size. A separate index file holds one fixed-size entry per height:
+ * 
+ * <pre>
+ * segment (4) | offset (8) | length (4) | block hash (32)
+ * </pre>
+ * 
+ * Opening a store only reads the index. Blocks are decoded on access from a
+ * memory-mapped view of their segment, so a long chain can be reopened without
+ * reading it.
+ */
+public class BlockStore implements Closeable {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 256L << 20;
+	private static final int ENTRY_SIZE = 48;
+
+	private final Path directory;
+	private final long segmentSize;
+	private final FileChannel index;
+	private final BlockCodec codec = new BlockCodec();
+
+	private FileChannel segment; // the segment new blocks are appended to
+	private int segmentNumber;
+	private long segmentPosition;
+
+	// The offset index, one column per field.
+	private int size;
+	private int[] segments = new int[1024];
+	private long[] offsets = new long[1024];
+	private int[] lengths = new int[1024];
+	private byte[] hashes = new byte[1024 * 32];
+	private HashMap<String, Integer> heights; // built on the first lookup by hash
+
+	private final List<MappedByteBuffer> mappedSegments = new ArrayList<MappedByteBuffer>();
+
+	public BlockStore(Path directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if it does not exist.
+	 * 
+	 * @param directory   The directory holding the segment and index files
+	 * @param segmentSize The size after which a new segment file is started
+	 */
+	public BlockStore(Path directory, long segmentSize) {
+		if (segmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Segments must be mappable, at most 2 GB");
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		try {
+			Files.createDirectories(directory);
+			index = FileChannel.open(directory.resolve("index.dat"), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			loadIndex();
+			openSegment(segmentNumber, segmentPosition);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Reads the index columns from a mapped view of the index file. Entries that
+	// point past the end of their segment, left behind by an interrupted append,
+	// are dropped.
+	private void loadIndex() throws IOException {
+		int entries = (int) (index.size() / ENTRY_SIZE);
+		if (entries > 0) {
+			ByteBuffer view = index.map(FileChannel.MapMode.READ_ONLY, 0, (long) entries * ENTRY_SIZE);
+			grow(entries);
+			for (int i = 0; i < entries; i++) {
+				segments[i] = view.getInt();
+				offsets[i] = view.getLong();
+				lengths[i] = view.getInt();
+				view.get(hashes, i * 32, 32);
+			}
+		}
+
+		size = entries;
+		while (size > 0 && Files.size(segmentPath(segments[size - 1])) < offsets[size - 1] + 4 + lengths[size - 1]) {
+			size--;
+		}
+		index.truncate((long) size * ENTRY_SIZE);
+
+		if (size > 0) {
+			segmentNumber = segments[size - 1];
+			segmentPosition = offsets[size - 1] + 4 + lengths[size - 1];
+		}
+	}
+
+	private void openSegment(int number, long position) throws IOException {
+		if (segment != null)
+			segment.close();
+
+		segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		segment.truncate(position); // discard a partially written record
+		segmentNumber = number;
+		segmentPosition = position;
+	}
+
+	private Path segmentPath(int number) {
+		return directory.resolve(String.format("blk%05d.dat", number));
+	}
+
+	/**
+	 * Appends a mined block to the end of the store.
+	 * 
+	 * @param block The block to append
+	 * @return The height of the block in the store
+	 */
+	public synchronized int append(Block block) {
+		ByteBuffer record = codec.encode(block);
+		int length = record.remaining();
+
+		try {
+			if (segmentPosition > 0 && segmentPosition + 4 + length > segmentSize) {
+				openSegment(segmentNumber + 1, 0);
+			}
+
+			long offset = segmentPosition;
+			ByteBuffer prefix = ByteBuffer.allocate(4).putInt(0, length);
+			writeFully(segment, prefix, offset);
+			writeFully(segment, record, offset + 4);
+			segmentPosition = offset + 4 + length;
+
+			byte[] hash = StringUtil.hexToBytes32(block.hash);
+			ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+			entry.putInt(segmentNumber).putLong(offset).putInt(length).put(hash).flip();
+			writeFully(index, entry, (long) size * ENTRY_SIZE);
+
+			grow(size + 1);
+			segments[size] = segmentNumber;
+			offsets[size] = offset;
+			lengths[size] = length;
+			System.arraycopy(hash, 0, hashes, size * 32, 32);
+			if (heights != null)
+				heights.put(block.hash, size);
+			return size++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Removes the blocks from the given height on, e.g. when a reorganization
+	 * replaces them. Their records are overwritten by the next appends.
+	 * 
+	 * @param height The height of the first block to remove
+	 */
+	public synchronized void truncate(int height) {
+		if (height < 0 || height > size)
+			throw new IndexOutOfBoundsException("No block at height " + height);
+		if (height == size)
+			return;
+
+		try {
+			index.truncate((long) height * ENTRY_SIZE);
+			// Unmap the segments that shrink, reading a mapping past the end of its
+			// file fails
+			for (int n = segments[height]; n < mappedSegments.size(); n++) {
+				mappedSegments.set(n, null);
+			}
+			openSegment(segments[height], offsets[height]);
+			size = height;
+			heights = null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	// Makes sure the index columns can hold the given number of entries.
+	private void grow(int entries) {
+		if (entries > segments.length) {
+			int capacity = Math.max(entries, segments.length * 2);
+			segments = Arrays.copyOf(segments, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			hashes = Arrays.copyOf(hashes, capacity * 32);
+		}
+	}
+
+	/**
+	 * Reads and decodes the block at the given height from its mapped segment.
+	 * 
+	 * @param height The height of the block, starting at 0 for the genesis block
+	 * @return The decoded block
+	 */
+	public Block get(int height) {
+		return BlockCodec.decode(read(height));
+	}
+
+	// Returns a read-only view of the encoded block at the given height.
+	synchronized ByteBuffer read(int height) {
+		if (height < 0 || height >= size)
+			throw new IndexOutOfBoundsException("No block at height " + height);
+
+		long end = offsets[height] + 4 + lengths[height];
+		MappedByteBuffer mapped = mappedSegment(segments[height], end);
+		return mapped.slice((int) offsets[height] + 4, lengths[height]);
+	}
+
+	// Maps a segment file, mapping it again if it has grown past the old mapping.
+	private MappedByteBuffer mappedSegment(int number, long end) {
+		while (mappedSegments.size() <= number) {
+			mappedSegments.add(null);
+		}
+
+		MappedByteBuffer mapped = mappedSegments.get(number);
+		if (mapped == null || mapped.capacity() < end) {
+			try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			mappedSegments.set(number, mapped);
+		}
+		return mapped;
+	}
+
+	// Returns the hash of the block at the given height without decoding it.
+	public synchronized String getHash(int height) {
+		if (height < 0 || height >= size)
+			throw new IndexOutOfBoundsException("No block at height " + height);
+		return StringUtil.bytesToHex(Arrays.copyOfRange(hashes, height * 32, height * 32 + 32));
+	}
+
+	/**
+	 * Finds the height of the block with the given hash.
+	 * 
+	 * @param hash The block hash
+	 * @return The height of the block, or -1 if it is not in the store
+	 */
+	public synchronized int heightOf(String hash) {
+		if (heights == null) {
+			heights = new HashMap<String, Integer>(size * 2);
+			for (int i = 0; i < size; i++) {
+				heights.put(getHash(i), i);
+			}
+		}
+		Integer height = heights.get(hash);
+		return height == null ? -1 : height;
+	}
+
+	// Returns the block with the given hash, or null if it is not in the store.
+	public Block getByHash(String hash) {
+		int height = heightOf(hash);
+		return height < 0 ? null : get(height);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a read-only list view of the store. Blocks are decoded every time
+	 * they are accessed, so the view can be passed to code that walks the chain
+	 * without loading all of it into memory.
+	 */
+	public List<Block> asList() {
+		return new BlockList();
+	}
+
+	// Forces appended blocks and index entries to disk.
+	public synchronized void flush() {
+		try {
+			segment.force(false);
+			index.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			segment.close();
+			index.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		mappedSegments.clear();
+	}
+
+	private class BlockList extends AbstractList<Block> implements RandomAccess {
+
+		@Override
+		public Block get(int height) {
+			return BlockStore.this.get(height);
+		}
+
+		@Override
+		public int size() {
+			return BlockStore.this.size();
+		}
+	}
+}
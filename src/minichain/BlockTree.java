@@ -0,0 +1,401 @@
+package minichain;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The BlockTree class keeps every block it has been given, including those on
+ * competing branches, and follows the branch with the most cumulative work.
+ * The work of a block is the expected number of hashes its target takes, so a
+ * longer branch of easy blocks does not beat a shorter one of hard blocks.
+ *
+ * A block that extends the tip is validated by an {@link IncrementalValidator}
+ * against the unspent outputs at the tip. A block on another branch only has
+ * its header and proof of work checked, since the outputs at its parent are
+ * not at hand. Once a branch has more work than the main chain, the tree
+ * reorganizes: it disconnects the main chain back to the fork with the undo
+ * records of the validator and connects the blocks of the branch, validating
+ * each one. The cost depends on the number of blocks disconnected and
+ * connected, not on the length of the chain. If a block of the branch turns
+ * out to be invalid, the branch is marked invalid and the old main chain is
+ * connected again. Only a block whose header and transactions hash to the hash
+ * it names is kept as invalid; a forged copy of a block, or one with a
+ * timestamp in the future, is dropped, so the real block can still be added.
+ *
+ * Blocks whose parent is not known yet wait as orphans until it arrives.
+ * Branches with equal work keep the one that was seen first.
+ */
+public class BlockTree {
+
+	public static final int MAX_ORPHANS = 1000;
+
+	// What adding a block did.
+	public enum Result {
+		EXTENDED, // the block extends the main chain
+		SIDE_BRANCH, // the block is on a branch with no more work than the main chain
+		REORGANIZED, // the block made its branch the main chain
+		ORPHAN, // the parent of the block is not known yet
+		DUPLICATE, // the block is already in the tree
+		INVALID // the block, or a block of its branch, is invalid
+	}
+
+	/**
+	 * Is told about every block that joins or leaves the main chain, in chain
+	 * order, e.g. to keep an index or a block store in step.
+	 */
+	public interface Listener {
+
+		void connected(Block block, int height);
+
+		void disconnected(Block block, int height);
+	}
+
+	private final IncrementalValidator validator;
+	private final ProofOfWork proofOfWork;
+	private final ChainValidator headerValidator = new ChainValidator(false);
+	private final List<Block> mainChain;
+	private final HashMap<String, TreeNode> nodes = new HashMap<String, TreeNode>();
+	private final HashMap<String, List<Block>> orphans = new HashMap<String, List<Block>>(); // by previous hash
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private int orphanCount;
+	private TreeNode tip;
+	private String lastFailure;
+
+	/**
+	 * Creates a tree whose main chain is the chain of a validator, usually just
+	 * its genesis block.
+	 *
+	 * @param validator The validator of the main chain
+	 * @param mainChain The list to keep equal to the main chain. It is cleared and
+	 *                  the blocks of the validator are added.
+	 */
+	public BlockTree(IncrementalValidator validator, List<Block> mainChain) {
+		this.validator = validator;
+		this.proofOfWork = validator.getProofOfWork();
+		this.mainChain = mainChain;
+
+		mainChain.clear();
+		for (Block block : validator.getChain()) {
+			tip = new TreeNode(block, tip);
+			nodes.put(block.hash, tip);
+			mainChain.add(block);
+		}
+	}
+
+	public synchronized void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Adds a block to the tree, switching the main chain to its branch if that
+	 * branch now has the most work. Orphans that were waiting for the block are
+	 * added after it.
+	 *
+	 * @param block The mined block
+	 * @return What adding the block did
+	 */
+	public synchronized Result add(Block block) {
+		Result result = addOne(block);
+		if (result == Result.ORPHAN || result == Result.DUPLICATE || nodes.get(block.hash) == null)
+			return result;
+
+		ArrayDeque<String> parents = new ArrayDeque<String>();
+		parents.add(block.hash);
+		while (!parents.isEmpty()) {
+			List<Block> children = orphans.remove(parents.poll());
+			if (children == null)
+				continue;
+			orphanCount -= children.size();
+			for (Block child : children) {
+				if (addOne(child) != Result.DUPLICATE && nodes.get(child.hash) != null)
+					parents.add(child.hash);
+			}
+		}
+		return result;
+	}
+
+	private Result addOne(Block block) {
+		if (nodes.containsKey(block.hash))
+			return Result.DUPLICATE;
+
+		TreeNode parent = nodes.get(block.previousHash);
+		if (parent == null) {
+			List<Block> waiting = orphans.getOrDefault(block.previousHash, Collections.<Block>emptyList());
+			for (Block orphan : waiting) {
+				if (orphan.hash.equals(block.hash))
+					return Result.DUPLICATE; // e.g. relayed by another peer
+			}
+			if (orphanCount < MAX_ORPHANS) {
+				orphans.computeIfAbsent(block.previousHash, hash -> new ArrayList<Block>()).add(block);
+				orphanCount++;
+			}
+			return Result.ORPHAN;
+		}
+
+		if (parent == tip) {
+			ValidationReport report = validator.validate(block);
+			if (!report.isValid())
+				return reject(block, parent, report.getFailure());
+			TreeNode node = new TreeNode(block, parent);
+			nodes.put(block.hash, node);
+			connect(node);
+			return Result.EXTENDED;
+		}
+
+		if (parent.invalid)
+			return reject(block, parent, "#Block " + (parent.height + 1) + " extends an invalid block");
+
+		List<Block> blocks = ancestors(parent, ChainValidator.headerHistory(proofOfWork));
+		int firstHeight = parent.height + 1 - blocks.size();
+		blocks.add(block);
+		ValidationReport report = headerValidator.validateHeaders(blocks, blocks.size() - 1, firstHeight,
+				proofOfWork);
+		if (!report.isValid()) {
+			lastFailure = report.getFailure();
+			return Result.INVALID; // not kept, the block may not even be the one its hash names
+		}
+
+		TreeNode node = new TreeNode(block, parent);
+		nodes.put(block.hash, node);
+		if (node.work.compareTo(tip.work) <= 0)
+			return Result.SIDE_BRANCH;
+		return reorganize(node);
+	}
+
+	// Keeps an invalid block as such, so that blocks extending it are rejected
+	// without checking them, if the failure can be held against its hash.
+	private Result reject(Block block, TreeNode parent, String failure) {
+		lastFailure = failure;
+		if (isFinal(block)) {
+			TreeNode node = new TreeNode(block, parent);
+			node.invalid = true;
+			nodes.put(block.hash, node);
+		}
+		return Result.INVALID;
+	}
+
+	// Whether a block that failed validation is invalid for good: it is the block
+	// its hash names, with a header that hashes to it and transactions that hash
+	// to its Merkle root, and it did not just arrive early. Otherwise anyone could
+	// have the real block refused by sending a forged one under its hash first.
+	private boolean isFinal(Block block) {
+		return block.hash.equals(block.calculateHash(proofOfWork))
+				&& MerkleTree.build(block.transactions).getRootHex().equals(block.merkleRoot)
+				&& block.getTimeStamp() <= System.currentTimeMillis() + proofOfWork.getMaxFutureMillis();
+	}
+
+	// Takes a block that is not invalid for good out of the tree, so that it can
+	// be added again. Its descendants wait as orphans for it.
+	private void forget(TreeNode forgotten) {
+		nodes.remove(forgotten.block.hash);
+		Iterator<TreeNode> iterator = nodes.values().iterator();
+		while (iterator.hasNext()) {
+			TreeNode node = iterator.next();
+			TreeNode ancestor = node.parent;
+			while (ancestor != null && ancestor.height > forgotten.height) {
+				ancestor = ancestor.parent;
+			}
+			if (ancestor != forgotten)
+				continue;
+			iterator.remove();
+			if (orphanCount < MAX_ORPHANS) {
+				orphans.computeIfAbsent(node.block.previousHash, hash -> new ArrayList<Block>()).add(node.block);
+				orphanCount++;
+			}
+		}
+	}
+
+	/**
+	 * Makes the branch ending in the given block the main chain.
+	 *
+	 * @param newTip A block with more work than the tip
+	 * @return REORGANIZED, INVALID if a block of the branch is invalid, or
+	 *         SIDE_BRANCH if the fork is deeper than the validator can undo
+	 */
+	private Result reorganize(TreeNode newTip) {
+		long start = System.nanoTime();
+
+		List<TreeNode> branch = new ArrayList<TreeNode>();
+		TreeNode fork = newTip;
+		while (!isOnMainChain(fork)) {
+			if (fork.invalid) {
+				newTip.invalid = true;
+				lastFailure = "#Block " + fork.height + " of the branch is invalid";
+				return Result.INVALID;
+			}
+			branch.add(fork);
+			fork = fork.parent;
+		}
+		Collections.reverse(branch);
+
+		int depth = tip.height - fork.height;
+		if (depth > validator.getUndoBlocks()) {
+			lastFailure = "#A reorganization of " + depth + " blocks is deeper than the undo records";
+			return Result.SIDE_BRANCH;
+		}
+
+		List<TreeNode> disconnected = new ArrayList<TreeNode>(depth);
+		while (tip != fork) {
+			disconnected.add(tip);
+			disconnect();
+		}
+
+		for (TreeNode node : branch) {
+			ValidationReport report = validator.validate(node.block);
+			if (!report.isValid()) {
+				lastFailure = report.getFailure();
+
+				// Go back to the old main chain, which was valid before
+				while (tip != fork) {
+					disconnect();
+				}
+				for (int i = disconnected.size() - 1; i >= 0; i--) {
+					TreeNode old = disconnected.get(i);
+					if (!validator.validate(old.block).isValid())
+						throw new IllegalStateException("Block " + old.height + " no longer validates");
+					connect(old);
+				}
+				if (isFinal(node.block))
+					node.invalid = true;
+				else
+					forget(node);
+				return Result.INVALID;
+			}
+			connect(node);
+		}
+
+		Metrics.reorgs.increment();
+		Metrics.reorgDepth.record(depth);
+		Metrics.reorgNanos.record(System.nanoTime() - start);
+		return Result.REORGANIZED;
+	}
+
+	// Adds a block the validator has accepted to the main chain.
+	private void connect(TreeNode node) {
+		mainChain.add(node.block);
+		tip = node;
+		for (Listener listener : listeners) {
+			listener.connected(node.block, node.height);
+		}
+	}
+
+	private void disconnect() {
+		validator.disconnect();
+		mainChain.remove(mainChain.size() - 1);
+		TreeNode old = tip;
+		tip = tip.parent;
+		for (Listener listener : listeners) {
+			listener.disconnected(old.block, old.height);
+		}
+	}
+
+	/**
+	 * Forgets the blocks of every branch that forks from the main chain below the
+	 * given height, together with their bodies. Such a branch can no longer
+	 * replace the main chain once the undo records do not reach its fork. If one
+	 * of its blocks arrives again, it is treated as a new block.
+	 *
+	 * @param height The lowest fork height whose branches are kept
+	 * @return The number of blocks removed
+	 */
+	public synchronized int pruneBranches(int height) {
+		int removed = 0;
+		Iterator<TreeNode> iterator = nodes.values().iterator();
+		while (iterator.hasNext()) {
+			TreeNode node = iterator.next();
+			if (isOnMainChain(node))
+				continue;
+			TreeNode fork = node.parent;
+			while (!isOnMainChain(fork)) {
+				fork = fork.parent;
+			}
+			if (fork.height < height) {
+				iterator.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private boolean isOnMainChain(TreeNode node) {
+		return node.height < mainChain.size() && mainChain.get(node.height) == node.block;
+	}
+
+	// Returns up to count blocks ending with the given one, oldest first.
+	private static List<Block> ancestors(TreeNode node, int count) {
+		ArrayList<Block> blocks = new ArrayList<Block>(count + 1);
+		for (; node != null && blocks.size() < count; node = node.parent) {
+			blocks.add(node.block);
+		}
+		Collections.reverse(blocks);
+		return blocks;
+	}
+
+	/**
+	 * Returns the target a new block on top of the given block must meet.
+	 *
+	 * @param previousHash The hash of the parent of the new block
+	 * @return The compact target
+	 * @throws IllegalArgumentException if the parent is not in the tree
+	 */
+	public synchronized int nextTarget(String previousHash) {
+		TreeNode parent = nodes.get(previousHash);
+		if (parent == null)
+			throw new IllegalArgumentException("Unknown block " + previousHash);
+		return proofOfWork.nextTarget(ancestors(parent, proofOfWork.getWindow() + 1), parent.height + 1);
+	}
+
+	public synchronized Block getTip() {
+		return tip.block;
+	}
+
+	public synchronized int getHeight() {
+		return tip.height;
+	}
+
+	// Returns the cumulative work of the main chain.
+	public synchronized BigInteger getWork() {
+		return tip.work;
+	}
+
+	public synchronized boolean contains(String hash) {
+		return nodes.containsKey(hash);
+	}
+
+	// Returns the number of blocks in the tree, on every branch.
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	public synchronized int getOrphanCount() {
+		return orphanCount;
+	}
+
+	// Returns why the last invalid block was rejected.
+	public synchronized String getLastFailure() {
+		return lastFailure;
+	}
+
+	// A block in the tree with its height and the work of its branch up to it.
+	private static class TreeNode {
+
+		final Block block;
+		final TreeNode parent;
+		final int height;
+		final BigInteger work;
+		boolean invalid;
+
+		TreeNode(Block block, TreeNode parent) {
+			this.block = block;
+			this.parent = parent;
+			this.height = parent == null ? 0 : parent.height + 1;
+			BigInteger own = Target.work(block.target);
+			this.work = parent == null ? own : parent.work.add(own);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package minichain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The ChainIndex class finds blocks and transactions without scanning the
+ * chain. It maps
+ * <ul>
+ * <li>a block hash to the height of the block,</li>
+ * <li>a transaction id to the height of its block and its position there,</li>
+ * <li>an output id to the location of the transaction that created it.</li>
+ * </ul>
+ * Ids are SHA-256 hashes, so the last 8 bytes of an id are used as a
+ * primitive long key and locations are packed into a long as well. The last
+ * bytes rather than the first, since the first bytes of a block hash are the
+ * zeros its proof of work requires. Entries live in primitive tables of 16
+ * bytes per slot that are kept at most three quarters full, with no objects
+ * per entry. Two ids could still share a key, so the lookups check the block
+ * hash or id they find in the chain before returning it.
+ */
+public class ChainIndex {
+
+	private final LongLongMap blocks;
+	private final LongLongMap transactions;
+	private final LongLongMap outputs;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public ChainIndex() {
+		this(1024);
+	}
+
+	// Creates an index sized for about the given number of transactions.
+	public ChainIndex(int expectedTransactions) {
+		blocks = new LongLongMap(Math.max(16, expectedTransactions / 100));
+		transactions = new LongLongMap(expectedTransactions);
+		outputs = new LongLongMap(expectedTransactions);
+	}
+
+	/**
+	 * Adds a block appended at the given height to the index.
+	 * 
+	 * @param block  The block
+	 * @param height The height of the block in the chain
+	 */
+	public void add(Block block, int height) {
+		lock.writeLock().lock();
+		try {
+			blocks.put(key(block.hash), height);
+			for (int position = 0; position < block.transactions.size(); position++) {
+				Transaction transaction = block.transactions.get(position);
+				long location = location(height, position);
+				transactions.put(key(transaction.transactionId), location);
+				for (TransactionOutput output : transaction.outputs) {
+					outputs.put(key(output.id), location);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a block that was disconnected from the chain, e.g. by a
+	 * reorganization. Entries that point elsewhere are kept.
+	 * 
+	 * @param block  The block
+	 * @param height The height the block had in the chain
+	 */
+	public void remove(Block block, int height) {
+		lock.writeLock().lock();
+		try {
+			remove(blocks, block.hash, height);
+			for (int position = 0; position < block.transactions.size(); position++) {
+				Transaction transaction = block.transactions.get(position);
+				long location = location(height, position);
+				remove(transactions, transaction.transactionId, location);
+				for (TransactionOutput output : transaction.outputs) {
+					remove(outputs, output.id, location);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static void remove(LongLongMap map, String id, long value) {
+		long key = key(id);
+		if (map.get(key) == value)
+			map.remove(key);
+	}
+
+	// Builds the index from all blocks in a block store.
+	public static ChainIndex rebuild(BlockStore store) {
+		ChainIndex index = new ChainIndex();
+		for (int height = 0; height < store.size(); height++) {
+			index.add(store.get(height), height);
+		}
+		return index;
+	}
+
+	/**
+	 * Finds the height of a block.
+	 * 
+	 * @param blockHash The hash of the block
+	 * @param chain     The chain the index was built from
+	 * @return The height, or -1 if the block is not in the chain
+	 */
+	public int heightOf(String blockHash, List<Block> chain) {
+		int height;
+		lock.readLock().lock();
+		try {
+			height = (int) blocks.get(key(blockHash));
+		} finally {
+			lock.readLock().unlock();
+		}
+		return height >= 0 && height < chain.size() && chain.get(height).hash.equals(blockHash) ? height : -1;
+	}
+
+	/**
+	 * Finds where a transaction is stored. Use {@link #height} and
+	 * {@link #position} to unpack the result.
+	 * 
+	 * @param transactionId The id of the transaction
+	 * @return The packed location, or -1 if the id is not indexed
+	 */
+	public long locateTransaction(String transactionId) {
+		lock.readLock().lock();
+		try {
+			return transactions.get(key(transactionId));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the transaction that created an output, packed like
+	 * {@link #locateTransaction}. The outputs of a pruned block cannot be
+	 * checked, so their location is returned as it is indexed.
+	 * 
+	 * @param outputId The id of the output
+	 * @param chain    The chain the index was built from
+	 * @return The packed location, or -1 if the output is not in the chain
+	 */
+	public long locateOutput(String outputId, List<Block> chain) {
+		long location;
+		lock.readLock().lock();
+		try {
+			location = outputs.get(key(outputId));
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (location < 0 || height(location) >= chain.size())
+			return -1;
+
+		Block block = chain.get(height(location));
+		if (block.isPruned())
+			return location;
+		if (position(location) >= block.transactions.size())
+			return -1;
+		for (TransactionOutput output : block.transactions.get(position(location)).outputs) {
+			if (output.id.equals(outputId))
+				return location;
+		}
+		return -1;
+	}
+
+	/**
+	 * Looks up a transaction in the chain by its id. The transactions of pruned
+	 * blocks can be read from a block store by passing its list view.
+	 * 
+	 * @param transactionId The id of the transaction
+	 * @param chain         The chain the index was built from
+	 * @return The transaction, or null if it is not in the chain or its block has
+	 *         been pruned
+	 */
+	public Transaction getTransaction(String transactionId, List<Block> chain) {
+		long location = locateTransaction(transactionId);
+		if (location < 0)
+			return null;
+
+		if (height(location) >= chain.size())
+			return null;
+		Block block = chain.get(height(location));
+		if (block.isPruned() || position(location) >= block.transactions.size())
+			return null;
+		Transaction transaction = block.transactions.get(position(location));
+		return transactionId.equals(transaction.transactionId) ? transaction : null;
+	}
+
+	public static int height(long location) {
+		return (int) (location >>> 32);
+	}
+
+	public static int position(long location) {
+		return (int) location;
+	}
+
+	private static long location(int height, int position) {
+		return ((long) height << 32) | (position & 0xffffffffL);
+	}
+
+	// Returns the number of indexed blocks, transactions and outputs.
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return blocks.size() + transactions.size() + outputs.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Returns the bytes held by the index tables.
+	public long memoryBytes() {
+		lock.readLock().lock();
+		try {
+			return blocks.memoryBytes() + transactions.memoryBytes() + outputs.memoryBytes();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Turns an id into a long key. For a hexadecimal hash these are its last 8
+	 * bytes. Any other id, such as the "0" of the genesis transaction, is hashed
+	 * first.
+	 */
+	static long key(String id) {
+		if (id.length() == 64) {
+			long key = 0;
+			for (int i = 48; i < 64; i++) {
+				int digit = Character.digit(id.charAt(i), 16);
+				if (digit < 0)
+					return textKey(id);
+				key = (key << 4) | digit;
+			}
+			return key;
+		}
+		return textKey(id);
+	}
+
+	private static long textKey(String id) {
+		byte[] hash = CryptoService.sha256(id.getBytes(StandardCharsets.UTF_8));
+		long key = 0;
+		for (int i = 0; i < 8; i++) {
+			key = (key << 8) | (hash[i] & 0xff);
+		}
+		return key;
+	}
+}
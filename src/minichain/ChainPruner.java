@@ -0,0 +1,208 @@
+package minichain;
+
+import java.util.List;
+
+/**
+ * The ChainPruner class keeps the heap of a long-running chain bounded by
+ * dropping the transactions of old blocks. A pruned block keeps its header, so
+ * the main chain still links up and proves its work, while the unspent outputs
+ * stay in the UTXO set of the validator. With a {@link BlockStore} the whole
+ * blocks remain on disk and can be read back from there.
+ *
+ * The bodies of the last depth blocks are kept. Older ones are dropped once
+ * the last checkpoint of the validator has passed them, since revalidation
+ * replays the blocks after it. The pruner also estimates what the chain keeps
+ * in memory: the bodies kept, the header and index entries of every block and
+ * the copy of the unspent outputs at the last checkpoint. While that is more
+ * than the memory budget, the oldest bodies are dropped even within the depth.
+ * This is an estimate the pruner acts on, not a limit on the heap, and headers
+ * and index entries cannot be dropped.
+ *
+ * Bodies after the last checkpoint are needed for revalidation, so the budget
+ * can only drop them after the validator takes a checkpoint at the tip. That
+ * copies the unspent outputs, so it happens at most once every
+ * {@link #CHECKPOINT_SPACING} blocks, and only when the bodies it lets go of
+ * are estimated to take more than the copy. Only the body of the tip is always
+ * kept.
+ *
+ * Blocks without bodies cannot be disconnected, so the undo records of the
+ * validator are trimmed to the blocks that keep theirs, and branches that fork
+ * below them are removed from the block tree. Reorganizations are therefore as
+ * deep as the bodies kept.
+ *
+ * The pruner is told about the main chain as a listener of the block tree and
+ * prunes when {@link #prune()} is called after a block has been added, never
+ * in the middle of a reorganization.
+ */
+public class ChainPruner implements BlockTree.Listener {
+
+	// The estimated heap of the parts of a block body, measured with the prune
+	// benchmarks on a 64-bit JVM with compressed references.
+	static final int TRANSACTION_BYTES = 900;
+	static final int INPUT_BYTES = 150;
+	static final int OUTPUT_BYTES = 300;
+	// What stays after pruning: a block header with its hashes, an entry of a
+	// ChainIndex table and an unspent output in the checkpoint copy
+	static final int HEADER_BYTES = 400;
+	static final int INDEX_BYTES = 32;
+	static final int UTXO_BYTES = 80;
+
+	private static final int BRANCH_INTERVAL = 100; // pruned blocks between scans of the block tree
+	static final int CHECKPOINT_SPACING = 10; // blocks between checkpoints taken for the budget
+
+	private final IncrementalValidator validator;
+	private final BlockTree tree;
+	private final List<Block> chain;
+	private final int depth;
+	private final long memoryBudget;
+
+	private int firstRetained; // the lowest height that keeps its body
+	private long bodyBytes; // the estimated heap of the bodies kept
+	private long headerBytes; // the estimated heap of the headers and index entries of the main chain
+	private int branchesPrunedAt; // firstRetained at the last scan of the block tree
+
+	/**
+	 * Creates a pruner for the main chain of a block tree. It must be added to the
+	 * tree as a listener.
+	 *
+	 * @param validator    The validator of the main chain
+	 * @param tree         The block tree
+	 * @param chain        The list the tree keeps equal to the main chain
+	 * @param depth        The number of blocks at the tip that keep their bodies
+	 * @param memoryBudget The estimated bytes the chain may keep in memory, see
+	 *                     {@link #getRetainedBytes()}
+	 */
+	public ChainPruner(IncrementalValidator validator, BlockTree tree, List<Block> chain, int depth,
+			long memoryBudget) {
+		if (depth < 1)
+			throw new IllegalArgumentException("depth must be at least 1");
+		if (memoryBudget < 0)
+			throw new IllegalArgumentException("memoryBudget must not be negative");
+
+		this.validator = validator;
+		this.tree = tree;
+		this.chain = chain;
+		this.depth = depth;
+		this.memoryBudget = memoryBudget;
+
+		while (firstRetained < chain.size() && chain.get(firstRetained).isPruned()) {
+			firstRetained++;
+		}
+		for (int height = 0; height < chain.size(); height++) {
+			Block block = chain.get(height);
+			headerBytes += headerBytes(block); // pruned blocks only count their header
+			if (height >= firstRetained)
+				bodyBytes += bodyBytes(block);
+		}
+	}
+
+	@Override
+	public void connected(Block block, int height) {
+		bodyBytes += bodyBytes(block);
+		headerBytes += headerBytes(block);
+	}
+
+	@Override
+	public void disconnected(Block block, int height) {
+		bodyBytes -= bodyBytes(block);
+		headerBytes -= headerBytes(block);
+	}
+
+	/**
+	 * Drops the bodies of the blocks that are deeper than the depth or do not fit
+	 * into the memory budget, oldest first. Called after every block added to the
+	 * tree.
+	 */
+	public void prune() {
+		int height = chain.size() - 1;
+
+		// A reorganization that disconnects the checkpoint resets it to the genesis
+		// block, from where revalidation would replay pruned blocks
+		if (validator.getCheckpointHeight() < firstRetained - 1)
+			validator.checkpoint();
+
+		while (firstRetained < height) {
+			boolean deep = firstRetained <= height - depth;
+			boolean over = getRetainedBytes() > memoryBudget;
+			if (!deep && !over)
+				break;
+			if (firstRetained > validator.getCheckpointHeight()) {
+				// Revalidation replays it until the next checkpoint, which only the
+				// budget may bring forward
+				if (!over || height - validator.getCheckpointHeight() < CHECKPOINT_SPACING
+						|| bodyBytes <= (long) UTXO_BYTES * validator.getUtxos().size())
+					break;
+				validator.checkpoint();
+			}
+
+			Block block = chain.get(firstRetained);
+			bodyBytes -= bodyBytes(block);
+			block.prune();
+			// The hash of the parent is the same string, which saves a copy per block
+			if (firstRetained > 0 && block.previousHash.equals(chain.get(firstRetained - 1).hash))
+				block.previousHash = chain.get(firstRetained - 1).hash;
+			firstRetained++;
+			Metrics.blocksPruned.increment();
+		}
+
+		validator.trimUndos(height - firstRetained + 1);
+		if (firstRetained - branchesPrunedAt >= BRANCH_INTERVAL) {
+			tree.pruneBranches(firstRetained - 1);
+			branchesPrunedAt = firstRetained;
+		}
+	}
+
+	// Returns the lowest height of the main chain whose block keeps its body.
+	public int getFirstRetained() {
+		return firstRetained;
+	}
+
+	/**
+	 * Returns the estimated heap the chain keeps: the block bodies kept, the
+	 * headers and index entries of every block of the main chain and the copy of
+	 * the unspent outputs at the last checkpoint.
+	 *
+	 * @return The estimated bytes
+	 */
+	public long getRetainedBytes() {
+		return bodyBytes + headerBytes + (long) UTXO_BYTES * validator.getCheckpointOutputs();
+	}
+
+	// Returns the estimated heap of the block bodies kept, in bytes.
+	public long getBodyBytes() {
+		return bodyBytes;
+	}
+
+	/**
+	 * Estimates the heap the transactions of a block take, including their
+	 * inputs and outputs.
+	 *
+	 * @param block The block
+	 * @return The estimated bytes, 0 for a pruned block
+	 */
+	public static long bodyBytes(Block block) {
+		long bytes = 0;
+		for (Transaction transaction : block.transactions) {
+			bytes += TRANSACTION_BYTES + (long) OUTPUT_BYTES * transaction.outputs.size();
+			if (transaction.inputs != null)
+				bytes += (long) INPUT_BYTES * transaction.inputs.size();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Estimates the heap a block of the main chain keeps after pruning: its
+	 * header and the index entries of the block, its transactions and their
+	 * outputs.
+	 *
+	 * @param block The block
+	 * @return The estimated bytes, counting only the header for a pruned block
+	 */
+	public static long headerBytes(Block block) {
+		long bytes = HEADER_BYTES + INDEX_BYTES;
+		for (Transaction transaction : block.transactions) {
+			bytes += INDEX_BYTES * (1L + transaction.outputs.size());
+		}
+		return bytes;
+	}
+}
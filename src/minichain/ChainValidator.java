@@ -0,0 +1,323 @@
+package minichain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import minichain.ValidationReport.Stage;
+
+/**
+ * The ChainValidator class checks a whole chain in stages: block hashes and
+ * links, proof of work against the target the {@link ProofOfWork} sets for
+ * each block, Merkle roots and transaction signatures and finally a replay of
+ * every transaction against a fresh set of unspent outputs. Signatures do not depend
+ * on each other, so they can be checked in parallel across all cores. Only the
+ * UTXO replay depends on transaction order and always runs sequentially.
+ * 
+ * Besides the whole chain, the validator can check a segment of it: blocks
+ * that extend a trusted block, replayed against the unspent outputs at that
+ * block. The {@link IncrementalValidator} uses this to check one block at a
+ * time, or everything after a checkpoint. Because targets depend on the blocks
+ * before them, more trusted blocks can be passed in front of the segment.
+ */
+public class ChainValidator {
+
+	// The number of blocks before a block whose median timestamp it must not be earlier than
+	public static final int MEDIAN_TIME_BLOCKS = 11;
+
+	private final boolean parallelSignatures;
+
+	public ChainValidator(boolean parallelSignatures) {
+		this.parallelSignatures = parallelSignatures;
+	}
+
+	/**
+	 * Returns how many blocks before a block the header checks need to see: the
+	 * ones its target is computed from and the ones its timestamp is compared with.
+	 *
+	 * @param proofOfWork The hash function and targets of the chain
+	 * @return The number of blocks
+	 */
+	public static int headerHistory(ProofOfWork proofOfWork) {
+		return Math.max(proofOfWork.getWindow() + 1, MEDIAN_TIME_BLOCKS);
+	}
+
+	/**
+	 * Validates the chain. The first block is trusted as the genesis block and
+	 * the genesis outputs seed the set of unspent outputs.
+	 * 
+	 * @param chain          The blocks to validate, starting with the genesis block
+	 * @param genesisOutputs The outputs created by the genesis transaction
+	 * @param proofOfWork    The hash function and targets of the chain
+	 * @return A report with the outcome and the time spent in each stage
+	 */
+	public ValidationReport validate(List<Block> chain, List<TransactionOutput> genesisOutputs,
+			ProofOfWork proofOfWork) {
+		HashMap<String, TransactionOutput> tempUTXOs = new HashMap<String, TransactionOutput>();
+		for (TransactionOutput output : genesisOutputs) {
+			tempUTXOs.put(output.id, output);
+		}
+
+		return validate(chain, 0, new UtxoView() {
+			@Override
+			public TransactionOutput get(String id) {
+				return tempUTXOs.get(id);
+			}
+
+			@Override
+			public void put(TransactionOutput output) {
+				tempUTXOs.put(output.id, output);
+			}
+
+			@Override
+			public TransactionOutput remove(String id) {
+				return tempUTXOs.remove(id);
+			}
+		}, proofOfWork);
+	}
+
+	/**
+	 * Validates the blocks that follow a trusted block. The transactions are
+	 * replayed against, and change, the given unspent outputs.
+	 * 
+	 * @param segment     The trusted block followed by the blocks to validate
+	 * @param firstHeight The height of the trusted block, used in messages
+	 * @param utxos       The unspent outputs after the trusted block
+	 * @param proofOfWork The hash function and targets of the chain
+	 * @return A report with the outcome and the time spent in each stage
+	 */
+	public ValidationReport validate(List<Block> segment, int firstHeight, UtxoView utxos,
+			ProofOfWork proofOfWork) {
+		return validate(segment, 1, firstHeight, utxos, proofOfWork);
+	}
+
+	/**
+	 * Validates the blocks that follow a number of trusted blocks. The trusted
+	 * blocks are only read to work out the targets of the blocks after them.
+	 * 
+	 * @param blocks      The trusted blocks followed by the blocks to validate
+	 * @param trusted     The number of trusted blocks, at least 1
+	 * @param firstHeight The height of the first block
+	 * @param utxos       The unspent outputs after the last trusted block
+	 * @param proofOfWork The hash function and targets of the chain
+	 * @return A report with the outcome and the time spent in each stage
+	 */
+	public ValidationReport validate(List<Block> blocks, int trusted, int firstHeight, UtxoView utxos,
+			ProofOfWork proofOfWork) {
+		if (trusted < 1)
+			throw new IllegalArgumentException("At least one block must be trusted");
+		ValidationReport report = new ValidationReport(firstHeight + blocks.size());
+
+		if (checkHeaders(blocks, trusted, firstHeight, proofOfWork, report)
+				&& checkProofOfWork(blocks, trusted, firstHeight, proofOfWork, report)
+				&& checkSignatures(blocks, trusted, firstHeight, report)) {
+			replayTransactions(blocks, trusted, utxos, report);
+		}
+
+		for (Stage stage : Stage.values()) {
+			Metrics.validationNanos[stage.ordinal()].record(report.getNanos(stage));
+		}
+		return report;
+	}
+
+	/**
+	 * Checks only the hashes, links and proof of work of the blocks that follow a
+	 * number of trusted blocks, e.g. for a block on a side branch whose
+	 * transactions cannot be replayed yet.
+	 * 
+	 * @param blocks      The trusted blocks followed by the blocks to check
+	 * @param trusted     The number of trusted blocks, at least 1
+	 * @param firstHeight The height of the first block
+	 * @param proofOfWork The hash function and targets of the chain
+	 * @return A report with the outcome and the time spent in each stage
+	 */
+	public ValidationReport validateHeaders(List<Block> blocks, int trusted, int firstHeight,
+			ProofOfWork proofOfWork) {
+		if (trusted < 1)
+			throw new IllegalArgumentException("At least one block must be trusted");
+		ValidationReport report = new ValidationReport(firstHeight + blocks.size());
+		if (checkHeaders(blocks, trusted, firstHeight, proofOfWork, report))
+			checkProofOfWork(blocks, trusted, firstHeight, proofOfWork, report);
+		return report;
+	}
+
+	// Compares the registered hash of every block with its calculated hash and
+	// with the previous hash of the block after it, and checks that its timestamp
+	// is neither earlier than the median of the blocks before it nor too far
+	// ahead of local time.
+	private boolean checkHeaders(List<Block> chain, int trusted, int firstHeight, ProofOfWork proofOfWork,
+			ValidationReport report) {
+		long start = System.nanoTime();
+		try {
+			long latest = System.currentTimeMillis() + proofOfWork.getMaxFutureMillis();
+			for (int i = trusted; i < chain.size(); i++) {
+				Block currentBlock = chain.get(i);
+				Block previousBlock = chain.get(i - 1);
+
+				if (!currentBlock.hash.equals(currentBlock.calculateHash(proofOfWork))) {
+					report.fail("#Current Hashes not equal on Block " + (firstHeight + i));
+					return false;
+				}
+				if (!previousBlock.hash.equals(currentBlock.previousHash)) {
+					report.fail("#Previous Hashes not equal on Block " + (firstHeight + i) + ". Previous Block Hash: "
+							+ previousBlock.hash + ", Current Block's Previous Hash: " + currentBlock.previousHash);
+					return false;
+				}
+				if (currentBlock.getTimeStamp() < medianTime(chain.subList(Math.max(0, i - MEDIAN_TIME_BLOCKS), i))) {
+					report.fail("#Block " + (firstHeight + i)
+							+ " timestamp is earlier than the median of the blocks before it");
+					return false;
+				}
+				if (currentBlock.getTimeStamp() > latest) {
+					report.fail("#Block " + (firstHeight + i) + " timestamp is too far in the future");
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			report.addTime(Stage.HEADER_HASH, System.nanoTime() - start);
+		}
+	}
+
+	// Returns the median timestamp of the blocks.
+	private static long medianTime(List<Block> blocks) {
+		long[] times = new long[blocks.size()];
+		for (int i = 0; i < times.length; i++) {
+			times[i] = blocks.get(i).getTimeStamp();
+		}
+		Arrays.sort(times);
+		return times[times.length / 2];
+	}
+
+	// Checks that every block records the target the proof of work expects after
+	// the blocks before it, and that its hash meets that target.
+	private boolean checkProofOfWork(List<Block> chain, int trusted, int firstHeight, ProofOfWork proofOfWork,
+			ValidationReport report) {
+		long start = System.nanoTime();
+		try {
+			for (int i = trusted; i < chain.size(); i++) {
+				Block block = chain.get(i);
+				int expected = proofOfWork.nextTarget(chain.subList(0, i), firstHeight + i);
+				if (block.target != expected) {
+					report.fail("#Block " + (firstHeight + i) + " has target " + Target.toString(block.target)
+							+ " instead of " + Target.toString(expected));
+					return false;
+				}
+				if (!Target.meets(StringUtil.hexToBytes32(block.hash), Target.expand(expected))) {
+					report.fail("#Block " + (firstHeight + i) + " hasn't been mined");
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			report.addTime(Stage.PROOF_OF_WORK, System.nanoTime() - start);
+		}
+	}
+
+	// Checks that the transactions of every block after the trusted ones hash to
+	// its Merkle root, and verifies their signatures.
+	private boolean checkSignatures(List<Block> chain, int trusted, int firstHeight, ValidationReport report) {
+		long start = System.nanoTime();
+		try {
+			List<Transaction> transactions = new ArrayList<Transaction>();
+			for (int i = trusted; i < chain.size(); i++) {
+				Block block = chain.get(i);
+				if (!block.isPruned() && !block.getMerkleTree().getRootHex().equals(block.merkleRoot)) {
+					report.fail("#Block " + (firstHeight + i) + " transactions do not match its Merkle root");
+					return false;
+				}
+				transactions.addAll(block.transactions);
+			}
+
+			IntStream indexes = IntStream.range(0, transactions.size());
+			if (parallelSignatures)
+				indexes = indexes.parallel();
+			int invalid = indexes.filter(t -> !transactions.get(t).verifySignature()).findFirst().orElse(-1);
+
+			if (invalid >= 0) {
+				report.fail("#Signature on Transaction(" + transactions.get(invalid).transactionId + ") is Invalid");
+				return false;
+			}
+			return true;
+		} finally {
+			report.addTime(Stage.SIGNATURES, System.nanoTime() - start);
+		}
+	}
+
+	// Replays every transaction in order, spending and creating outputs.
+	private boolean replayTransactions(List<Block> chain, int trusted, UtxoView tempUTXOs, ValidationReport report) {
+		long start = System.nanoTime();
+		try {
+			for (int i = trusted; i < chain.size(); i++) {
+				Block currentBlock = chain.get(i);
+
+				TransactionOutput tempOutput;
+				for (int t = 0; t < currentBlock.transactions.size(); t++) {
+					Transaction currentTransaction = currentBlock.transactions.get(t);
+
+					for (TransactionInput input : currentTransaction.inputs) {
+						tempOutput = tempUTXOs.get(input.transactionOutputId);
+
+						if (tempOutput == null) {
+							report.fail("#Referenced input on Transaction(" + t + ") is Missing");
+							return false;
+						}
+
+						// Blocks read from the block store only carry output ids
+						if (input.UTXO == null) {
+							input.UTXO = tempOutput;
+						} else if (input.UTXO.value != tempOutput.value) {
+							report.fail("#Referenced input Transaction(" + t + ") value is Invalid");
+							return false;
+						}
+
+						tempUTXOs.remove(input.transactionOutputId);
+					}
+
+					try {
+						if (currentTransaction.getInputsValue() != currentTransaction.getOutputsValue()) {
+							report.fail("#Inputs are note equal to outputs on Transaction(" + t + ")");
+							return false;
+						}
+					} catch (ArithmeticException e) {
+						report.fail("#Values overflow on Transaction(" + t + ")");
+						return false;
+					}
+					if (!currentTransaction.hasValidAmounts()) {
+						report.fail("#Amounts are invalid on Transaction(" + t + ")");
+						return false;
+					}
+
+					for (TransactionOutput output : currentTransaction.outputs) {
+						tempUTXOs.put(output);
+					}
+
+					if (currentTransaction.payouts != null) {
+						if (!currentTransaction.outputsMatchPayouts()) {
+							report.fail("#Transaction(" + t + ") outputs do not match its payouts");
+							return false;
+						}
+						continue;
+					}
+					if (currentTransaction.outputs.get(0).reciepient != currentTransaction.recipient) {
+						report.fail("#Transaction(" + t + ") output reciepient is not who it should be");
+						return false;
+					}
+					if (currentTransaction.outputs.get(0).value != currentTransaction.value) {
+						report.fail("#Transaction(" + t + ") output value is not the value it should be");
+						return false;
+					}
+					if (currentTransaction.outputs.get(1).reciepient != currentTransaction.sender) {
+						report.fail("#Transaction(" + t + ") output 'change' is not sender.");
+						return false;
+					}
+				}
+			}
+			return true;
+		} finally {
+			report.addTime(Stage.UTXO_REPLAY, System.nanoTime() - start);
+		}
+	}
+}
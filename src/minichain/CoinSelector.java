@@ -0,0 +1,78 @@
+package minichain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The CoinSelector class picks the unspent outputs that pay for a transaction
+ * from a wallet's outputs, which are sorted by value once. For each target the
+ * smallest single output that covers it is taken, which keeps the change and
+ * the number of inputs small. If no single output is large enough, the largest
+ * outputs are combined until the target is covered. Selected outputs are
+ * removed, so one selector can pay for several transactions without spending
+ * an output twice.
+ */
+public class CoinSelector {
+
+	private final ArrayList<TransactionOutput> available; // sorted by ascending value
+	private long total;
+
+	public CoinSelector(List<TransactionOutput> outputs) {
+		available = new ArrayList<TransactionOutput>(outputs);
+		available.sort(Comparator.comparingLong(output -> output.value));
+		for (TransactionOutput output : available) {
+			total = Amount.add(total, output.value);
+		}
+	}
+
+	/**
+	 * Selects outputs worth at least the target.
+	 * 
+	 * @param target The amount to cover
+	 * @return The selected outputs, or null if the remaining outputs are not worth
+	 *         enough, in which case nothing is selected
+	 */
+	public List<TransactionOutput> select(long target) {
+		if (target > total)
+			return null;
+
+		int index = firstCovering(target);
+		if (index < available.size()) {
+			total -= available.get(index).value;
+			return Collections.singletonList(available.remove(index));
+		}
+
+		List<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+		long sum = 0;
+		while (sum < target) {
+			TransactionOutput largest = available.remove(available.size() - 1);
+			sum += largest.value;
+			selected.add(largest);
+		}
+		total -= sum;
+		return selected;
+	}
+
+	// Returns the index of the first output worth at least the target, or the
+	// number of outputs if there is none.
+	private int firstCovering(long target) {
+		int low = 0;
+		int high = available.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (available.get(middle).value < target) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	// Returns the total value of the outputs that are not selected yet.
+	public long getAvailable() {
+		return total;
+	}
+}
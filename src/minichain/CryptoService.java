@@ -0,0 +1,182 @@
+package minichain;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.jce.spec.ECPrivateKeySpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.WNafUtil;
+import org.bouncycastle.util.BigIntegers;
+
+/**
+ * The CryptoService class signs, verifies and hashes byte payloads. Every
+ * thread keeps its own ECDSA {@link Signature} and SHA-256
+ * {@link MessageDigest}, so the provider is only looked up once per thread
+ * instead of on every call.
+ */
+public class CryptoService {
+
+	// The curve of every wallet key, see Wallet.generateKeyPair.
+	public static final String CURVE = "prime192v1";
+	private static final ECNamedCurveParameterSpec CURVE_SPEC = curveSpec();
+	// Multiplies the generator point using precomputed multiples of it.
+	private static final FixedPointCombMultiplier MULTIPLIER = new FixedPointCombMultiplier();
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	});
+
+	private static final ThreadLocal<Signature> ECDSA = ThreadLocal.withInitial(() -> {
+		try {
+			return Signature.getInstance("ECDSA", "BC");
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	});
+
+	private static final ThreadLocal<KeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+		try {
+			return KeyFactory.getInstance("ECDSA", "BC");
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	});
+
+	private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+	// The parameters of the curve with Bouncy Castle's optimized field
+	// arithmetic for it. ECNamedCurveTable returns the same curve with generic
+	// BigInteger arithmetic, which makes every point multiplication several
+	// times slower.
+	private static ECNamedCurveParameterSpec curveSpec() {
+		X9ECParameters curve = CustomNamedCurves.getByOID(X9ObjectIdentifiers.prime192v1);
+		return new ECNamedCurveParameterSpec(CURVE, curve.getCurve(), curve.getG(), curve.getN(), curve.getH(),
+				curve.getSeed());
+	}
+
+	// Returns the calling thread's SHA-256 digest.
+	public static MessageDigest sha256() {
+		return SHA256.get();
+	}
+
+	// Hashes the given bytes with SHA-256.
+	public static byte[] sha256(byte[] input) {
+		return SHA256.get().digest(input);
+	}
+
+	/**
+	 * Signs a payload with the calling thread's ECDSA signature instance.
+	 * 
+	 * @param privateKey The private key used for signing
+	 * @param payload    The bytes to sign
+	 * @return The signature
+	 */
+	public static byte[] sign(PrivateKey privateKey, byte[] payload) {
+		Signature dsa = ECDSA.get();
+		try {
+			dsa.initSign(privateKey);
+			dsa.update(payload);
+			return dsa.sign();
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Verifies the signature of a payload with the calling thread's ECDSA
+	 * signature instance.
+	 * 
+	 * @param publicKey The public key used for verification
+	 * @param payload   The bytes that were signed
+	 * @param signature The signature to be verified
+	 * @return true if the signature is valid, false otherwise
+	 */
+	public static boolean verify(PublicKey publicKey, byte[] payload, byte[] signature) {
+		Signature ecdsaVerify = ECDSA.get();
+		try {
+			ecdsaVerify.initVerify(publicKey);
+			ecdsaVerify.update(payload);
+			return ecdsaVerify.verify(signature);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Encodes a public key as a compressed curve point, which for prime192v1 is
+	 * 25 bytes instead of the 75 bytes of the X.509 encoding.
+	 * 
+	 * @param publicKey A key on the wallet curve
+	 * @return The compressed point
+	 */
+	public static byte[] compressKey(PublicKey publicKey) {
+		return ((ECPublicKey) publicKey).getQ().getEncoded(true);
+	}
+
+	// Decodes a public key from a compressed point on the wallet curve.
+	public static PublicKey decompressKey(byte[] point) {
+		try {
+			return KEY_FACTORY.get()
+					.generatePublic(new ECPublicKeySpec(CURVE_SPEC.getCurve().decodePoint(point), CURVE_SPEC));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Generates a random key pair on the wallet curve. Like Bouncy Castle's key
+	// pair generator it skips private keys with too few non-zero digits.
+	public static KeyPair generateKeyPair() {
+		BigInteger order = CURVE_SPEC.getN();
+		int minWeight = order.bitLength() >>> 2;
+		SecureRandom random = RANDOM.get();
+		BigInteger privateKey;
+		do {
+			privateKey = BigIntegers.createRandomBigInteger(order.bitLength(), random);
+		} while (privateKey.compareTo(BigInteger.ONE) <= 0 || privateKey.compareTo(order) >= 0
+				|| WNafUtil.getNafWeight(privateKey) < minWeight);
+		return keyPair(privateKey);
+	}
+
+	/**
+	 * Builds the key pair of a private key on the wallet curve, computing its
+	 * public key.
+	 * 
+	 * @param privateKey The private key, from 1 to {@link #order()} - 1
+	 * @return The key pair
+	 */
+	public static KeyPair keyPair(BigInteger privateKey) {
+		ECPoint point = MULTIPLIER.multiply(CURVE_SPEC.getG(), privateKey).normalize();
+		try {
+			KeyFactory factory = KEY_FACTORY.get();
+			return new KeyPair(factory.generatePublic(new ECPublicKeySpec(point, CURVE_SPEC)),
+					factory.generatePrivate(new ECPrivateKeySpec(privateKey, CURVE_SPEC)));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Returns the order of the generator point of the wallet curve, which bounds
+	// private keys.
+	public static BigInteger order() {
+		return CURVE_SPEC.getN();
+	}
+}
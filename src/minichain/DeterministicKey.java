@@ -0,0 +1,140 @@
+package minichain;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.util.BigIntegers;
+
+/**
+ * The DeterministicKey class derives wallet keys from a seed, following the
+ * scheme of BIP 32. Every key has a chain code next to its private key, and
+ * the key with a given index below it is computed from both with HMAC-SHA512
+ * and one addition modulo the curve order. A wallet that keeps only its seed
+ * can therefore derive as many addresses as it needs, and derive them again
+ * later, without storing a private key for each of them.
+ *
+ * Hardened indexes, those with the {@link #HARDENED} bit set, hash the private
+ * key; the others hash the public key, whose point is computed once per key.
+ * Since the curve order of prime192v1 has 192 bits, the first 24 bytes of the
+ * HMAC are used where BIP 32 uses 32, so the keys differ from those of BIP 32
+ * wallets on secp256k1.
+ */
+public final class DeterministicKey {
+
+	public static final int HARDENED = 0x80000000;
+
+	private static final byte[] MASTER_SECRET = "MiniChain seed".getBytes(StandardCharsets.UTF_8);
+	private static final BigInteger ORDER = CryptoService.order();
+	private static final int KEY_LENGTH = (ORDER.bitLength() + 7) / 8;
+
+	private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance("HmacSHA512");
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	});
+
+	private final BigInteger privateKey;
+	private final byte[] chainCode;
+	private KeyPair keyPair; // computed when first needed
+
+	private DeterministicKey(BigInteger privateKey, byte[] chainCode) {
+		this.privateKey = privateKey;
+		this.chainCode = chainCode;
+	}
+
+	/**
+	 * Returns the master key of a seed.
+	 *
+	 * @param seed The seed, e.g. 32 random bytes kept by the wallet owner
+	 * @return The master key
+	 * @throws IllegalArgumentException in the rare case that the seed gives no
+	 *                                  valid key
+	 */
+	public static DeterministicKey fromSeed(byte[] seed) {
+		DeterministicKey key = of(hmac(MASTER_SECRET, seed), BigInteger.ZERO);
+		if (key == null)
+			throw new IllegalArgumentException("The seed gives no valid key, use another one");
+		return key;
+	}
+
+	// Splits an HMAC into a tweak added to the parent key and the chain code.
+	// Returns null if the tweak or the key is out of range.
+	private static DeterministicKey of(byte[] hmac, BigInteger parent) {
+		BigInteger tweak = new BigInteger(1, Arrays.copyOf(hmac, KEY_LENGTH));
+		if (tweak.compareTo(ORDER) >= 0)
+			return null;
+		BigInteger key = tweak.add(parent).mod(ORDER);
+		if (key.signum() == 0)
+			return null;
+		return new DeterministicKey(key, Arrays.copyOfRange(hmac, 32, 64));
+	}
+
+	/**
+	 * Derives the key with the given index below this one. As in BIP 32, an index
+	 * that gives no valid key is skipped for the next one.
+	 *
+	 * @param index The index, hardened if {@link #HARDENED} is set
+	 * @return The child key
+	 */
+	public DeterministicKey derive(int index) {
+		while (true) {
+			byte[] data;
+			if ((index & HARDENED) != 0) {
+				data = new byte[1 + KEY_LENGTH + 4];
+				BigIntegers.asUnsignedByteArray(privateKey, data, 1, KEY_LENGTH);
+			} else {
+				byte[] point = CryptoService.compressKey(getKeyPair().getPublic());
+				data = Arrays.copyOf(point, point.length + 4);
+			}
+			int offset = data.length - 4;
+			data[offset] = (byte) (index >>> 24);
+			data[offset + 1] = (byte) (index >>> 16);
+			data[offset + 2] = (byte) (index >>> 8);
+			data[offset + 3] = (byte) index;
+
+			DeterministicKey child = of(hmac(chainCode, data), privateKey);
+			if (child != null)
+				return child;
+			index++;
+		}
+	}
+
+	/**
+	 * Derives a key along a path of indexes, e.g. account and address.
+	 *
+	 * @param path The indexes, from the top
+	 * @return The key at the end of the path
+	 */
+	public DeterministicKey derive(int... path) {
+		DeterministicKey key = this;
+		for (int index : path) {
+			key = key.derive(index);
+		}
+		return key;
+	}
+
+	// Returns the key pair of this key, computing the public key the first time.
+	public synchronized KeyPair getKeyPair() {
+		if (keyPair == null)
+			keyPair = CryptoService.keyPair(privateKey);
+		return keyPair;
+	}
+
+	private static byte[] hmac(byte[] key, byte[] data) {
+		Mac mac = HMAC.get();
+		try {
+			mac.init(new SecretKeySpec(key, "HmacSHA512"));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+		return mac.doFinal(data);
+	}
+}
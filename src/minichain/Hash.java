@@ -0,0 +1,119 @@
+package minichain;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The Hash class is a 32-byte SHA-256 id held in four longs. It takes 48 bytes
+ * of heap instead of the 100 or so of a 64-character hex string, and equals
+ * and hashCode compare and mix longs instead of characters. The hex form is
+ * only built by {@link #toString()}.
+ */
+public final class Hash {
+
+	public static final int LENGTH = 32;
+
+	// The value of each lowercase hex digit by character, -1 for all others.
+	private static final byte[] DIGITS = new byte[128];
+
+	static {
+		Arrays.fill(DIGITS, (byte) -1);
+		for (int i = 0; i < 16; i++) {
+			DIGITS["0123456789abcdef".charAt(i)] = (byte) i;
+		}
+	}
+
+	final long a; // the first 8 bytes, big-endian
+	final long b;
+	final long c;
+	final long d;
+
+	Hash(long a, long b, long c, long d) {
+		this.a = a;
+		this.b = b;
+		this.c = c;
+		this.d = d;
+	}
+
+	public static Hash of(byte[] bytes) {
+		if (bytes.length != LENGTH)
+			throw new IllegalArgumentException("A hash has 32 bytes, not " + bytes.length);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		return new Hash(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+	}
+
+	/**
+	 * Parses a hash from 64 lowercase hex digits, the form
+	 * {@link StringUtil#bytesToHex} writes.
+	 *
+	 * @param hex The hash in hexadecimal
+	 * @return The hash
+	 * @throws IllegalArgumentException if the text is not such a hash
+	 */
+	public static Hash of(String hex) {
+		Hash hash = parse(hex);
+		if (hash == null)
+			throw new IllegalArgumentException("Not a hexadecimal hash: " + hex);
+		return hash;
+	}
+
+	// Parses a hash like of(String), but returns null for any other text, e.g.
+	// the id "0" of the genesis transaction.
+	public static Hash parse(String hex) {
+		if (hex == null || hex.length() != 2 * LENGTH)
+			return null;
+		long[] words = new long[4];
+		int invalid = 0;
+		for (int i = 0; i < 2 * LENGTH; i++) {
+			int digit = digit(hex.charAt(i));
+			invalid |= digit; // negative once any digit is invalid
+			words[i >>> 4] = words[i >>> 4] << 4 | (digit & 0xf);
+		}
+		return invalid < 0 ? null : new Hash(words[0], words[1], words[2], words[3]);
+	}
+
+	// Returns whether the text is 64 lowercase hex digits.
+	public static boolean isHash(String id) {
+		if (id.length() != 2 * LENGTH)
+			return false;
+		for (int i = 0; i < id.length(); i++) {
+			if (digit(id.charAt(i)) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static int digit(char c) {
+		return c < DIGITS.length ? DIGITS[c] : -1;
+	}
+
+	// Returns the first 8 bytes as a long, e.g. as a key of a primitive map.
+	public long prefix() {
+		return a;
+	}
+
+	public byte[] toBytes() {
+		return ByteBuffer.allocate(LENGTH).putLong(a).putLong(b).putLong(c).putLong(d).array();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof Hash))
+			return false;
+		Hash other = (Hash) o;
+		return a == other.a && b == other.b && c == other.c && d == other.d;
+	}
+
+	// SHA-256 output is already uniform, so the first bytes make a good hash code.
+	@Override
+	public int hashCode() {
+		return (int) (a ^ (a >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return StringUtil.bytesToHex(toBytes());
+	}
+}
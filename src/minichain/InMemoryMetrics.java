@@ -0,0 +1,132 @@
+package minichain;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The InMemoryMetrics class keeps every counter, histogram and gauge in memory
+ * so they can be read back, printed or checked in tests.
+ *
+ * Counters are {@link LongAdder}s, which stay cheap when many threads update
+ * them. Histograms count values in power-of-two buckets instead of storing
+ * them, so recording a value never allocates and percentiles are accurate to
+ * within a factor of two.
+ */
+public class InMemoryMetrics implements MetricsRegistry {
+
+	private final Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+	@Override
+	public Counter counter(String name) {
+		return counters.computeIfAbsent(name, n -> new AdderCounter());
+	}
+
+	@Override
+	public Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, n -> new BucketHistogram());
+	}
+
+	@Override
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	// Returns the current value of a gauge, or 0 if there is none by that name.
+	public long getGauge(String name) {
+		LongSupplier gauge = gauges.get(name);
+		return gauge == null ? 0 : gauge.getAsLong();
+	}
+
+	// Returns the value of every counter and gauge, sorted by name.
+	public Map<String, Long> getValues() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		counters.forEach((name, counter) -> values.put(name, counter.get()));
+		gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		getValues().forEach((name, value) -> sb.append(name).append(' ').append(value).append('\n'));
+		new TreeMap<String, Histogram>(histograms).forEach((name, histogram) -> {
+			if (histogram.getCount() > 0)
+				sb.append(String.format("%s count %d, mean %.0f, p50 %d, p99 %d, max %d%n", name,
+						histogram.getCount(), histogram.getMean(), histogram.getPercentile(50),
+						histogram.getPercentile(99), histogram.getMax()));
+		});
+		return sb.toString();
+	}
+
+	private static class AdderCounter implements Counter {
+
+		private final LongAdder count = new LongAdder();
+
+		@Override
+		public void add(long amount) {
+			count.add(amount);
+		}
+
+		@Override
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	// Bucket i counts the values whose highest set bit is bit i - 1, bucket 0
+	// counts zero and negative values.
+	private static class BucketHistogram implements Histogram {
+
+		private final AtomicLongArray buckets = new AtomicLongArray(65);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+		@Override
+		public void record(long value) {
+			buckets.incrementAndGet(value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value));
+			count.increment();
+			sum.add(value);
+			max.accumulateAndGet(value, Math::max);
+		}
+
+		@Override
+		public long getCount() {
+			return count.sum();
+		}
+
+		@Override
+		public long getMax() {
+			return getCount() == 0 ? 0 : max.get();
+		}
+
+		@Override
+		public double getMean() {
+			long n = getCount();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+		@Override
+		public long getPercentile(double percentile) {
+			long n = getCount();
+			if (n == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(n * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < 65; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0)
+					return i == 0 ? 0 : Math.min(i == 64 ? Long.MAX_VALUE : (1L << i) - 1, getMax());
+			}
+			return getMax();
+		}
+	}
+}
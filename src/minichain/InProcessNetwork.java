@@ -0,0 +1,142 @@
+package minichain;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The InProcessNetwork class connects {@link Node}s in the same JVM. Every
+ * message is delivered to each peer after a simulated latency, drawn uniformly
+ * between the latency and the latency plus the jitter, and handled on the
+ * peer's own thread. The network counts the messages and bytes it carries,
+ * and the messages a node failed to handle, and knows how many are still in
+ * flight, so a simulation can wait until gossip has settled.
+ */
+public class InProcessNetwork implements Transport {
+
+	private final long latencyMicros;
+	private final long jitterMicros;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentHashMap<Node, List<Node>> peers = new ConcurrentHashMap<Node, List<Node>>();
+	private final AtomicInteger inFlight = new AtomicInteger(); // sent but not yet handled
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	/**
+	 * Creates a network without any nodes.
+	 *
+	 * @param latencyMicros The minimum delay of a message, in microseconds
+	 * @param jitterMicros  The maximum extra delay of a message, in microseconds
+	 */
+	public InProcessNetwork(long latencyMicros, long jitterMicros) {
+		if (latencyMicros < 0 || jitterMicros < 0)
+			throw new IllegalArgumentException("latency and jitter must not be negative");
+
+		this.latencyMicros = latencyMicros;
+		this.jitterMicros = jitterMicros;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "network");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Makes two nodes peers of each other.
+	public void connect(Node a, Node b) {
+		if (a == b || peersOf(a).contains(b))
+			return;
+		peersOf(a).add(b);
+		peersOf(b).add(a);
+	}
+
+	/**
+	 * Connects the nodes in a ring, so that every node can reach every other,
+	 * and adds random links until each node has about the given number of peers.
+	 *
+	 * @param nodes  The nodes to connect
+	 * @param degree The number of peers per node
+	 * @param random The source of the random links
+	 */
+	public void connectRandom(List<Node> nodes, int degree, Random random) {
+		int n = nodes.size();
+		for (int i = 0; i < n; i++) {
+			connect(nodes.get(i), nodes.get((i + 1) % n));
+		}
+		int target = Math.min(degree, n - 1);
+		for (Node node : nodes) {
+			while (peersOf(node).size() < target) {
+				connect(node, nodes.get(random.nextInt(n)));
+			}
+		}
+	}
+
+	private List<Node> peersOf(Node node) {
+		return peers.computeIfAbsent(node, key -> new CopyOnWriteArrayList<Node>());
+	}
+
+	public List<Node> getPeers(Node node) {
+		return Collections.unmodifiableList(peersOf(node));
+	}
+
+	@Override
+	public void broadcast(Node from, byte[] message, Node except) {
+		for (Node peer : peersOf(from)) {
+			if (peer == except)
+				continue;
+			long delay = latencyMicros + (jitterMicros == 0 ? 0 : ThreadLocalRandom.current().nextLong(jitterMicros + 1));
+			inFlight.incrementAndGet();
+			messages.increment();
+			bytes.add(message.length);
+			scheduler.schedule(() -> peer.receive(from, message).whenComplete((result, error) -> {
+				if (error != null)
+					errors.increment();
+				inFlight.decrementAndGet();
+			}), delay, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	/**
+	 * Waits until every message sent has been handled, including the messages
+	 * sent while handling others.
+	 *
+	 * @param timeout The maximum time to wait
+	 * @param unit    The unit of the timeout
+	 * @return false if messages were still in flight when the time ran out
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (inFlight.get() > 0) {
+			if (System.nanoTime() > deadline)
+				return false;
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	// Returns the number of messages a node failed to handle, e.g. malformed ones.
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+}
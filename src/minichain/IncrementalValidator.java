@@ -0,0 +1,342 @@
+package minichain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The IncrementalValidator class validates each new block against the current
+ * tip and the unspent outputs at the tip, so appending a block costs as much
+ * as the block itself instead of a replay of the whole chain. A block that
+ * fails validation leaves the tip and its outputs unchanged.
+ *
+ * Every checkpoint interval blocks the validator records a checkpoint, the
+ * hash at that height together with a copy of the unspent outputs, and a full
+ * revalidation only replays the blocks after the last checkpoint. Known-good
+ * hashes can also be added as trusted checkpoints, which every block at that
+ * height must match.
+ *
+ * For every recent block the validator keeps an undo record of the outputs the
+ * block spent and created, so {@link #disconnect()} can take the tip off again
+ * in time proportional to the block, as a reorganization needs. Blocks deeper
+ * than the undo depth cannot be disconnected.
+ */
+public class IncrementalValidator {
+
+	public static final int DEFAULT_UNDO_DEPTH = 1000;
+
+	private final ChainValidator validator;
+	private final ProofOfWork proofOfWork;
+	private final int checkpointInterval;
+	private final int undoDepth;
+
+	private UtxoSet utxos = new UtxoSet(); // the unspent outputs at the tip
+	private final ArrayList<Block> chain = new ArrayList<Block>(); // the validated blocks, ending with the tip
+	private final ArrayDeque<BlockUndo> undos = new ArrayDeque<BlockUndo>(); // of the last blocks, the tip last
+
+	private final TreeMap<Integer, String> checkpoints = new TreeMap<Integer, String>();
+	private final TreeMap<Integer, String> trusted = new TreeMap<Integer, String>();
+	private final UtxoSet genesisUtxos;
+	private int savedHeight; // the last checkpoint with a copy of its outputs
+	private UtxoSet savedUtxos;
+
+	// Creates a validator that can disconnect up to DEFAULT_UNDO_DEPTH blocks.
+	public IncrementalValidator(Block genesis, List<TransactionOutput> genesisOutputs, ProofOfWork proofOfWork,
+			int checkpointInterval, boolean parallelSignatures) {
+		this(genesis, genesisOutputs, proofOfWork, checkpointInterval, DEFAULT_UNDO_DEPTH, parallelSignatures);
+	}
+
+	/**
+	 * Creates a validator whose tip is the genesis block.
+	 *
+	 * @param genesis            The trusted genesis block
+	 * @param genesisOutputs     The outputs created by the genesis transaction
+	 * @param proofOfWork        The hash function and targets of the chain
+	 * @param checkpointInterval The number of blocks between checkpoints
+	 * @param undoDepth          The number of blocks that can be disconnected
+	 * @param parallelSignatures Whether signatures are verified on all cores
+	 */
+	public IncrementalValidator(Block genesis, List<TransactionOutput> genesisOutputs, ProofOfWork proofOfWork,
+			int checkpointInterval, int undoDepth, boolean parallelSignatures) {
+		if (checkpointInterval < 1)
+			throw new IllegalArgumentException("checkpointInterval must be at least 1");
+		if (undoDepth < 0)
+			throw new IllegalArgumentException("undoDepth must not be negative");
+
+		this.validator = new ChainValidator(parallelSignatures);
+		this.proofOfWork = proofOfWork;
+		this.checkpointInterval = checkpointInterval;
+		this.undoDepth = undoDepth;
+
+		for (TransactionOutput output : genesisOutputs) {
+			utxos.put(output);
+		}
+		chain.add(genesis);
+		checkpoints.put(0, genesis.hash);
+		genesisUtxos = utxos.copy();
+		savedUtxos = genesisUtxos;
+	}
+
+	/**
+	 * Appends blocks that were validated before, such as those of a block store
+	 * on startup, without validating them again, and takes over the unspent
+	 * outputs after the last of them. The new tip becomes a checkpoint. There are
+	 * no undo records for the blocks, so they cannot be disconnected. Call it
+	 * before the unspent outputs are handed out.
+	 *
+	 * @param blocks   The blocks that extend the tip
+	 * @param tipUtxos The unspent outputs after the last block
+	 * @throws IllegalArgumentException if the blocks do not extend the tip
+	 */
+	public synchronized void trust(List<Block> blocks, UtxoSet tipUtxos) {
+		String previous = getTip().hash;
+		for (Block block : blocks) {
+			if (!block.previousHash.equals(previous))
+				throw new IllegalArgumentException("Block " + block.hash + " does not extend " + previous);
+			previous = block.hash;
+		}
+		chain.addAll(blocks);
+		undos.clear();
+		utxos = tipUtxos;
+		checkpoint();
+	}
+
+	// Adds a trusted hash for a height. Blocks at that height must match it.
+	public synchronized void addCheckpoint(int height, String hash) {
+		trusted.put(height, hash);
+	}
+
+	/**
+	 * Validates a block that extends the tip. If it is valid it becomes the new
+	 * tip and its transactions are applied to the unspent outputs.
+	 *
+	 * @param block The mined block
+	 * @return A report with the outcome and the time spent in each stage
+	 */
+	public synchronized ValidationReport validate(Block block) {
+		int height = getHeight();
+		int from = Math.max(0, height + 1 - ChainValidator.headerHistory(proofOfWork)); // the blocks the header depends on
+		List<Block> blocks = new ArrayList<Block>(chain.subList(from, height + 1));
+		blocks.add(block);
+
+		PendingUtxos pending = new PendingUtxos(utxos);
+		ValidationReport report = validator.validate(blocks, height - from + 1, from, pending, proofOfWork);
+
+		String hash = trusted.get(height + 1);
+		if (hash != null && !hash.equals(block.hash))
+			report.fail("#Block " + (height + 1) + " does not match checkpoint " + hash);
+
+		if (report.isValid()) {
+			undos.addLast(pending.commit());
+			if (undos.size() > undoDepth)
+				undos.removeFirst();
+			chain.add(block);
+			if ((height + 1) % checkpointInterval == 0)
+				checkpoint();
+		}
+		return report;
+	}
+
+	// Records a checkpoint at the tip, copying its unspent outputs. The
+	// ChainPruner takes one before it drops a block revalidation would replay.
+	synchronized void checkpoint() {
+		checkpoints.put(getHeight(), getTip().hash);
+		savedHeight = getHeight();
+		savedUtxos = utxos.copy();
+	}
+
+	// Returns how many blocks at the tip can be disconnected.
+	public synchronized int getUndoBlocks() {
+		return undos.size();
+	}
+
+	/**
+	 * Drops the oldest undo records until at most the given number is left, so
+	 * the blocks beyond them can no longer be disconnected.
+	 *
+	 * @param blocks The number of blocks at the tip that stay disconnectable
+	 */
+	synchronized void trimUndos(int blocks) {
+		while (undos.size() > Math.max(0, blocks)) {
+			undos.removeFirst();
+		}
+	}
+
+	/**
+	 * Takes the tip off the chain and restores the unspent outputs from before
+	 * it, using the undo record of the block. Checkpoints above the new tip are
+	 * dropped; if the last one with a copy of its outputs is among them,
+	 * revalidation starts from the genesis block until the next checkpoint.
+	 *
+	 * @return The disconnected block
+	 * @throws IllegalStateException if the tip is deeper than the undo depth
+	 */
+	public synchronized Block disconnect() {
+		if (undos.isEmpty())
+			throw new IllegalStateException("No undo record for block " + getHeight());
+
+		undos.removeLast().apply(utxos);
+		Block block = chain.remove(chain.size() - 1);
+
+		int height = getHeight();
+		checkpoints.tailMap(height, false).clear();
+		if (savedHeight > height) {
+			savedHeight = 0;
+			savedUtxos = genesisUtxos;
+		}
+		return block;
+	}
+
+	/**
+	 * Revalidates a chain starting from the last checkpoint, or from the genesis
+	 * block if the chain does not reach it. The blocks up to the checkpoint are
+	 * trusted because they were validated when the checkpoint was taken.
+	 *
+	 * @param chain The chain, starting with the genesis block
+	 * @return A report with the outcome and the time spent in each stage
+	 */
+	public synchronized ValidationReport revalidate(List<Block> chain) {
+		int start = savedHeight < chain.size() ? savedHeight : 0;
+		UtxoSet replay = (start == savedHeight ? savedUtxos : genesisUtxos).copy();
+
+		ValidationReport report;
+		if (!chain.get(start).hash.equals(checkpoints.get(start))) {
+			report = new ValidationReport(chain.size());
+			report.fail("#Block " + start + " does not match checkpoint " + checkpoints.get(start));
+			return report;
+		}
+		for (int i = start + 1; i < chain.size(); i++) {
+			if (chain.get(i).isPruned()) {
+				report = new ValidationReport(chain.size());
+				report.fail("#Block " + i + " has been pruned and cannot be replayed");
+				return report;
+			}
+		}
+
+		int from = Math.max(0, start + 1 - ChainValidator.headerHistory(proofOfWork)); // the blocks the first headers depend on
+		report = validator.validate(chain.subList(from, chain.size()), start - from + 1, from, replay, proofOfWork);
+		for (TreeMap<Integer, String> map : List.of(checkpoints, trusted)) {
+			for (Map.Entry<Integer, String> checkpoint : map.tailMap(start, false).entrySet()) {
+				int at = checkpoint.getKey();
+				if (at < chain.size() && !chain.get(at).hash.equals(checkpoint.getValue()))
+					report.fail("#Block " + at + " does not match checkpoint " + checkpoint.getValue());
+			}
+		}
+		return report;
+	}
+
+	public synchronized Block getTip() {
+		return chain.get(chain.size() - 1);
+	}
+
+	public synchronized int getHeight() {
+		return chain.size() - 1;
+	}
+
+	// Returns a copy of the validated blocks, from the genesis block to the tip.
+	synchronized List<Block> getChain() {
+		return new ArrayList<Block>(chain);
+	}
+
+	// Returns the height of the last checkpoint revalidation starts from.
+	public synchronized int getCheckpointHeight() {
+		return savedHeight;
+	}
+
+	// Returns the number of unspent outputs copied at the last checkpoint.
+	synchronized int getCheckpointOutputs() {
+		return savedUtxos.size();
+	}
+
+	public ProofOfWork getProofOfWork() {
+		return proofOfWork;
+	}
+
+	// Returns the unspent outputs at the tip. They must not be changed.
+	public synchronized UtxoSet getUtxos() {
+		return utxos;
+	}
+
+	/**
+	 * The outputs a block spent and the ids of the outputs it created, enough to
+	 * take the block back off the unspent outputs.
+	 */
+	static class BlockUndo {
+
+		final List<TransactionOutput> spent;
+		final List<String> created;
+
+		BlockUndo(List<TransactionOutput> spent, List<String> created) {
+			this.spent = spent;
+			this.created = created;
+		}
+
+		// Removes the created outputs and restores the spent ones.
+		void apply(UtxoView utxos) {
+			for (String id : created) {
+				utxos.remove(id);
+			}
+			for (TransactionOutput output : spent) {
+				utxos.put(output);
+			}
+		}
+	}
+
+	/**
+	 * The PendingUtxos class records the outputs a block spends and creates on
+	 * top of the unspent outputs at the tip, so that nothing changes until the
+	 * whole block has been validated.
+	 */
+	static class PendingUtxos implements UtxoView {
+
+		private final UtxoView base;
+		private final HashMap<String, TransactionOutput> created = new HashMap<String, TransactionOutput>();
+		private final HashSet<String> spent = new HashSet<String>();
+
+		PendingUtxos(UtxoView base) {
+			this.base = base;
+		}
+
+		@Override
+		public TransactionOutput get(String id) {
+			TransactionOutput output = created.get(id);
+			if (output != null)
+				return output;
+			return spent.contains(id) ? null : base.get(id);
+		}
+
+		@Override
+		public void put(TransactionOutput output) {
+			created.put(output.id, output);
+		}
+
+		@Override
+		public TransactionOutput remove(String id) {
+			TransactionOutput output = created.remove(id);
+			if (output != null)
+				return output;
+
+			output = spent.contains(id) ? null : base.get(id);
+			if (output != null)
+				spent.add(id);
+			return output;
+		}
+
+		// Applies the spent and created outputs to the base set and returns the
+		// record that undoes them.
+		BlockUndo commit() {
+			List<TransactionOutput> removed = new ArrayList<TransactionOutput>(spent.size());
+			for (String id : spent) {
+				removed.add(base.remove(id));
+			}
+			for (TransactionOutput output : created.values()) {
+				base.put(output);
+			}
+			return new BlockUndo(removed, new ArrayList<String>(created.keySet()));
+		}
+	}
+}
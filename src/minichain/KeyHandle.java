@@ -0,0 +1,87 @@
+package minichain;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The KeyHandle class wraps a public key together with its encoded bytes, so
+ * the key only has to be encoded once. Two handles are equal when their
+ * encodings are equal, no matter which key object they were created from, and
+ * the hash code is computed once. The Base64 form, the compressed point and
+ * the fingerprint, the SHA-256 of the encoding, are computed on first use and
+ * then cached.
+ */
+public final class KeyHandle {
+
+	private final PublicKey key;
+	private final byte[] encoded;
+	private final int hashCode;
+	private String encodedString;
+	private String fingerprint;
+	private byte[] compressed;
+
+	private KeyHandle(PublicKey key, byte[] encoded) {
+		this.key = key;
+		this.encoded = encoded;
+		this.hashCode = Arrays.hashCode(encoded);
+	}
+
+	public static KeyHandle of(PublicKey key) {
+		return new KeyHandle(key, key.getEncoded());
+	}
+
+	public PublicKey getKey() {
+		return key;
+	}
+
+	// Returns the cached encoding. Callers must not modify it.
+	byte[] encoded() {
+		return encoded;
+	}
+
+	public byte[] getEncoded() {
+		return encoded.clone();
+	}
+
+	// Returns the key as a compressed curve point. Callers must not modify it.
+	byte[] compressed() {
+		if (compressed == null)
+			compressed = CryptoService.compressKey(key);
+		return compressed;
+	}
+
+	// Returns the key as Base64, like StringUtil.getStringFromKey.
+	public String getEncodedString() {
+		if (encodedString == null)
+			encodedString = Base64.getEncoder().encodeToString(encoded);
+		return encodedString;
+	}
+
+	// Returns the SHA-256 of the encoded key in hexadecimal.
+	public String getFingerprint() {
+		if (fingerprint == null)
+			fingerprint = StringUtil.bytesToHex(CryptoService.sha256(encoded));
+		return fingerprint;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof KeyHandle))
+			return false;
+		KeyHandle other = (KeyHandle) o;
+		return hashCode == other.hashCode && Arrays.equals(encoded, other.encoded);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public String toString() {
+		return getFingerprint();
+	}
+}
@@ -0,0 +1,66 @@
+package minichain;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The KeyPool class generates random key pairs ahead of time on background
+ * threads, so that creating a wallet only takes a pair from a queue. The
+ * threads keep the pool full and wait while it is, so a burst of up to
+ * capacity wallets costs no key generation at all. If a burst empties the
+ * pool, the caller generates the pair itself instead of waiting and
+ * {@code keys.pool.misses} is counted.
+ */
+public class KeyPool {
+
+	private final BlockingQueue<KeyPair> keys;
+	private final ExecutorService fillers;
+
+	/**
+	 * Creates a pool and starts filling it.
+	 *
+	 * @param capacity The number of key pairs kept ready
+	 * @param threads  The number of background threads generating pairs
+	 */
+	public KeyPool(int capacity, int threads) {
+		this.keys = new ArrayBlockingQueue<KeyPair>(capacity);
+		this.fillers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "key-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < threads; i++) {
+			fillers.execute(() -> {
+				try {
+					while (true) {
+						keys.put(CryptoService.generateKeyPair());
+					}
+				} catch (InterruptedException e) {
+					// shut down
+				}
+			});
+		}
+	}
+
+	// Returns a key pair from the pool, or a new one if the pool is empty.
+	public KeyPair take() {
+		KeyPair keyPair = keys.poll();
+		if (keyPair != null)
+			return keyPair;
+		Metrics.keyPoolMisses.increment();
+		return CryptoService.generateKeyPair();
+	}
+
+	// Returns the number of key pairs ready to be taken.
+	public int size() {
+		return keys.size();
+	}
+
+	// Stops the background threads. Pairs already in the pool can still be taken.
+	public void shutdown() {
+		fillers.shutdownNow();
+	}
+}
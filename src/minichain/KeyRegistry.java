@@ -0,0 +1,68 @@
+package minichain;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The KeyRegistry class interns public keys. Every distinct key gets one
+ * {@link KeyHandle} and a small integer id, handed out in order from 0, so
+ * that a million outputs of the same owner can refer to it with an int
+ * instead of each holding its own key and encoding. Ids are never reused and
+ * keys are never removed, like interned strings.
+ *
+ * Interning and lookups are safe from many threads. Looking up an id reads a
+ * plain array.
+ */
+public final class KeyRegistry {
+
+	// The registry shared by all UTXO sets and outputs.
+	public static final KeyRegistry INSTANCE = new KeyRegistry();
+
+	private final ConcurrentHashMap<KeyHandle, Integer> ids = new ConcurrentHashMap<KeyHandle, Integer>();
+	private volatile KeyHandle[] handles = new KeyHandle[1024];
+	private int size;
+
+	/**
+	 * Returns the id of a key, giving it the next free id if it is new.
+	 *
+	 * @param handle The handle of the key
+	 * @return The id, from 0 to size() - 1
+	 */
+	public int intern(KeyHandle handle) {
+		Integer id = ids.get(handle);
+		if (id != null)
+			return id;
+
+		synchronized (this) {
+			id = ids.get(handle);
+			if (id != null)
+				return id;
+			if (size == handles.length)
+				handles = Arrays.copyOf(handles, size * 2);
+			handles[size] = handle; // visible to whoever reads the id from the map
+			ids.put(handle, size);
+			return size++;
+		}
+	}
+
+	public int intern(PublicKey key) {
+		return intern(KeyHandle.of(key));
+	}
+
+	// Returns the id of a key without interning it, or -1 if it is not known.
+	public int find(KeyHandle handle) {
+		Integer id = ids.get(handle);
+		return id == null ? -1 : id;
+	}
+
+	// Returns the handle with the given id.
+	public KeyHandle get(int id) {
+		return handles[id];
+	}
+
+	// Returns the number of keys interned so far.
+	public synchronized int size() {
+		return size;
+	}
+}
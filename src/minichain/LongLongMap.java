@@ -0,0 +1,131 @@
+package minichain;
+
+/**
+ * The LongLongMap class is an open-addressing hash map from long keys to
+ * non-negative long values, stored in two primitive arrays with linear probing.
+ * It takes 16 bytes per slot and creates no objects per entry. The key 0 marks
+ * an empty slot, so its value is kept in a separate field.
+ */
+class LongLongMap {
+
+	static final long MISSING = -1;
+
+	private long[] keys;
+	private long[] values;
+	private int size;
+	private long zeroValue = MISSING;
+
+	LongLongMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 4 / 3) - 1) << 1;
+		keys = new long[capacity];
+		values = new long[capacity];
+	}
+
+	void put(long key, long value) {
+		if (key == 0) {
+			if (zeroValue == MISSING)
+				size++;
+			zeroValue = value;
+			return;
+		}
+
+		if ((size + 1) * 4L > keys.length * 3L)
+			resize(keys.length * 2);
+
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (keys[slot] != 0) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+	}
+
+	// Returns the value for the key, or MISSING.
+	long get(long key) {
+		if (key == 0)
+			return zeroValue;
+
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		long k;
+		while ((k = keys[slot]) != 0) {
+			if (k == key)
+				return values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return MISSING;
+	}
+
+	// Removes the key. The entries after it in its probe run are shifted back
+	// into the gap, so no tombstones are needed.
+	void remove(long key) {
+		if (key == 0) {
+			if (zeroValue != MISSING)
+				size--;
+			zeroValue = MISSING;
+			return;
+		}
+
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (keys[slot] != key) {
+			if (keys[slot] == 0)
+				return;
+			slot = (slot + 1) & mask;
+		}
+
+		int hole = slot;
+		for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+			int home = mix(keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) { // the hole lies between home and next
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+		keys[hole] = 0;
+		values[hole] = 0;
+		size--;
+	}
+
+	int size() {
+		return size;
+	}
+
+	// Returns the bytes held by the two arrays.
+	long memoryBytes() {
+		return 16L * keys.length;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		keys = new long[capacity];
+		values = new long[capacity];
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = mix(oldKeys[i]) & mask;
+				while (keys[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	// Spreads the key bits, since hash prefixes of ids are already random but
+	// other keys may not be.
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
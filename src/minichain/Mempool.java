@@ -0,0 +1,188 @@
+package minichain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The Mempool class collects signed transactions that wait to be added to a
+ * block. Transactions can be submitted from many threads at once: signatures
+ * are verified on the submitting thread (or on a verification pool with
+ * {@link #submitAsync}), and each input is claimed in a concurrent map so that
+ * two pending transactions can never spend the same output.
+ * 
+ * Submissions hold a shared lock while they claim inputs and enqueue, and
+ * {@link #drain} takes the exclusive lock, so a block builder always gets a
+ * consistent batch with no half-submitted transaction in it.
+ */
+public class Mempool {
+
+	// The outcome of a submission.
+	public enum Result {
+		ACCEPTED, INVALID_SIGNATURE, MISSING_INPUT, DOUBLE_SPEND
+	}
+
+	private final UtxoSet utxos;
+	private final ExecutorService verifiers;
+
+	private final ConcurrentHashMap<String, Transaction> claimedInputs = new ConcurrentHashMap<String, Transaction>();
+	private final ConcurrentLinkedQueue<Transaction> pending = new ConcurrentLinkedQueue<Transaction>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final ReadWriteLock drainLock = new ReentrantReadWriteLock();
+
+	public Mempool(UtxoSet utxos) {
+		this(utxos, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a mempool that checks inputs against the given UTXO set.
+	 * 
+	 * @param utxos     The unspent outputs that pending transactions may spend
+	 * @param verifiers The pool that verifies signatures for submitAsync
+	 */
+	public Mempool(UtxoSet utxos, ExecutorService verifiers) {
+		this.utxos = utxos;
+		this.verifiers = verifiers;
+	}
+
+	/**
+	 * Verifies a transaction on the calling thread and adds it to the pool if all
+	 * of its inputs are unspent and not claimed by another pending transaction.
+	 * 
+	 * @param transaction The signed transaction
+	 * @return Whether the transaction was accepted, or why it was rejected
+	 */
+	public Result submit(Transaction transaction) {
+		Result result;
+		if (!verify(transaction)) {
+			result = Result.INVALID_SIGNATURE;
+		} else {
+			drainLock.readLock().lock();
+			try {
+				result = claimAndEnqueue(transaction);
+			} finally {
+				drainLock.readLock().unlock();
+			}
+		}
+		Metrics.mempoolResults[result.ordinal()].increment();
+		return result;
+	}
+
+	// Submits a transaction and verifies its signature on the verification pool.
+	public CompletableFuture<Result> submitAsync(Transaction transaction) {
+		return CompletableFuture.supplyAsync(() -> submit(transaction), verifiers);
+	}
+
+	// A signature that is not even well-formed makes the verifier throw rather
+	// than return false.
+	private static boolean verify(Transaction transaction) {
+		try {
+			return transaction.verifySignature();
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private Result claimAndEnqueue(Transaction transaction) {
+		List<String> claimed = new ArrayList<String>(transaction.inputs.size());
+
+		for (TransactionInput input : transaction.inputs) {
+			String id = input.transactionOutputId;
+			Result result = null;
+
+			if (!utxos.contains(id)) {
+				result = Result.MISSING_INPUT;
+			} else if (claimedInputs.putIfAbsent(id, transaction) != null) {
+				result = Result.DOUBLE_SPEND; // also catches an input listed twice
+			}
+
+			if (result != null) {
+				for (String claim : claimed) {
+					claimedInputs.remove(claim, transaction);
+				}
+				return result;
+			}
+			claimed.add(id);
+		}
+
+		pending.add(transaction);
+		size.incrementAndGet();
+		return Result.ACCEPTED;
+	}
+
+	/**
+	 * Removes up to max transactions from the pool in submission order. Their
+	 * inputs stay claimed until {@link #release} is called, so nothing can spend
+	 * them again while the batch is being added to a block.
+	 * 
+	 * @param max The maximum number of transactions to take
+	 * @return The drained transactions
+	 */
+	public List<Transaction> drain(int max) {
+		drainLock.writeLock().lock();
+		try {
+			List<Transaction> batch = new ArrayList<Transaction>(Math.min(max, size.get()));
+			Transaction transaction;
+			while (batch.size() < max && (transaction = pending.poll()) != null) {
+				batch.add(transaction);
+			}
+			size.addAndGet(-batch.size());
+			return batch;
+		} finally {
+			drainLock.writeLock().unlock();
+		}
+	}
+
+	// Releases the inputs claimed by drained transactions once they have been
+	// added to a block and their inputs are spent.
+	public void release(Collection<Transaction> batch) {
+		for (Transaction transaction : batch) {
+			for (TransactionInput input : transaction.inputs) {
+				claimedInputs.remove(input.transactionOutputId, transaction);
+			}
+		}
+	}
+
+	// Drains up to max transactions into a block that spends MiniChain.UTXOs,
+	// which only change once the block joins the main chain.
+	public int fill(Block block, int max) {
+		return fill(block, max, block.getPendingUtxos());
+	}
+
+	/**
+	 * Drains up to max transactions into a block and releases their inputs.
+	 * Transactions whose inputs have been spent since they were submitted are
+	 * dropped.
+	 * 
+	 * @param block The block being built
+	 * @param max   The maximum number of transactions to add
+	 * @param utxos The unspent outputs at the parent of the block
+	 * @return The number of transactions the block accepted
+	 */
+	public int fill(Block block, int max, UtxoView utxos) {
+		List<Transaction> batch = drain(max);
+		int added = 0;
+		try {
+			for (Transaction transaction : batch) {
+				if (block.addTransaction(transaction, utxos))
+					added++;
+			}
+		} finally {
+			release(batch);
+		}
+		return added;
+	}
+
+	// Returns the number of pending transactions.
+	public int size() {
+		return size.get();
+	}
+}
@@ -0,0 +1,206 @@
+package minichain;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The MerkleTree class keeps every level of a Merkle tree over transaction
+ * ids as raw 32-byte hashes. Level 0 holds the leaves, and each node above is
+ * the SHA-256 of its two children. A node without a right sibling is hashed
+ * with itself, so no transaction is ever left out of the root.
+ * 
+ * Appending a leaf only rehashes the path from the new leaf to the root, which
+ * keeps filling a block at O(log n) hashes per transaction. Any leaf can be
+ * proven to be part of the root with a {@link Proof} of one sibling hash per
+ * level.
+ */
+public class MerkleTree {
+
+	// Trees with at least this many leaves are built with all cores.
+	static final int PARALLEL_THRESHOLD = 10_000;
+
+	private final ArrayList<ArrayList<byte[]>> levels = new ArrayList<ArrayList<byte[]>>();
+
+	public MerkleTree() {
+		levels.add(new ArrayList<byte[]>());
+	}
+
+	/**
+	 * Builds a tree over the ids of the given transactions. Large trees are
+	 * hashed level by level in parallel.
+	 * 
+	 * @param transactions The transactions in block order
+	 * @return The complete tree
+	 */
+	public static MerkleTree build(List<Transaction> transactions) {
+		int count = transactions.size();
+		byte[][] level = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			level[i] = leaf(transactions.get(i).transactionId);
+		}
+
+		MerkleTree tree = new MerkleTree();
+		tree.levels.get(0).addAll(Arrays.asList(level));
+		while (level.length > 1) {
+			byte[][] children = level;
+			byte[][] parents = new byte[(children.length + 1) / 2][];
+			IntStream indexes = IntStream.range(0, parents.length);
+			if (children.length >= PARALLEL_THRESHOLD)
+				indexes = indexes.parallel();
+			indexes.forEach(p -> parents[p] = parent(children, p));
+
+			tree.levels.add(new ArrayList<byte[]>(Arrays.asList(parents)));
+			level = parents;
+		}
+		return tree;
+	}
+
+	// Adds the id of a transaction as the next leaf.
+	public void append(String transactionId) {
+		append(leaf(transactionId));
+	}
+
+	/**
+	 * Adds a leaf hash and rehashes the path from it to the root.
+	 * 
+	 * @param leaf The 32-byte leaf hash
+	 */
+	public void append(byte[] leaf) {
+		levels.get(0).add(leaf);
+
+		int index = levels.get(0).size() - 1;
+		for (int k = 0; levels.get(k).size() > 1; k++) {
+			if (levels.size() == k + 1)
+				levels.add(new ArrayList<byte[]>());
+
+			ArrayList<byte[]> children = levels.get(k);
+			ArrayList<byte[]> parents = levels.get(k + 1);
+			int p = index / 2;
+			byte[] right = 2 * p + 1 < children.size() ? children.get(2 * p + 1) : children.get(2 * p);
+			byte[] parent = hashPair(children.get(2 * p), right);
+			if (p < parents.size()) {
+				parents.set(p, parent);
+			} else {
+				parents.add(parent);
+			}
+			index = p;
+		}
+	}
+
+	// Returns the number of leaves.
+	public int size() {
+		return levels.get(0).size();
+	}
+
+	// Returns the root hash, or null if the tree is empty.
+	public byte[] getRoot() {
+		ArrayList<byte[]> top = levels.get(levels.size() - 1);
+		return top.isEmpty() ? null : top.get(0).clone();
+	}
+
+	// Returns the root in hexadecimal, or an empty string if the tree is empty.
+	public String getRootHex() {
+		byte[] root = getRoot();
+		return root == null ? "" : StringUtil.bytesToHex(root);
+	}
+
+	/**
+	 * Creates a proof that the leaf at the given index is part of the tree.
+	 * 
+	 * @param index The position of the transaction in the block
+	 * @return The sibling hashes from the leaf up to the root
+	 */
+	public Proof prove(int index) {
+		if (index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("No leaf at index " + index);
+
+		byte[][] siblings = new byte[levels.size() - 1][];
+		int position = index;
+		for (int k = 0; k < siblings.length; k++) {
+			ArrayList<byte[]> level = levels.get(k);
+			int sibling = position ^ 1;
+			siblings[k] = (sibling < level.size() ? level.get(sibling) : level.get(position)).clone();
+			position /= 2;
+		}
+		return new Proof(index, siblings);
+	}
+
+	// Converts a transaction id into a leaf hash.
+	static byte[] leaf(String transactionId) {
+		return StringUtil.hexToBytes32(transactionId);
+	}
+
+	private static byte[] parent(byte[][] children, int p) {
+		byte[] left = children[2 * p];
+		byte[] right = 2 * p + 1 < children.length ? children[2 * p + 1] : left;
+		return hashPair(left, right);
+	}
+
+	static byte[] hashPair(byte[] left, byte[] right) {
+		MessageDigest sha256 = CryptoService.sha256();
+		sha256.update(left);
+		sha256.update(right);
+		return sha256.digest();
+	}
+
+	/**
+	 * The Proof class lets a light client check that a transaction is part of a
+	 * block knowing only the Merkle root from its header. The index of the leaf
+	 * tells on which side each sibling belongs.
+	 */
+	public static class Proof {
+
+		private final int index;
+		private final byte[][] siblings;
+
+		public Proof(int index, byte[][] siblings) {
+			this.index = index;
+			this.siblings = siblings;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Hashes the transaction id up the tree and compares the result with the
+		 * root.
+		 * 
+		 * @param transactionId The id of the transaction to check
+		 * @param root          The Merkle root in hexadecimal
+		 * @return true if the transaction is part of the tree with that root
+		 */
+		public boolean verify(String transactionId, String root) {
+			byte[] hash = leaf(transactionId);
+			for (int k = 0; k < siblings.length; k++) {
+				hash = ((index >>> k) & 1) == 0 ? hashPair(hash, siblings[k]) : hashPair(siblings[k], hash);
+			}
+			return Arrays.equals(hash, StringUtil.hexToBytes32(root));
+		}
+
+		// Encodes the proof as the leaf index, the number of levels and the sibling
+		// hashes.
+		public byte[] toBytes() {
+			ByteBuffer buffer = ByteBuffer.allocate(5 + 32 * siblings.length);
+			buffer.putInt(index).put((byte) siblings.length);
+			for (byte[] sibling : siblings) {
+				buffer.put(sibling);
+			}
+			return buffer.array();
+		}
+
+		public static Proof fromBytes(byte[] bytes) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			int index = buffer.getInt();
+			byte[][] siblings = new byte[buffer.get()][32];
+			for (byte[] sibling : siblings) {
+				buffer.get(sibling);
+			}
+			return new Proof(index, siblings);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package minichain;
+
+import minichain.MetricsRegistry.Counter;
+import minichain.MetricsRegistry.Histogram;
+
+/**
+ * The Metrics class holds the instruments the chain updates on its hot paths.
+ * They are looked up once per registry, so recording a value costs no more than
+ * updating a counter. Metrics go to an {@link InMemoryMetrics} registry until
+ * {@link #use} selects another one, e.g. {@link NoopMetrics#INSTANCE} to turn
+ * them off.
+ *
+ * <pre>
+ * mining.blocks                 blocks mined
+ * mining.nonces                 nonces tried while mining
+ * mining.nanos                  time to mine one block
+ * mining.hashrate               hashes per second while mining one block
+ * transactions.accepted         transactions added to a block
+ * transactions.rejected.*       transactions turned away, by reason:
+ *                               signature, inputs, funds, conflict
+ * mempool.*                     mempool submissions, by result
+ * signature.verify.nanos        time to verify one signature
+ * validation.*.nanos            time spent in each validation stage
+ * chain.reorgs                  reorganizations to a heavier branch
+ * chain.reorg.depth             blocks disconnected by one reorganization
+ * chain.reorg.nanos             time one reorganization took
+ * chain.blocks.pruned           blocks whose transactions a ChainPruner dropped
+ * chain.retained.bytes          estimated heap of the chain MiniChain keeps, see ChainPruner
+ * keys.pool.misses              key pairs generated because a KeyPool was empty
+ * api.cache.hits                GET requests answered from the ApiServer cache
+ * api.cache.misses              GET requests that queried the node
+ * api.request.nanos             time to handle one ApiServer request
+ * utxo.size                     unspent outputs in MiniChain.UTXOs
+ * </pre>
+ */
+public final class Metrics {
+
+	private static MetricsRegistry registry;
+
+	public static Counter blocksMined;
+	public static Counter nonceAttempts;
+	public static Histogram miningNanos;
+	public static Histogram hashRate;
+	public static Counter transactionsAccepted;
+	public static Counter rejectedSignature; // invalid signature
+	public static Counter rejectedInputs; // inputs missing or below the minimum
+	public static Counter rejectedFunds; // the inputs cannot cover the amount, or it is not positive
+	public static Counter rejectedConflict; // an input is claimed by another transaction
+	public static Counter[] mempoolResults; // indexed by Mempool.Result ordinal
+	public static Histogram signatureNanos;
+	public static Histogram[] validationNanos; // indexed by ValidationReport.Stage ordinal
+	public static Counter reorgs;
+	public static Histogram reorgDepth;
+	public static Histogram reorgNanos;
+	public static Counter blocksPruned;
+	public static Counter keyPoolMisses;
+	public static Counter apiCacheHits;
+	public static Counter apiCacheMisses;
+	public static Histogram apiNanos;
+
+	static {
+		use(new InMemoryMetrics());
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * Sends all metrics recorded from now on to the given registry.
+	 *
+	 * @param metrics The registry, for example a new {@link InMemoryMetrics}
+	 */
+	public static synchronized void use(MetricsRegistry metrics) {
+		blocksMined = metrics.counter("mining.blocks");
+		nonceAttempts = metrics.counter("mining.nonces");
+		miningNanos = metrics.histogram("mining.nanos");
+		hashRate = metrics.histogram("mining.hashrate");
+		transactionsAccepted = metrics.counter("transactions.accepted");
+		rejectedSignature = metrics.counter("transactions.rejected.signature");
+		rejectedInputs = metrics.counter("transactions.rejected.inputs");
+		rejectedFunds = metrics.counter("transactions.rejected.funds");
+		rejectedConflict = metrics.counter("transactions.rejected.conflict");
+		signatureNanos = metrics.histogram("signature.verify.nanos");
+
+		Counter[] results = new Counter[Mempool.Result.values().length];
+		for (Mempool.Result result : Mempool.Result.values()) {
+			results[result.ordinal()] = metrics.counter("mempool." + result.name().toLowerCase());
+		}
+		mempoolResults = results;
+
+		Histogram[] stages = new Histogram[ValidationReport.Stage.values().length];
+		for (ValidationReport.Stage stage : ValidationReport.Stage.values()) {
+			stages[stage.ordinal()] = metrics.histogram("validation." + stage.name().toLowerCase() + ".nanos");
+		}
+		validationNanos = stages;
+
+		reorgs = metrics.counter("chain.reorgs");
+		reorgDepth = metrics.histogram("chain.reorg.depth");
+		reorgNanos = metrics.histogram("chain.reorg.nanos");
+		blocksPruned = metrics.counter("chain.blocks.pruned");
+		keyPoolMisses = metrics.counter("keys.pool.misses");
+		apiCacheHits = metrics.counter("api.cache.hits");
+		apiCacheMisses = metrics.counter("api.cache.misses");
+		apiNanos = metrics.histogram("api.request.nanos");
+
+		metrics.gauge("utxo.size", () -> MiniChain.UTXOs.size());
+		metrics.gauge("chain.retained.bytes", () -> MiniChain.pruner == null ? 0 : MiniChain.pruner.getRetainedBytes());
+		registry = metrics;
+	}
+
+	// Returns the registry the metrics currently go to.
+	public static MetricsRegistry registry() {
+		return registry;
+	}
+}
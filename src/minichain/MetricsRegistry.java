@@ -0,0 +1,66 @@
+package minichain;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The MetricsRegistry interface hands out named counters and histograms. Code
+ * on hot paths looks its instruments up once, through {@link Metrics}, and
+ * then only updates them, so a registry decides where the numbers go without
+ * the callers knowing. {@link InMemoryMetrics} keeps them for reports and
+ * tests, {@link NoopMetrics} drops them.
+ */
+public interface MetricsRegistry {
+
+	/**
+	 * Returns the counter with the given name, creating it on first use.
+	 *
+	 * @param name The dotted name of the counter, e.g. "mining.nonces"
+	 * @return The counter
+	 */
+	Counter counter(String name);
+
+	/**
+	 * Returns the histogram with the given name, creating it on first use.
+	 *
+	 * @param name The dotted name of the histogram, e.g. "signature.verify.nanos"
+	 * @return The histogram
+	 */
+	Histogram histogram(String name);
+
+	/**
+	 * Registers a value that is read whenever the registry reports, such as the
+	 * size of a collection.
+	 *
+	 * @param name  The dotted name of the gauge
+	 * @param value Supplies the current value
+	 */
+	void gauge(String name, LongSupplier value);
+
+	// A count that only goes up. Safe to update from several threads.
+	interface Counter {
+
+		void add(long amount);
+
+		long get();
+
+		default void increment() {
+			add(1);
+		}
+	}
+
+	// A distribution of recorded values, such as latencies in nanoseconds. Safe
+	// to update from several threads.
+	interface Histogram {
+
+		void record(long value);
+
+		long getCount();
+
+		long getMax();
+
+		double getMean();
+
+		// Returns an upper bound of the given percentile, between 0 and 100.
+		long getPercentile(double percentile);
+	}
+}
@@ -1,8 +1,9 @@
 package minichain;
 
+import java.nio.file.Path;
 import java.security.Security;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 
 /**
  * The MiniChain class represents the main class for the blockchain
@@ -13,13 +14,31 @@ import java.util.HashMap;
  */
 public class MiniChain {
 
-	// The blockchain is represented as an ArrayList of Block objects
+	// The blockchain is represented as an ArrayList of Block objects, the main
+	// chain of the block tree
 	public static ArrayList<Block> blockChain = new ArrayList<Block>();
 
-	// A HashMap to keep track of all unspent transaction outputs
-	public static HashMap<String, TransactionOutput> UTXOs = new HashMap<String, TransactionOutput>();
-	public static int difficulty = 2;
-	public static float minimumTransaction = 0.1f;
+	// The unspent transaction outputs at the tip, the set of the validator once
+	// the genesis block has been added
+	public static UtxoSet UTXOs = new UtxoSet();
+	// Starts at 8 leading zero bits and retargets towards one block every 100 ms
+	public static ProofOfWork proofOfWork = new AdaptiveProofOfWork(ProofOfWork.SHA256, Target.ofZeroBits(8), 10,
+			100);
+	public static BlockStore blockStore; // optional on-disk copy of the chain, null keeps it in memory only
+	public static Path utxoSnapshot; // optional snapshot file of the unspent outputs, rewritten periodically
+	public static int snapshotInterval = 10000; // blocks between snapshots
+	public static ChainIndex chainIndex = new ChainIndex(); // finds blocks and transactions by id
+	public static AddressIndex addressIndex = new AddressIndex(); // the transaction history of every key
+	public static ParallelMiner miner = new ParallelMiner(); // searches nonces on all cores
+	public static long minimumTransaction = Amount.COIN / 10;
+	public static boolean parallelValidation = true; // verify signatures on all cores during validation
+	public static int checkpointInterval = 1000; // blocks between validation checkpoints
+	public static IncrementalValidator validator; // validates each block as it is added
+	public static BlockTree blockTree; // every block added, on all branches
+	public static int pruneDepth; // blocks at the tip that keep their transactions, 0 keeps all of them
+	public static long memoryBudget = Long.MAX_VALUE; // estimated bytes the chain keeps in memory when pruning, see ChainPruner
+	public static ChainPruner pruner; // drops old block bodies, created with the block tree if pruneDepth is set
+	public static boolean logging = true; // print progress on the hot paths, false for quiet mode
 	public static Wallet walletA;
 	public static Wallet walletB;
 	public static Transaction genesisTransaction; // first transaction in the blockchain
@@ -29,21 +48,35 @@ public class MiniChain {
 		// Add Bouncy Castle as a Security Provider
 		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
 
+		// With a directory as the argument, the chain is stored there and resumed
+		// from it on the next run
+		if (args.length > 0) {
+			Path directory = Path.of(args[0]);
+			blockStore = new BlockStore(directory);
+			utxoSnapshot = directory.resolve("utxos.snapshot");
+			long start = System.nanoTime();
+			int height = resume();
+			if (height >= 0) {
+				System.out.printf("Resumed the chain at block %d with %d unspent outputs in %.3f ms%n", height,
+						UTXOs.size(), (System.nanoTime() - start) / 1e6);
+				isChainValid();
+				blockStore.close();
+				return;
+			}
+		}
+
 		walletA = new Wallet();
 		walletB = new Wallet(); 
 		Wallet coinbase = new Wallet();
 
 		// Create the genesis transaction, which sends 100 coins from coinbase to
 		// walletA
-		genesisTransaction = new Transaction(coinbase.publicKey, walletA.publicKey, 100f, null);
+		genesisTransaction = new Transaction(coinbase.publicKey, walletA.publicKey, Amount.coins(100), null);
 		genesisTransaction.generateSignature(coinbase.privateKey);
 		genesisTransaction.transactionId = "0";
 		genesisTransaction.outputs.add(new TransactionOutput(genesisTransaction.recipient, genesisTransaction.value,
 				genesisTransaction.transactionId));
 
-		// It's important to store our first transaction in the UTXOs list.
-		UTXOs.put(genesisTransaction.outputs.get(0).id, genesisTransaction.outputs.get(0));
-
 		System.out.println("Creating and Mining Genesis block... ");
 		Block genesis = new Block("0");
 		genesis.addTransaction(genesisTransaction);
@@ -51,124 +84,215 @@ public class MiniChain {
 
 		// Test the blockchain with various transactions
 		Block block1 = new Block(genesis.hash);
-		System.out.println("\nWalletA's balance is: " + walletA.getBalance());
+		System.out.println("\nWalletA's balance is: " + Amount.toString(walletA.getBalance()));
 		System.out.println("\nWalletA is Attempting to send funds (40) to WalletB...");
-		block1.addTransaction(walletA.sendFunds(walletB.publicKey, 40f));
+		block1.addTransaction(walletA.sendFunds(walletB.publicKey, Amount.coins(40), block1));
 		addBlock(block1);
-		System.out.println("\nWalletA's balance is: " + walletA.getBalance());
-		System.out.println("WalletB's balance is: " + walletB.getBalance());
+		System.out.println("\nWalletA's balance is: " + Amount.toString(walletA.getBalance()));
+		System.out.println("WalletB's balance is: " + Amount.toString(walletB.getBalance()));
 
 		Block block2 = new Block(block1.hash);
 		System.out.println("\nWalletA Attempting to send more funds (1000) than it has...");
-		block2.addTransaction(walletA.sendFunds(walletB.publicKey, 1000f));
+		block2.addTransaction(walletA.sendFunds(walletB.publicKey, Amount.coins(1000), block2));
 		addBlock(block2);
-		System.out.println("\nWalletA's balance is: " + walletA.getBalance());
-		System.out.println("WalletB's balance is: " + walletB.getBalance());
+		System.out.println("\nWalletA's balance is: " + Amount.toString(walletA.getBalance()));
+		System.out.println("WalletB's balance is: " + Amount.toString(walletB.getBalance()));
 
 		Block block3 = new Block(block2.hash);
 		System.out.println("\nWalletB is Attempting to send funds (15) to WalletA...");
-		block3.addTransaction(walletB.sendFunds(walletA.publicKey, 15f));
+		block3.addTransaction(walletB.sendFunds(walletA.publicKey, Amount.coins(15), block3));
 		addBlock(block3);
-		System.out.println("\nWalletA's balance is: " + walletA.getBalance());
-		System.out.println("WalletB's balance is: " + walletB.getBalance());
+		System.out.println("\nWalletA's balance is: " + Amount.toString(walletA.getBalance()));
+		System.out.println("WalletB's balance is: " + Amount.toString(walletB.getBalance()));
 
 
 		// Print updated balances after the transaction
-		System.out.println("\nWalletA's balance is now: " + walletA.getBalance());
-		System.out.println("WalletB's balance is now: " + walletB.getBalance());
-
-		isChainValid();
-	}
-
-	// Validates the blockchain by checking the hashes and transaction integrity.
-	public static Boolean isChainValid() {
-		Block currentBlock;
-		Block previousBlock;
-		String hashTarget = new String(new char[difficulty]).replace('\0', '0');
-		HashMap<String, TransactionOutput> tempUTXOs = new HashMap<String, TransactionOutput>();
-		tempUTXOs.put(genesisTransaction.outputs.get(0).id, genesisTransaction.outputs.get(0));
-
-		for (int i = 1; i < blockChain.size(); i++) {
+		System.out.println("\nWalletA's balance is now: " + Amount.toString(walletA.getBalance()));
+		System.out.println("WalletB's balance is now: " + Amount.toString(walletB.getBalance()));
 
-			currentBlock = blockChain.get(i);
-			previousBlock = blockChain.get(i - 1);
+		// Every transaction that touched walletA, from the address index
+		System.out.println("\nWalletA's history:");
+		walletA.getHistory(0).forEach(entry -> System.out.println("  " + entry));
 
-			// Compare registered hash and calculated hash
-			if (!currentBlock.hash.equals(currentBlock.calculateHash())) {
-				System.out.println("#Current Hashes not equal");
-				return false;
-			}
-
-			// Compare previous hash and registered previous hash
-			if (!previousBlock.hash.equals(currentBlock.previousHash)) {
-				System.out.println("#Previous Hashes not equal");
-				System.out.println("Block " + i + ":");
-				System.out.println("Previous Block Hash: " + previousBlock.hash);
-				System.out.println("Current Block's Previous Hash: " + currentBlock.previousHash);
-				return false;
-			}
+		isChainValid();
 
-			// Check if hash is solved
-			if (!currentBlock.hash.substring(0, difficulty).equals(hashTarget)) {
-				System.out.println("#This block hasn't been mined");
-				return false;
-			}
+		System.out.println("\nMetrics:");
+		System.out.print(Metrics.registry());
+		if (blockStore != null)
+			blockStore.close();
+	}
 
-			TransactionOutput tempOutput;
-			for (int t = 0; t < currentBlock.transactions.size(); t++) {
-				Transaction currentTransaction = currentBlock.transactions.get(t);
+	/**
+	 * Resumes the chain kept in the block store, e.g. after a restart, instead of
+	 * starting a new one with addBlock. The unspent outputs are restored from the
+	 * snapshot and the blocks after it, or from every block without a snapshot.
+	 * The stored blocks were validated before they were stored, so they are not
+	 * validated again; they are only read to rebuild the block tree and the
+	 * indexes. The first transaction of the first block becomes the genesis
+	 * transaction.
+	 *
+	 * @return The height of the tip, or -1 if there is no block store or it is
+	 *         empty
+	 * @throws IllegalStateException if a chain has already been started
+	 */
+	public static int resume() {
+		if (blockStore == null || blockStore.size() == 0)
+			return -1;
+		if (blockTree != null)
+			throw new IllegalStateException("A chain has already been started");
+
+		UtxoSet utxos = UtxoSnapshot.restore(utxoSnapshot, blockStore);
+		List<Block> chain = new ArrayList<Block>(blockStore.size());
+		for (int height = 0; height < blockStore.size(); height++) {
+			Block block = blockStore.get(height);
+			chain.add(block);
+			resolveInputs(block, chain);
+			chainIndex.add(block, height);
+			addressIndex.add(block, height);
+		}
+		genesisTransaction = chain.get(0).transactions.get(0);
+
+		IncrementalValidator validator = new IncrementalValidator(chain.get(0), genesisTransaction.outputs,
+				proofOfWork, checkpointInterval, parallelValidation);
+		validator.trust(chain.subList(1, chain.size()), utxos);
+		startTree(validator);
+		if (pruner != null)
+			pruner.prune();
+		return validator.getHeight();
+	}
 
-				if (!currentTransaction.verifySignature()) {
-					System.out.println("#Signature on Transaction(" + t + ") is Invalid");
-					return false;
-				}
-				if (currentTransaction.getInputsValue() != currentTransaction.getOutputsValue()) {
-					System.out.println("#Inputs are note equal to outputs on Transaction(" + t + ")");
-					return false;
+	// Points the inputs of a decoded block at the outputs they spend, which the
+	// address index reads the amounts of.
+	private static void resolveInputs(Block block, List<Block> chain) {
+		for (Transaction transaction : block.transactions) {
+			if (transaction.inputs == null)
+				continue;
+			for (TransactionInput input : transaction.inputs) {
+				long location = chainIndex.locateOutput(input.transactionOutputId, chain);
+				if (location < 0)
+					throw new IllegalStateException("The block store misses output " + input.transactionOutputId);
+				Transaction parent = chain.get(ChainIndex.height(location)).transactions
+						.get(ChainIndex.position(location));
+				for (TransactionOutput output : parent.outputs) {
+					if (output.id.equals(input.transactionOutputId))
+						input.UTXO = output;
 				}
+			}
+		}
+	}
 
-				for (TransactionInput input : currentTransaction.inputs) {
-					tempOutput = tempUTXOs.get(input.transactionOutputId);
-
-					if (tempOutput == null) {
-						System.out.println("#Referenced input on Transaction(" + t + ") is Missing");
-						return false;
-					}
-
-					if (input.UTXO.value != tempOutput.value) {
-						System.out.println("#Referenced input Transaction(" + t + ") value is Invalid");
-						return false;
-					}
+	// Creates the block tree on the chain of the validator, with the pruner if
+	// pruning is on.
+	private static void startTree(IncrementalValidator chainValidator) {
+		validator = chainValidator;
+		blockTree = new BlockTree(validator, blockChain);
+		UTXOs = validator.getUtxos(); // the one set of record, changed only by the validator
+		blockTree.addListener(chainListener);
+		if (pruneDepth > 0) {
+			pruner = new ChainPruner(validator, blockTree, blockChain, pruneDepth, memoryBudget);
+			blockTree.addListener(pruner);
+		}
+	}
 
-					tempUTXOs.remove(input.transactionOutputId);
-				}
+	// Validates the blockchain by checking the hashes and transaction integrity.
+	public static Boolean isChainValid() {
+		ValidationReport report = validateChain();
+		System.out.println(report);
 
-				for (TransactionOutput output : currentTransaction.outputs) {
-					tempUTXOs.put(output.id, output);
-				}
+		if (!report.isValid()) {
+			System.out.println(report.getFailure());
+			return false;
+		}
+		System.out.println("Blockchain is valid");
+		return true;
+	}
 
-				if (currentTransaction.outputs.get(0).reciepient != currentTransaction.recipient) {
-					System.out.println("#Transaction(" + t + ") output reciepient is not who it should be");
-					return false;
-				}
-				if (currentTransaction.outputs.get(1).reciepient != currentTransaction.sender) {
-					System.out.println("#Transaction(" + t + ") output 'change' is not sender.");
-					return false;
-				}
+	// Validates the blockchain from the last checkpoint and returns how long each
+	// validation stage took.
+	public static ValidationReport validateChain() {
+		if (validator == null)
+			return new ChainValidator(parallelValidation).validate(blockChain, genesisTransaction.outputs,
+					proofOfWork);
+		return validator.revalidate(blockChain);
+	}
 
+	// Adds a new block to the block tree after mining it for the next target
+	// after its parent. The first block added is trusted as the genesis block,
+	// and its outputs become the UTXOs. A reorganization updates the UTXOs in
+	// place with the undo records of the validator, and a block on a side
+	// branch or waiting for its parent leaves them unchanged until its branch
+	// becomes the main chain. Returns false if the block is invalid.
+	public static boolean addBlock(Block newBlock) {
+		newBlock.discardPending(); // the validator applies the block to the UTXOs
+
+		if (blockTree == null) {
+			newBlock.target = proofOfWork.nextTarget(blockChain, 0);
+		} else {
+			newBlock.target = blockTree.nextTarget(newBlock.previousHash);
+		}
+		newBlock.mineBlock(proofOfWork, miner);
+		if (logging) {
+			System.out.println("New Block Created. Previous Hash: " + newBlock.previousHash);
+			System.out.println("  Target: " + Target.toString(newBlock.target));
+			for (ParallelMiner.WorkerStats stats : miner.getLastStats()) {
+				System.out.println("  " + stats);
 			}
+		}
 
+		if (blockTree == null) {
+			startTree(new IncrementalValidator(newBlock, genesisTransaction.outputs, proofOfWork, checkpointInterval,
+					parallelValidation));
+			chainListener.connected(newBlock, 0);
+			return true;
 		}
-		System.out.println("Blockchain is valid");
-		return true;
+
+		BlockTree.Result result = blockTree.add(newBlock);
+		if (logging && result == BlockTree.Result.INVALID)
+			System.out.println("Block rejected: " + blockTree.getLastFailure());
+		else if (logging && result != BlockTree.Result.EXTENDED)
+			System.out.println("Block " + result);
+		if (pruner != null)
+			pruner.prune();
+		return result != BlockTree.Result.INVALID;
 	}
 
-	// Adds a new block to the blockchain after mining it.
-	public static void addBlock(Block newBlock) {
+	// Keeps the indexes, the block store and the snapshot in step with the main
+	// chain.
+	private static final BlockTree.Listener chainListener = new BlockTree.Listener() {
+		@Override
+		public void connected(Block block, int height) {
+			chainIndex.add(block, height);
+			addressIndex.add(block, height);
+			if (blockStore != null)
+				store(block, height);
+			if (utxoSnapshot != null && height % snapshotInterval == 0)
+				UtxoSnapshot.write(utxoSnapshot, validator.getUtxos(), height, block.hash);
+		}
 
-		newBlock.mineBlock(difficulty);
-		System.out.println("New Block Created. Previous Hash: " + newBlock.previousHash);
-		blockChain.add(newBlock);
+		@Override
+		public void disconnected(Block block, int height) {
+			chainIndex.remove(block, height);
+			addressIndex.remove(block, height);
+			if (blockStore != null) {
+				if (blockStore.size() != height + 1)
+					throw new IllegalStateException("The block store holds " + blockStore.size()
+							+ " blocks, not the main chain up to block " + height);
+				blockStore.truncate(height);
+			}
+		}
+	};
+
+	// Appends a block to the store, which must hold the main chain up to its
+	// parent. A block the store already holds at its height, as when the chain is
+	// replayed from the store, is not written again.
+	private static void store(Block block, int height) {
+		int size = blockStore.size();
+		if (height < size && blockStore.getHash(height).equals(block.hash))
+			return;
+		if (height != size)
+			throw new IllegalStateException(
+					"The block store holds " + size + " blocks, block " + height + " cannot follow them");
+		blockStore.append(block);
 	}
 }
 
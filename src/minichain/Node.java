@@ -0,0 +1,358 @@
+package minichain;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * The Node class holds the chain state of one participant of a network: its
+ * block tree, the validator of its main chain and its mempool. Unlike
+ * {@link MiniChain}, which keeps a single chain in static fields, any number
+ * of nodes can run in one JVM.
+ *
+ * Each node works on a thread of its own. Messages from the {@link Transport},
+ * submitted transactions and mining all run there one at a time, so the state
+ * of a node needs no locks. Blocks and transactions travel between nodes
+ * encoded with {@link BlockCodec}, and every node relays what it accepts to
+ * all its peers except the one it came from. A message that a node has
+ * already handled is dropped before it is decoded, which ends the gossip. Only
+ * messages that were accepted count as handled, so a block that failed or a
+ * transaction whose inputs had not arrived yet is decoded again when another
+ * peer relays it. The node remembers the last {@link #SEEN_MESSAGES} of them;
+ * an older one that comes back is decoded again and dropped as a duplicate by
+ * the block tree or the mempool. The transactions of blocks that leave the
+ * main chain in a reorganization go back to the mempool.
+ *
+ * The chain state of a node is its own, but some settings are shared by all
+ * nodes of a JVM: transactions are checked against
+ * {@link MiniChain#minimumTransaction}, {@link MiniChain#logging} switches the
+ * output of every node, and the {@link Metrics} count for all of them together.
+ */
+public class Node {
+
+	// The first byte of every message.
+	static final byte BLOCK = 1;
+	static final byte TRANSACTION = 2;
+
+	// The number of handled messages whose digests a node remembers.
+	static final int SEEN_MESSAGES = 100_000;
+
+	private final String name;
+	private final ProofOfWork proofOfWork;
+	private final Transport transport;
+	private final IncrementalValidator validator;
+	private final BlockTree tree;
+	private final ArrayList<Block> chain = new ArrayList<Block>(); // the main chain
+	private final ChainIndex index = new ChainIndex(); // finds blocks and transactions of the main chain
+	private final AddressIndex addresses = new AddressIndex(); // the history of every key on the main chain
+	private final Mempool mempool;
+	private final BlockCodec codec = new BlockCodec();
+	private final ExecutorService executor;
+	private ChainPruner pruner; // null keeps every block whole
+
+	private final Map<String, Boolean> seen = new LinkedHashMap<String, Boolean>() { // digests of the messages handled
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > SEEN_MESSAGES;
+		}
+	};
+	private final ConcurrentHashMap<String, Long> arrivals = new ConcurrentHashMap<String, Long>(); // nanoTime by hash
+	private final AtomicLongArray blockResults = new AtomicLongArray(BlockTree.Result.values().length);
+
+	/**
+	 * Creates a node whose chain holds only the genesis block. Its chain state
+	 * is kept apart from the static chain of {@link MiniChain}, but it shares the
+	 * settings named in the class comment.
+	 *
+	 * @param name               The name of the node, also used for its thread
+	 * @param genesis            The genesis block all nodes share
+	 * @param genesisOutputs     The outputs created by the genesis transaction
+	 * @param proofOfWork        The hash function and targets of the chain
+	 * @param checkpointInterval The number of blocks between validation
+	 *                           checkpoints
+	 * @param transport          The transport to the peers of the node
+	 */
+	public Node(String name, Block genesis, List<TransactionOutput> genesisOutputs, ProofOfWork proofOfWork,
+			int checkpointInterval, Transport transport) {
+		this.name = name;
+		this.proofOfWork = proofOfWork;
+		this.transport = transport;
+		this.validator = new IncrementalValidator(genesis, genesisOutputs, proofOfWork, checkpointInterval, false);
+		this.tree = new BlockTree(validator, chain);
+		this.mempool = new Mempool(validator.getUtxos());
+		index.add(genesis, 0);
+		addresses.add(genesis, 0);
+		tree.addListener(new BlockTree.Listener() {
+			@Override
+			public void connected(Block block, int height) {
+				index.add(block, height);
+				addresses.add(block, height);
+			}
+
+			// The transactions of a block that leaves the main chain may not be in
+			// the new one, so they go back to the mempool
+			@Override
+			public void disconnected(Block block, int height) {
+				index.remove(block, height);
+				addresses.remove(block, height);
+				for (Transaction transaction : block.transactions) {
+					mempool.submit(unprocessed(transaction));
+				}
+			}
+		});
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		arrivals.put(genesis.hash, System.nanoTime());
+	}
+
+	/**
+	 * Submits a transaction to the mempool of this node, as a wallet would, and
+	 * relays it to the peers if it is accepted.
+	 *
+	 * @param transaction The signed transaction. It is copied and not changed.
+	 * @return Whether the transaction was accepted, or why it was rejected
+	 */
+	public CompletableFuture<Mempool.Result> submit(Transaction transaction) {
+		return CompletableFuture.supplyAsync(() -> {
+			byte[] message = message(TRANSACTION, codec.encode(transaction));
+			return addTransaction(BlockCodec.decodeTransaction(body(message)), message, null);
+		}, executor);
+	}
+
+	/**
+	 * Builds a block on the tip from the mempool, mines it and relays it to the
+	 * peers.
+	 *
+	 * @param maxTransactions The maximum number of transactions in the block
+	 * @return The mined block
+	 */
+	public CompletableFuture<Block> mine(int maxTransactions) {
+		return CompletableFuture.supplyAsync(() -> {
+			Block block = new Block(tree.getTip().hash, proofOfWork);
+			block.target = tree.nextTarget(block.previousHash);
+			mempool.fill(block, maxTransactions, new IncrementalValidator.PendingUtxos(validator.getUtxos()));
+			block.mineBlock(proofOfWork);
+			byte[] message = message(BLOCK, codec.encode(block));
+			addBlock(block, message, null);
+			return block;
+		}, executor);
+	}
+
+	/**
+	 * Decodes a transaction encoded with {@link BlockCodec} and submits it, e.g.
+	 * one posted to the {@link ApiServer}.
+	 *
+	 * @param encoded The encoded transaction
+	 * @return Whether the transaction was accepted, or why it was rejected
+	 * @throws IllegalArgumentException if the bytes are not a transaction
+	 */
+	public CompletableFuture<Mempool.Result> submit(byte[] encoded) {
+		Transaction transaction;
+		try {
+			transaction = BlockCodec.decodeTransaction(ByteBuffer.wrap(encoded));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Not an encoded transaction", e);
+		}
+		return submit(transaction);
+	}
+
+	/**
+	 * Handles a message from a peer on the thread of this node. Called by the
+	 * transport.
+	 *
+	 * @param from    The peer that sent the message
+	 * @param message The encoded block or transaction
+	 * @return Completes once the message has been handled
+	 */
+	public CompletableFuture<Void> receive(Node from, byte[] message) {
+		return CompletableFuture.runAsync(() -> {
+			if (seen.containsKey(digest(message)))
+				return; // relayed by another peer, dropped before decoding it again
+			if (message[0] == BLOCK)
+				addBlock(BlockCodec.decode(body(message)), message, from);
+			else if (message[0] == TRANSACTION)
+				addTransaction(BlockCodec.decodeTransaction(body(message)), message, from);
+			else
+				throw new IllegalArgumentException("Unknown message type " + message[0]);
+		}, executor);
+	}
+
+	private void addBlock(Block block, byte[] message, Node from) {
+		BlockTree.Result result = tree.add(block);
+		blockResults.incrementAndGet(result.ordinal());
+		if (pruner != null)
+			pruner.prune();
+		if (result == BlockTree.Result.DUPLICATE || result == BlockTree.Result.INVALID)
+			return;
+
+		seen.put(digest(message), Boolean.TRUE);
+		arrivals.putIfAbsent(block.hash, System.nanoTime());
+		transport.broadcast(this, message, from);
+	}
+
+	private Mempool.Result addTransaction(Transaction transaction, byte[] message, Node from) {
+		Mempool.Result result = mempool.submit(transaction);
+		if (result == Mempool.Result.ACCEPTED) {
+			seen.put(digest(message), Boolean.TRUE);
+			transport.broadcast(this, message, from);
+		}
+		return result;
+	}
+
+	private static String digest(byte[] message) {
+		return StringUtil.bytesToHex(CryptoService.sha256(message));
+	}
+
+	// Returns a copy of a transaction without its id and outputs, which are
+	// created again when it is added to another block.
+	private static Transaction unprocessed(Transaction transaction) {
+		ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>(transaction.inputs.size());
+		for (TransactionInput input : transaction.inputs) {
+			inputs.add(new TransactionInput(input.transactionOutputId));
+		}
+		Transaction copy = transaction.payouts == null
+				? new Transaction(transaction.sender, transaction.recipient, transaction.value, inputs)
+				: new Transaction(transaction.sender, transaction.payouts, inputs);
+		copy.signature = transaction.signature;
+		return copy;
+	}
+
+	// Copies an encoded block or transaction into a new message of the given type.
+	private static byte[] message(byte type, ByteBuffer encoded) {
+		byte[] message = new byte[encoded.remaining() + 1];
+		message[0] = type;
+		encoded.get(message, 1, message.length - 1);
+		return message;
+	}
+
+	private static ByteBuffer body(byte[] message) {
+		return ByteBuffer.wrap(message, 1, message.length - 1);
+	}
+
+	// Runs a query on the thread of the node and waits for the answer.
+	private <T> T query(Supplier<T> query) {
+		return CompletableFuture.supplyAsync(query, executor).join();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Block getTip() {
+		return tree.getTip();
+	}
+
+	public int getHeight() {
+		return tree.getHeight();
+	}
+
+	/**
+	 * Adds a listener that is told about every block connected to or
+	 * disconnected from the main chain. It is called on the thread of the node,
+	 * after the chain has changed.
+	 *
+	 * @param listener The listener
+	 */
+	public void addListener(BlockTree.Listener listener) {
+		tree.addListener(listener);
+	}
+
+	/**
+	 * Starts dropping the transactions of old blocks of the main chain, see
+	 * {@link ChainPruner}. Pruned blocks are still served with their headers, but
+	 * their transactions can no longer be looked up.
+	 *
+	 * @param depth        The number of blocks at the tip that keep their bodies
+	 * @param memoryBudget The estimated bytes the chain may keep in memory
+	 */
+	public void prune(int depth, long memoryBudget) {
+		query(() -> {
+			pruner = new ChainPruner(validator, tree, chain, depth, memoryBudget);
+			tree.addListener(pruner);
+			pruner.prune();
+			return null;
+		});
+	}
+
+	// Returns the block at the given height of the main chain, or null.
+	public Block getBlock(int height) {
+		return query(() -> height >= 0 && height < chain.size() ? chain.get(height) : null);
+	}
+
+	// Returns the height of a block on the main chain, or -1 if it is not there.
+	public int getHeightOf(String blockHash) {
+		return query(() -> index.heightOf(blockHash, chain));
+	}
+
+	// Returns a transaction on the main chain, or null if it is not there.
+	public Transaction getTransaction(String transactionId) {
+		return query(() -> index.getTransaction(transactionId, chain));
+	}
+
+	/**
+	 * Returns a page of the transactions of the main chain that touched a key,
+	 * oldest first. The history is read without waiting for the thread of the
+	 * node.
+	 *
+	 * @param owner  The public key
+	 * @param cursor The cursor of the first entry, 0 for the oldest, or the
+	 *               cursor of the previous page, see {@link AddressIndex#cursor}
+	 * @param limit  The maximum number of entries
+	 * @return The entries and the cursor of the next page
+	 */
+	public AddressIndex.Page getHistory(PublicKey owner, long cursor, int limit) {
+		return addresses.page(owner, cursor, limit);
+	}
+
+	// Returns a copy of the main chain, starting with the genesis block.
+	public List<Block> getChain() {
+		return query(() -> new ArrayList<Block>(chain));
+	}
+
+	// Returns the balance of a key at the tip of the main chain.
+	public long getBalance(PublicKey owner) {
+		return query(() -> validator.getUtxos().balanceOf(owner));
+	}
+
+	public int getMempoolSize() {
+		return mempool.size();
+	}
+
+	/**
+	 * Returns when this node first accepted a block, mined or received, even if
+	 * it is not on the main chain.
+	 *
+	 * @param hash The hash of the block
+	 * @return The System.nanoTime() of its arrival, or -1 if it has not arrived
+	 */
+	public long getArrival(String hash) {
+		Long arrival = arrivals.get(hash);
+		return arrival == null ? -1 : arrival;
+	}
+
+	// Returns how many of the blocks this node mined or received had the result.
+	public long getBlockCount(BlockTree.Result result) {
+		return blockResults.get(result.ordinal());
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
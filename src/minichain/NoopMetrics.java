@@ -0,0 +1,66 @@
+package minichain;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The NoopMetrics class is a registry whose instruments ignore every update,
+ * for runs where the cost of counting matters more than the numbers.
+ */
+public final class NoopMetrics implements MetricsRegistry {
+
+	public static final NoopMetrics INSTANCE = new NoopMetrics();
+
+	private static final Counter COUNTER = new Counter() {
+		@Override
+		public void add(long amount) {
+		}
+
+		@Override
+		public long get() {
+			return 0;
+		}
+	};
+
+	private static final Histogram HISTOGRAM = new Histogram() {
+		@Override
+		public void record(long value) {
+		}
+
+		@Override
+		public long getCount() {
+			return 0;
+		}
+
+		@Override
+		public long getMax() {
+			return 0;
+		}
+
+		@Override
+		public double getMean() {
+			return 0;
+		}
+
+		@Override
+		public long getPercentile(double percentile) {
+			return 0;
+		}
+	};
+
+	private NoopMetrics() {
+	}
+
+	@Override
+	public Counter counter(String name) {
+		return COUNTER;
+	}
+
+	@Override
+	public Histogram histogram(String name) {
+		return HISTOGRAM;
+	}
+
+	@Override
+	public void gauge(String name, LongSupplier value) {
+	}
+}
@@ -0,0 +1,147 @@
+package minichain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The ParallelMiner class searches the nonce space of a block on a fixed pool
+ * of worker threads. Worker i tries the nonces i, i + n, i + 2n, ... for n
+ * workers, so the workers never test the same nonce twice. The first worker
+ * to find a valid hash writes the nonce and hash back into the block and
+ * signals the other workers to stop.
+ */
+public class ParallelMiner {
+
+	private final int workers;
+	private final ExecutorService executor;
+	private volatile List<WorkerStats> lastStats = Collections.emptyList();
+
+	// Creates a miner with one worker per available processor.
+	public ParallelMiner() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelMiner(int workers) {
+		if (workers < 1)
+			throw new IllegalArgumentException("workers must be at least 1");
+
+		this.workers = workers;
+		this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+			Thread thread = new Thread(runnable, "miner");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Searches for a nonce whose block hash does not exceed the target of the
+	 * block. The merkle root and target of the block must already be set.
+	 *
+	 * @param block       The block to mine
+	 * @param proofOfWork The proof of work whose hash function is used
+	 * @return true if a nonce was found, false if the nonce space was exhausted
+	 */
+	public boolean mine(Block block, ProofOfWork proofOfWork) {
+		BlockHeader header = block.header();
+		byte[] target = Target.expand(block.target);
+		AtomicBoolean found = new AtomicBoolean(false);
+
+		List<Future<WorkerStats>> futures = new ArrayList<Future<WorkerStats>>(workers);
+		for (int w = 0; w < workers; w++) {
+			int worker = w;
+			futures.add(executor.submit(() -> search(block, header, target, proofOfWork.getHashFunction(), worker, found)));
+		}
+
+		List<WorkerStats> stats = new ArrayList<WorkerStats>(workers);
+		try {
+			for (Future<WorkerStats> future : futures) {
+				stats.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			found.set(true); // stop the remaining workers
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			found.set(true);
+			throw new RuntimeException(e.getCause());
+		}
+
+		lastStats = Collections.unmodifiableList(stats);
+		return found.get();
+	}
+
+	// Tries every workers-th nonce starting at the worker's index until one of
+	// the workers finds a solution. Each worker patches its own header buffer,
+	// and only the winning hash is converted to hexadecimal.
+	private WorkerStats search(Block block, BlockHeader header, byte[] target, ProofOfWork.HashFunction hashFunction,
+			int worker, AtomicBoolean found) {
+		byte[] buffer = header.newBuffer();
+		byte[] digest = new byte[32];
+		long start = System.nanoTime();
+		long hashes = 0;
+
+		for (long nonce = worker; nonce <= Integer.MAX_VALUE && !found.get(); nonce += workers) {
+			BlockHeader.hash(buffer, (int) nonce, digest, hashFunction);
+			hashes++;
+			if (Target.meets(digest, target) && found.compareAndSet(false, true)) {
+				block.setSolution((int) nonce, StringUtil.bytesToHex(digest));
+			}
+		}
+		return new WorkerStats(worker, hashes, System.nanoTime() - start);
+	}
+
+	// Returns the per-worker statistics of the last call to mine.
+	public List<WorkerStats> getLastStats() {
+		return lastStats;
+	}
+
+	// Returns the combined hash rate of all workers during the last call to mine.
+	public double getLastHashRate() {
+		double total = 0;
+		for (WorkerStats stats : lastStats) {
+			total += stats.getHashesPerSecond();
+		}
+		return total;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	// Stops the worker threads. The miner cannot be used afterwards.
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * The number of hashes a single worker computed during one mining run and how
+	 * long it ran for.
+	 */
+	public static class WorkerStats {
+
+		public final int worker;
+		public final long hashes;
+		public final long nanos;
+
+		public WorkerStats(int worker, long hashes, long nanos) {
+			this.worker = worker;
+			this.hashes = hashes;
+			this.nanos = nanos;
+		}
+
+		public double getHashesPerSecond() {
+			return nanos == 0 ? 0 : hashes * 1_000_000_000d / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Worker " + worker + ": " + hashes + " hashes, " + Math.round(getHashesPerSecond()) + " H/s";
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package minichain;
+
+import java.security.PublicKey;
+
+/**
+ * The Payout class is one recipient and amount of a batch transaction, which
+ * pays many recipients from the same inputs.
+ */
+public class Payout {
+
+	public final PublicKey recipient;
+	public final long value; // in the units of Amount
+	private transient KeyHandle recipientHandle; // cached encoding of the recipient
+
+	public Payout(PublicKey recipient, long value) {
+		this.recipient = recipient;
+		this.value = value;
+	}
+
+	public KeyHandle getRecipientHandle() {
+		if (recipientHandle == null)
+			recipientHandle = KeyHandle.of(recipient);
+		return recipientHandle;
+	}
+}
@@ -0,0 +1,80 @@
+package minichain;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * The ProofOfWork interface decides how block headers are hashed and which
+ * {@link Target} each block must meet. Miners and validators both ask it for
+ * the target of a block, computed only from the blocks before it, so they
+ * always agree.
+ */
+public interface ProofOfWork {
+
+	// Hashes a block header into a 32-byte digest. Implementations must be safe
+	// to call from several threads.
+	interface HashFunction {
+		void hash(byte[] input, int length, byte[] digest);
+	}
+
+	// A single SHA-256 of the header.
+	HashFunction SHA256 = (input, length, digest) -> {
+		MessageDigest sha256 = CryptoService.sha256();
+		sha256.update(input, 0, length);
+		try {
+			sha256.digest(digest, 0, 32);
+		} catch (DigestException e) {
+			throw new RuntimeException(e);
+		}
+	};
+
+	// SHA-256 applied twice, as in Bitcoin.
+	HashFunction DOUBLE_SHA256 = (input, length, digest) -> {
+		MessageDigest sha256 = CryptoService.sha256();
+		sha256.update(input, 0, length);
+		try {
+			sha256.digest(digest, 0, 32);
+			sha256.update(digest, 0, 32);
+			sha256.digest(digest, 0, 32);
+		} catch (DigestException e) {
+			throw new RuntimeException(e);
+		}
+	};
+
+	HashFunction getHashFunction();
+
+	// Returns the compact target of the genesis block.
+	int getInitialTarget();
+
+	// Returns how many blocks before a block nextTarget needs to see.
+	int getWindow();
+
+	// Returns how far a block timestamp may be ahead of local time, in
+	// milliseconds. Two hours, as in Bitcoin, unless the target depends on it.
+	default long getMaxFutureMillis() {
+		return 2 * 60 * 60 * 1000;
+	}
+
+	/**
+	 * Returns the compact target the block at the given height must meet.
+	 *
+	 * @param previous Blocks ending with the one at height - 1, holding at least
+	 *                 the last {@link #getWindow()} + 1 of them or all of them
+	 *                 back to the genesis block
+	 * @param height   The height of the new block
+	 * @return The compact target
+	 * @throws IllegalArgumentException if previous holds too few blocks
+	 */
+	int nextTarget(List<Block> previous, int height);
+
+	/**
+	 * Returns a proof of work with SHA-256 and the same target for every block.
+	 *
+	 * @param zeroBits The number of leading zero bits every block hash must have
+	 * @return The proof of work
+	 */
+	static ProofOfWork fixed(int zeroBits) {
+		return new AdaptiveProofOfWork(SHA256, Target.ofZeroBits(zeroBits), 0, 0);
+	}
+}
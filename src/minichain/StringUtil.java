@@ -1,14 +1,13 @@
 package minichain;
 
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
-import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.Signature;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.List;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 /**
@@ -17,6 +16,9 @@ import com.google.gson.GsonBuilder;
  */
 public class StringUtil {
 
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create(); // thread-safe
+
 	/**
 	 * Applies the SHA-256 hashing algorithm to a given input string.
 	 * 
@@ -24,24 +26,41 @@ public class StringUtil {
 	 * @return The hashed string in hexadecimal format
 	 */
 	public static String applySha256(String input) {
+		return bytesToHex(CryptoService.sha256(input.getBytes(StandardCharsets.UTF_8)));
+	}
 
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-
-			// Applies sha256 to our input,
-			byte[] hash = digest.digest(input.getBytes("UTF-8"));
+	// Converts bytes into a lowercase hexadecimal string.
+	public static String bytesToHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >>> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
 
-			StringBuffer hexString = new StringBuffer(); // This will contain hash as hexidecimal
-			for (int i = 0; i < hash.length; i++) {
-				String hex = Integer.toHexString(0xff & hash[i]);
-				if (hex.length() == 1)
-					hexString.append('0');
-				hexString.append(hex);
-			}
-			return hexString.toString();
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+	/**
+	 * Decodes a hexadecimal hash of up to 64 characters into 32 bytes. Shorter
+	 * strings are right-aligned, so the genesis previous hash "0" becomes all
+	 * zeros, and a null or empty string does too.
+	 * 
+	 * @param hex The hash in hexadecimal format
+	 * @return The hash as 32 bytes
+	 */
+	public static byte[] hexToBytes32(String hex) {
+		byte[] bytes = new byte[32];
+		if (hex == null)
+			return bytes;
+		if (hex.length() > 64)
+			throw new IllegalArgumentException("Hash is longer than 32 bytes: " + hex);
+
+		for (int i = 0; i < hex.length(); i++) {
+			int digit = Character.digit(hex.charAt(hex.length() - 1 - i), 16);
+			if (digit < 0)
+				throw new IllegalArgumentException("Not a hexadecimal hash: " + hex);
+			bytes[31 - i / 2] |= (byte) (digit << (4 * (i % 2)));
 		}
+		return bytes;
 	}
 
 	/**
@@ -52,19 +71,7 @@ public class StringUtil {
 	 * @return The signature as bytes
 	 */
 	public static byte[] applyECDSASig(PrivateKey privateKey, String input) {
-		Signature dsa;
-		byte[] output = new byte[0];
-		try {
-			dsa = Signature.getInstance("ECDSA", "BC");
-			dsa.initSign(privateKey);
-			byte[] strByte = input.getBytes();
-			dsa.update(strByte);
-			byte[] realSig = dsa.sign();
-			output = realSig;
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-		return output;
+		return CryptoService.sign(privateKey, input.getBytes(StandardCharsets.UTF_8));
 	}
 
 	/**
@@ -76,25 +83,12 @@ public class StringUtil {
 	 * @return true if the signature is valid, false otherwise
 	 */
 	public static boolean verifyECDSASig(PublicKey publicKey, String data, byte[] signature) {
-		try {
-			Signature ecdsaVerify = Signature.getInstance("ECDSA", "BC");
-			ecdsaVerify.initVerify(publicKey);
-			ecdsaVerify.update(data.getBytes());
-			return ecdsaVerify.verify(signature);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return CryptoService.verify(publicKey, data.getBytes(StandardCharsets.UTF_8), signature);
 	}
 
 	// Short hand helper to turn Object into a json string
 	public static String getJson(Object o) {
-		return new GsonBuilder().setPrettyPrinting().create().toJson(o);
-	}
-
-	// Returns difficulty string target, to compare to hash. e.g difficulty of 5
-	// will return "00000"
-	public static String getDificultyString(int difficulty) {
-		return new String(new char[difficulty]).replace('\0', '0');
+		return PRETTY_GSON.toJson(o);
 	}
 
 	// Converts a cryptographic key into a Base64-encoded string.
@@ -110,24 +104,6 @@ public class StringUtil {
 	 * @return The Merkle root as a hashed string
 	 */
 	public static String getMerkleRoot(ArrayList<Transaction> transactions) {
-		int count = transactions.size();
-
-		List<String> previousTreeLayer = new ArrayList<String>();
-		for (Transaction transaction : transactions) {
-			previousTreeLayer.add(transaction.transactionId);
-		}
-		List<String> treeLayer = previousTreeLayer;
-
-		while (count > 1) {
-			treeLayer = new ArrayList<String>();
-			for (int i = 1; i < previousTreeLayer.size(); i += 2) {
-				treeLayer.add(applySha256(previousTreeLayer.get(i - 1) + previousTreeLayer.get(i)));
-			}
-			count = treeLayer.size();
-			previousTreeLayer = treeLayer;
-		}
-
-		String merkleRoot = (treeLayer.size() == 1) ? treeLayer.get(0) : "";
-		return merkleRoot;
+		return MerkleTree.build(transactions).getRootHex();
 	}
 }
\ No newline at end of file
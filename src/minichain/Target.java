@@ -0,0 +1,92 @@
+package minichain;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * The Target class converts proof of work targets between their forms. A block
+ * hash, read as an unsigned 256-bit number, must not exceed the target of its
+ * block, so every halving of the target doubles the expected work.
+ *
+ * Blocks record the target in a compact 32-bit form: the high byte is the
+ * length of the target in bytes and the low three bytes are its most
+ * significant bytes, as in Bitcoin's nBits field but without a sign bit.
+ *
+ * <pre>
+ * target = mantissa * 256^(length - 3)
+ * </pre>
+ */
+public final class Target {
+
+	private static final BigInteger TWO_256 = BigInteger.ONE.shiftLeft(256);
+
+	private Target() {
+	}
+
+	/**
+	 * Returns the compact target that a hash meets if it starts with the given
+	 * number of zero bits. Four bits match one zero hex digit.
+	 *
+	 * @param zeroBits The number of leading zero bits, from 0 to 256
+	 * @return The compact target
+	 */
+	public static int ofZeroBits(int zeroBits) {
+		if (zeroBits < 0 || zeroBits > 256)
+			throw new IllegalArgumentException("zeroBits must be between 0 and 256");
+		return compact(BigInteger.ONE.shiftLeft(256 - zeroBits).subtract(BigInteger.ONE));
+	}
+
+	// Rounds a target down to the precision of the compact form.
+	public static int compact(BigInteger target) {
+		if (target.signum() < 0 || target.bitLength() > 256)
+			throw new IllegalArgumentException("Target out of range: " + target);
+
+		int length = (target.bitLength() + 7) / 8;
+		int mantissa = length <= 3 ? target.intValue() << 8 * (3 - length)
+				: target.shiftRight(8 * (length - 3)).intValue();
+		return length << 24 | mantissa;
+	}
+
+	public static BigInteger toBigInteger(int compact) {
+		int length = compact >>> 24;
+		BigInteger mantissa = BigInteger.valueOf(compact & 0xffffff);
+		return length <= 3 ? mantissa.shiftRight(8 * (3 - length)) : mantissa.shiftLeft(8 * (length - 3));
+	}
+
+	// Returns the target as 32 big-endian bytes, the form hashes are compared in.
+	public static byte[] expand(int compact) {
+		byte[] bytes = toBigInteger(compact).toByteArray();
+		byte[] target = new byte[32];
+		int length = Math.min(bytes.length, 32); // drops the sign byte BigInteger may add
+		System.arraycopy(bytes, bytes.length - length, target, 32 - length, length);
+		return target;
+	}
+
+	/**
+	 * Checks a raw hash against an expanded target without converting either to
+	 * a number.
+	 *
+	 * @param hash   The 32-byte hash
+	 * @param target The target from {@link #expand(int)}
+	 * @return Whether the hash does not exceed the target
+	 */
+	public static boolean meets(byte[] hash, byte[] target) {
+		return Arrays.compareUnsigned(hash, target) <= 0;
+	}
+
+	// Returns the expected number of hashes needed to meet the target.
+	public static BigInteger work(int compact) {
+		return TWO_256.divide(toBigInteger(compact).add(BigInteger.ONE));
+	}
+
+	// Returns the difficulty of the target as the equivalent number of leading
+	// zero bits, e.g. 8.0 for two zero hex digits.
+	public static double zeroBits(int compact) {
+		double target = toBigInteger(compact).add(BigInteger.ONE).doubleValue();
+		return 256 - Math.log(target) / Math.log(2);
+	}
+
+	public static String toString(int compact) {
+		return String.format("%08x (%.2f bits)", compact, zeroBits(compact));
+	}
+}
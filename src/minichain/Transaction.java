@@ -1,8 +1,11 @@
 package minichain;
 
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Transaction class represents a transaction in the blockchain.
@@ -11,77 +14,179 @@ public class Transaction {
 
 	public String transactionId;
 	public PublicKey sender;
-	public PublicKey recipient;
-	public float value; // amount of coins to be transferred.
+	public PublicKey recipient; // null for a batch transaction
+	public long value; // amount to be transferred, in the units of Amount.
+	public ArrayList<Payout> payouts; // the recipients of a batch transaction, null otherwise
 	public byte[] signature; // this prevents anyone else from spending funds in our wallet.
 
 	public ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
 	public ArrayList<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
 
-	private static int sequence = 0; // rough count of how many transactions have been generated.
+	private transient KeyHandle senderHandle; // cached encodings of sender and recipient
+	private transient KeyHandle recipientHandle;
 
-	public Transaction(PublicKey from, PublicKey to, float value, ArrayList<TransactionInput> inputs) {
+	private static final AtomicInteger sequence = new AtomicInteger(); // rough count of how many transactions have been generated.
+
+	public Transaction(PublicKey from, PublicKey to, long value, ArrayList<TransactionInput> inputs) {
 		this.sender = from;
 		this.recipient = to;
 		this.value = value;
 		this.inputs = inputs;
 	}
 
-	// Processes the transaction and checks if it is valid.
+	/**
+	 * Creates a batch transaction that pays every payout from the same inputs.
+	 * Its value is the sum of the payouts and it has no single recipient.
+	 * 
+	 * @param from    The public key of the sender
+	 * @param payouts The recipients and the amounts they are paid
+	 * @param inputs  The outputs spent to pay them
+	 */
+	public Transaction(PublicKey from, List<Payout> payouts, ArrayList<TransactionInput> inputs) {
+		this.sender = from;
+		this.payouts = new ArrayList<Payout>(payouts);
+		this.inputs = inputs;
+		for (Payout payout : payouts) {
+			this.value = Amount.add(this.value, payout.value);
+		}
+	}
+
+	// Processes the transaction against MiniChain.UTXOs and checks if it is valid.
+	// The outputs it spends and creates are kept aside, since only the validator
+	// changes MiniChain.UTXOs.
 	public boolean processTransaction() {
+		return processTransaction(new IncrementalValidator.PendingUtxos(MiniChain.UTXOs));
+	}
+
+	/**
+	 * Checks the transaction and, if it is valid, moves its inputs to new outputs
+	 * in the given set.
+	 * 
+	 * @param utxos The unspent outputs the transaction spends, e.g. those of a
+	 *              {@link Node}
+	 * @return Whether the transaction is valid
+	 */
+	public boolean processTransaction(UtxoView utxos) {
 
 		// Verify the signature of the transaction.
 		if (verifySignature() == false) {
-			System.out.println("#Transaction Signature failed to verify");
+			Metrics.rejectedSignature.increment();
+			if (MiniChain.logging)
+				System.out.println("#Transaction Signature failed to verify");
 			return false;
 		}
 
 		// Gather all input transactions (UTXOs) referenced in this transaction.
-		for (TransactionInput i : inputs) {
-			i.UTXO = MiniChain.UTXOs.get(i.transactionOutputId);
-		}
+		resolveInputs(utxos);
 
 		// Check if the transaction value is greater than the minimum transaction
 		// amount.
 		if (getInputsValue() < MiniChain.minimumTransaction) {
-			System.out.println("Transaction Inputs too small: " + getInputsValue());
-			System.out.println("Please enter the amount greater than " + MiniChain.minimumTransaction);
+			Metrics.rejectedInputs.increment();
+			if (MiniChain.logging) {
+				System.out.println("Transaction Inputs too small: " + Amount.toString(getInputsValue()));
+				System.out.println(
+						"Please enter the amount greater than " + Amount.toString(MiniChain.minimumTransaction));
+			}
 			return false;
 		}
 
+		// Check that the value is positive and covered by the inputs.
+		if (!hasValidAmounts()) {
+			Metrics.rejectedFunds.increment();
+			if (MiniChain.logging)
+				System.out.println("#Transaction amounts are invalid: " + Amount.toString(value) + " from inputs of "
+						+ Amount.toString(getInputsValue()));
+			return false;
+		}
+
+		createOutputs(utxos);
+		return true;
+	}
+
+	/**
+	 * Checks the amounts of the transaction: the value must be positive and no
+	 * more than the inputs, a batch transaction must pay its value in payouts
+	 * that are not negative, and no output may be negative. Without these checks
+	 * a negative value would create coins, since the change is the inputs minus
+	 * the value. The inputs must be resolved.
+	 * 
+	 * @return Whether the amounts are valid
+	 */
+	public boolean hasValidAmounts() {
+		try {
+			if (value <= 0)
+				return false;
+			if (payouts != null) {
+				long total = 0;
+				for (Payout payout : payouts) {
+					if (payout.value < 0)
+						return false;
+					total = Amount.add(total, payout.value);
+				}
+				if (total != value)
+					return false;
+			}
+			for (TransactionOutput output : outputs) {
+				if (output.value < 0)
+					return false;
+			}
+			return inputs != null && value <= getInputsValue();
+		} catch (ArithmeticException e) {
+			return false; // the payouts or inputs overflow
+		}
+	}
+
+	// Looks up the outputs spent by the inputs. Inputs whose output is not
+	// unspent are left without one.
+	void resolveInputs(UtxoView utxos) {
+		for (TransactionInput i : inputs) {
+			i.UTXO = utxos.get(i.transactionOutputId);
+		}
+	}
+
+	// Assigns the transaction id, creates the outputs and moves the spent
+	// outputs to the new ones in the given set. The inputs must be resolved.
+	void createOutputs(UtxoView utxos) {
+
 		// Calculate the leftover amount after sending the value to the recipient.
-		float leftOver = getInputsValue() - value;
+		long leftOver = Amount.subtract(getInputsValue(), value);
 
 		// Generate a unique transaction ID (hash) for this transaction.
 		transactionId = calulateHash();
 
-		// Add transaction outputs (new coins) to the recipient and sender.
-		outputs.add(new TransactionOutput(this.recipient, value, transactionId));
-		outputs.add(new TransactionOutput(this.sender, leftOver, transactionId));
+		// Add transaction outputs (new coins) to the recipients and sender.
+		if (payouts == null) {
+			outputs.add(new TransactionOutput(this.recipient, value, transactionId));
+			outputs.add(new TransactionOutput(this.sender, leftOver, transactionId));
+		} else {
+			for (Payout payout : payouts) {
+				outputs.add(new TransactionOutput(payout.recipient, payout.value, transactionId, outputs.size()));
+			}
+			outputs.add(new TransactionOutput(this.sender, leftOver, transactionId, outputs.size()));
+		}
 
 		// Add new outputs to the list of unspent transaction outputs (UTXOs).
 		for (TransactionOutput o : outputs) {
-			MiniChain.UTXOs.put(o.id, o);
+			utxos.put(o);
 		}
 
 		// Remove spent outputs from the list of UTXOs.
 		for (TransactionInput i : inputs) {
 			if (i.UTXO == null)
 				continue;
-			MiniChain.UTXOs.remove(i.UTXO.id);
+			utxos.remove(i.UTXO.id);
 		}
-
-		return true;
 	}
 
 	// Calculates the total value of the inputs (previous transaction outputs) being
 	// spent in this transaction.
-	public float getInputsValue() {
-		float total = 0;
+	public long getInputsValue() {
+		long total = 0;
 		for (TransactionInput i : inputs) {
 			if (i.UTXO == null)
 				continue;
-			total += i.UTXO.value;
+			total = Amount.add(total, i.UTXO.value);
 		}
 		return total;
 	}
@@ -93,31 +198,84 @@ public class Transaction {
 	 * @param privateKey The private key of the sender.
 	 */
 	public void generateSignature(PrivateKey privateKey) {
-		String data = StringUtil.getStringFromKey(sender) + StringUtil.getStringFromKey(recipient)
-				+ Float.toString(value);
-		signature = StringUtil.applyECDSASig(privateKey, data);
+		signature = CryptoService.sign(privateKey, getSigningPayload());
 	}
 
 	// Verifies the digital signature of this transaction.
 	public boolean verifySignature() {
-		String data = StringUtil.getStringFromKey(sender) + StringUtil.getStringFromKey(recipient)
-				+ Float.toString(value);
-		return StringUtil.verifyECDSASig(sender, data, signature);
+		long start = System.nanoTime();
+		boolean valid = CryptoService.verify(sender, getSigningPayload(), signature);
+		Metrics.signatureNanos.record(System.nanoTime() - start);
+		return valid;
+	}
+
+	/**
+	 * Returns the canonical bytes that are signed: the length-prefixed encodings
+	 * of the sender and recipient keys followed by the value. A batch transaction
+	 * has an empty recipient and appends every payout as a length-prefixed key and
+	 * a value.
+	 * 
+	 * @return The signed payload
+	 */
+	public byte[] getSigningPayload() {
+		byte[] from = getSenderHandle().encoded();
+		byte[] to = recipient == null ? new byte[0] : getRecipientHandle().encoded();
+		int size = 16 + from.length + to.length;
+		if (payouts != null) {
+			for (Payout payout : payouts) {
+				size += 12 + payout.getRecipientHandle().encoded().length;
+			}
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate(size).putInt(from.length).put(from).putInt(to.length).put(to)
+				.putLong(value);
+		if (payouts != null) {
+			for (Payout payout : payouts) {
+				byte[] key = payout.getRecipientHandle().encoded();
+				payload.putInt(key.length).put(key).putLong(payout.value);
+			}
+		}
+		return payload.array();
 	}
 
-	public float getOutputsValue() {
-		float total = 0;
+	// Checks that a batch transaction pays exactly its payouts, in order,
+	// followed by the change to the sender.
+	boolean outputsMatchPayouts() {
+		if (outputs.size() != payouts.size() + 1)
+			return false;
+		for (int p = 0; p < payouts.size(); p++) {
+			TransactionOutput output = outputs.get(p);
+			Payout payout = payouts.get(p);
+			if (output.value != payout.value || !output.getOwner().equals(payout.getRecipientHandle()))
+				return false;
+		}
+		return outputs.get(payouts.size()).getOwner().equals(getSenderHandle());
+	}
+
+	public KeyHandle getSenderHandle() {
+		if (senderHandle == null || senderHandle.getKey() != sender)
+			senderHandle = KeyHandle.of(sender);
+		return senderHandle;
+	}
+
+	public KeyHandle getRecipientHandle() {
+		if (recipientHandle == null || recipientHandle.getKey() != recipient)
+			recipientHandle = KeyHandle.of(recipient);
+		return recipientHandle;
+	}
+
+	public long getOutputsValue() {
+		long total = 0;
 		for (TransactionOutput o : outputs) {
-			total += o.value;
+			total = Amount.add(total, o.value);
 		}
 		return total;
 	}
 
 	// Calculates a hash (unique ID) for this transaction.
 	private String calulateHash() {
-		sequence++;
-
-		return StringUtil.applySha256(StringUtil.getStringFromKey(sender) + StringUtil.getStringFromKey(recipient)
-				+ Float.toString(value) + sequence);
+		byte[] payload = getSigningPayload();
+		byte[] input = ByteBuffer.allocate(payload.length + 4).put(payload).putInt(sequence.incrementAndGet()).array();
+		return StringUtil.bytesToHex(CryptoService.sha256(input));
 	}
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package minichain;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
 
 /**
@@ -10,20 +12,71 @@ public class TransactionOutput {
 
 	public String id;
 	public PublicKey reciepient; // also known as the new owner of these coins.
-	public float value; // the amount of coins they own
+	public long value; // the amount they own, in the units of Amount
 	public String parentTransactionId; // the id of the transaction this output was created in
+	private transient KeyHandle owner; // cached encoding of the recipient
 
-	public TransactionOutput(PublicKey reciepient, float value, String parentTransactionId) {
+	public TransactionOutput(PublicKey reciepient, long value, String parentTransactionId) {
 
 		this.reciepient = reciepient;
 		this.value = value;
 		this.parentTransactionId = parentTransactionId;
-		this.id = StringUtil
-				.applySha256(StringUtil.getStringFromKey(reciepient) + Float.toString(value) + parentTransactionId);
+
+		byte[] key = getOwner().encoded();
+		byte[] parent = parentTransactionId.getBytes(StandardCharsets.UTF_8);
+		this.id = StringUtil.bytesToHex(CryptoService
+				.sha256(ByteBuffer.allocate(key.length + 8 + parent.length).put(key).putLong(value).put(parent).array()));
+	}
+
+	/**
+	 * Creates the output at the given position of a batch transaction. The
+	 * position is part of the id, since a batch can pay the same recipient the
+	 * same amount more than once.
+	 * 
+	 * @param reciepient          The new owner of the coins
+	 * @param value               The amount they own
+	 * @param parentTransactionId The id of the batch transaction
+	 * @param index               The position of the output in the transaction
+	 */
+	public TransactionOutput(PublicKey reciepient, long value, String parentTransactionId, int index) {
+
+		this.reciepient = reciepient;
+		this.value = value;
+		this.parentTransactionId = parentTransactionId;
+
+		byte[] key = getOwner().encoded();
+		byte[] parent = parentTransactionId.getBytes(StandardCharsets.UTF_8);
+		this.id = StringUtil.bytesToHex(CryptoService.sha256(ByteBuffer.allocate(key.length + 12 + parent.length)
+				.put(key).putLong(value).put(parent).putInt(index).array()));
+	}
+
+	// Recreates an output with a known id, e.g. when reading it from the block
+	// store.
+	TransactionOutput(String id, PublicKey reciepient, long value, String parentTransactionId) {
+		this.id = id;
+		this.reciepient = reciepient;
+		this.value = value;
+		this.parentTransactionId = parentTransactionId;
+	}
+
+	// Recreates an output of an owner from the key registry, e.g. one kept by a
+	// UtxoSet.
+	TransactionOutput(String id, KeyHandle owner, long value, String parentTransactionId) {
+		this(id, owner.getKey(), value, parentTransactionId);
+		this.owner = owner;
+	}
+
+	// Returns the handle of the recipient, encoding the key only once. The
+	// recipient is kept as it is, since validation compares recipients by
+	// identity.
+	public KeyHandle getOwner() {
+		if (owner == null || owner.getKey() != reciepient)
+			owner = KeyHandle.of(reciepient);
+		return owner;
 	}
 
 	// Check if coin belongs to you
 	public boolean isMine(PublicKey publicKey) {
-		return (publicKey == reciepient);
+		return reciepient.equals(publicKey);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package minichain;
+
+/**
+ * The Transport interface carries messages between {@link Node}s. Messages are
+ * encoded blocks and transactions, so nodes never share mutable objects and a
+ * transport over sockets could replace the in-process one.
+ */
+public interface Transport {
+
+	/**
+	 * Sends a message to every peer of a node. The transport hands it to each
+	 * peer's {@link Node#receive} and must not change the array.
+	 *
+	 * @param from    The sending node
+	 * @param message The encoded message
+	 * @param except  A peer to leave out, usually the one the message came from,
+	 *                or null
+	 */
+	void broadcast(Node from, byte[] message, Node except);
+}
@@ -0,0 +1,421 @@
+package minichain;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The UtxoSet class holds all unspent transaction outputs. Next to the table
+ * from output id to output it keeps a secondary index from each owner to the
+ * outputs they own, together with a running balance that is updated whenever
+ * an output is added or spent. Balance queries and coin selection therefore
+ * only touch the outputs of one owner instead of the whole set.
+ *
+ * The outputs are stored compactly: each one is an entry with the 32 bytes of
+ * its id in four longs, its owner as an id of the {@link KeyRegistry} and its
+ * value, in an open-addressing table. The entries of an owner form a linked
+ * list through the entries themselves. The parent id is kept as a {@link Hash},
+ * shared by the outputs of the same transaction added one after the other, and
+ * as text only if it is not a hash, such as the "0" of the genesis
+ * transaction. An output whose value would overflow the balance of its owner
+ * is rejected before the set changes. The TransactionOutput objects that
+ * {@link #get} and the other lookups return are created for each call.
+ *
+ * The set is safe to use from many threads. Lookups share a read lock, and
+ * adding or spending outputs takes the write lock.
+ */
+public class UtxoSet implements UtxoView {
+
+	private static final KeyRegistry KEYS = KeyRegistry.INSTANCE;
+
+	private Entry[] table = new Entry[16];
+	private int size;
+	private Owner[] owners = new Owner[16]; // indexed by key id
+	private int ownerCount;
+	private String lastParentText; // the parent id of the output added last
+	private Object lastParent; // and the same id as it is stored in the entries
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// An unspent output, linked into the list of its owner.
+	private static final class Entry {
+		final long a, b, c, d; // the id, as in Hash
+		final int owner;
+		final long value;
+		final Object parent; // a Hash, or the text of an id that is not one; toString() gives the id
+		Entry previous;
+		Entry next;
+
+		Entry(Hash id, int owner, long value, Object parent) {
+			this(id.a, id.b, id.c, id.d, owner, value, parent);
+		}
+
+		Entry(long a, long b, long c, long d, int owner, long value, Object parent) {
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.d = d;
+			this.owner = owner;
+			this.value = value;
+			this.parent = parent;
+		}
+
+		boolean is(Hash id) {
+			return a == id.a && b == id.b && c == id.c && d == id.d;
+		}
+
+		Hash id() {
+			return new Hash(a, b, c, d);
+		}
+
+		String parentId() {
+			return parent == null ? null : parent.toString();
+		}
+	}
+
+	// The outputs and balance of a single owner, oldest output first.
+	private static final class Owner {
+		Entry first;
+		Entry last;
+		long balance;
+	}
+
+	/**
+	 * Adds an unspent output, replacing any output with the same id.
+	 *
+	 * @param output The output
+	 * @throws IllegalArgumentException if the id of the output is not a hash
+	 * @throws ArithmeticException      if the balance of the owner would
+	 *                                  overflow, leaving the set unchanged
+	 */
+	@Override
+	public void put(TransactionOutput output) {
+		Hash id = Hash.of(output.id);
+		int owner = KEYS.intern(output.getOwner());
+
+		lock.writeLock().lock();
+		try {
+			String text = output.parentTransactionId;
+			if (text == null || !text.equals(lastParentText)) {
+				Hash hash = Hash.parse(text);
+				lastParent = hash == null ? text : hash;
+				lastParentText = text;
+			}
+			add(id, new Entry(id, owner, output.value, lastParent));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void add(Hash id, Entry entry) {
+		checkBalance(find(id), entry);
+		Entry previous = removeEntry(id);
+		if (previous != null)
+			unlink(previous);
+
+		if ((size + 1) * 4L > table.length * 3L)
+			resize(table.length * 2);
+		int mask = table.length - 1;
+		int slot = slot(entry.a, mask);
+		while (table[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = entry;
+		size++;
+		link(entry);
+	}
+
+	@Override
+	public TransactionOutput get(String id) {
+		Hash hash = Hash.parse(id);
+		if (hash == null)
+			return null;
+
+		lock.readLock().lock();
+		try {
+			Entry entry = find(hash);
+			return entry == null ? null : output(entry, id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(String id) {
+		Hash hash = Hash.parse(id);
+		if (hash == null)
+			return false;
+
+		lock.readLock().lock();
+		try {
+			return find(hash) != null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes an output once it has been spent.
+	 *
+	 * @param id The id of the output
+	 * @return The removed output, or null if it was not unspent
+	 */
+	@Override
+	public TransactionOutput remove(String id) {
+		Hash hash = Hash.parse(id);
+		if (hash == null)
+			return null;
+
+		lock.writeLock().lock();
+		try {
+			Entry entry = removeEntry(hash);
+			if (entry == null)
+				return null;
+			unlink(entry);
+			return output(entry, id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private Entry find(Hash id) {
+		int mask = table.length - 1;
+		Entry entry;
+		for (int slot = slot(id.a, mask); (entry = table[slot]) != null; slot = (slot + 1) & mask) {
+			if (entry.is(id))
+				return entry;
+		}
+		return null;
+	}
+
+	// Takes an entry out of the table. The entries after it in its probe run are
+	// shifted back into the gap, so no tombstones are needed.
+	private Entry removeEntry(Hash id) {
+		int mask = table.length - 1;
+		int slot = slot(id.a, mask);
+		Entry entry;
+		while ((entry = table[slot]) != null && !entry.is(id)) {
+			slot = (slot + 1) & mask;
+		}
+		if (entry == null)
+			return null;
+
+		int hole = slot;
+		for (int next = (hole + 1) & mask; table[next] != null; next = (next + 1) & mask) {
+			int home = slot(table[next].a, mask);
+			if (((next - home) & mask) >= ((next - hole) & mask)) { // the hole lies between home and next
+				table[hole] = table[next];
+				hole = next;
+			}
+		}
+		table[hole] = null;
+		size--;
+		return entry;
+	}
+
+	private void resize(int capacity) {
+		Entry[] old = table;
+		table = new Entry[capacity];
+		int mask = capacity - 1;
+		for (Entry entry : old) {
+			if (entry != null) {
+				int slot = slot(entry.a, mask);
+				while (table[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = entry;
+			}
+		}
+	}
+
+	// The first bytes of a SHA-256 id are uniform enough to pick the slot.
+	private static int slot(long prefix, int mask) {
+		return (int) (prefix ^ (prefix >>> 32)) & mask;
+	}
+
+	// Throws if adding the entry, in place of the previous one with its id if
+	// any, would overflow the balance of its owner. Called before the table
+	// changes, so that link cannot fail halfway.
+	private void checkBalance(Entry previous, Entry entry) {
+		Owner owner = ownerOf(entry.owner);
+		if (owner == null)
+			return;
+		long balance = owner.balance;
+		if (previous != null && previous.owner == entry.owner)
+			balance -= previous.value; // part of the balance, so it cannot overflow
+		Amount.add(balance, entry.value);
+	}
+
+	// Appends an entry to the list of its owner and adds it to the balance.
+	private void link(Entry entry) {
+		if (entry.owner >= owners.length)
+			owners = Arrays.copyOf(owners, Math.max(entry.owner + 1, owners.length * 2));
+		Owner owner = owners[entry.owner];
+		if (owner == null) {
+			owner = new Owner();
+			owners[entry.owner] = owner;
+			ownerCount++;
+		}
+		if (owner.last == null) {
+			owner.first = entry;
+		} else {
+			owner.last.next = entry;
+			entry.previous = owner.last;
+		}
+		owner.last = entry;
+		owner.balance = Amount.add(owner.balance, entry.value);
+	}
+
+	private void unlink(Entry entry) {
+		Owner owner = owners[entry.owner];
+		if (entry.previous == null)
+			owner.first = entry.next;
+		else
+			entry.previous.next = entry.next;
+		if (entry.next == null)
+			owner.last = entry.previous;
+		else
+			entry.next.previous = entry.previous;
+		entry.previous = null;
+		entry.next = null;
+
+		if (owner.first == null) {
+			owners[entry.owner] = null;
+			ownerCount--;
+		} else {
+			owner.balance = Amount.subtract(owner.balance, entry.value);
+		}
+	}
+
+	// Creates the output an entry stands for, with the id text of the caller if
+	// it has one.
+	private static TransactionOutput output(Entry entry, String id) {
+		return new TransactionOutput(id == null ? entry.id().toString() : id, KEYS.get(entry.owner), entry.value,
+				entry.parentId());
+	}
+
+	// Returns the sum of all unspent outputs owned by the given key.
+	public long balanceOf(PublicKey owner) {
+		return balanceOf(KeyHandle.of(owner));
+	}
+
+	public long balanceOf(KeyHandle handle) {
+		int id = KEYS.find(handle);
+		lock.readLock().lock();
+		try {
+			Owner owner = ownerOf(id);
+			return owner == null ? 0 : owner.balance;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Owner ownerOf(int id) {
+		return id < 0 || id >= owners.length ? null : owners[id];
+	}
+
+	// Returns a copy of the unspent outputs owned by the given key, in the order
+	// they were added.
+	public List<TransactionOutput> outputsOf(PublicKey owner) {
+		return outputsOf(KeyHandle.of(owner));
+	}
+
+	public List<TransactionOutput> outputsOf(KeyHandle handle) {
+		int id = KEYS.find(handle);
+		lock.readLock().lock();
+		try {
+			Owner owner = ownerOf(id);
+			if (owner == null)
+				return Collections.<TransactionOutput>emptyList();
+			List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+			for (Entry entry = owner.first; entry != null; entry = entry.next) {
+				outputs.add(output(entry, null));
+			}
+			return outputs;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Applies the transactions of a block in order, spending their inputs and
+	 * adding their outputs. The transactions are not validated, so the block must
+	 * come from a trusted source such as the block store.
+	 *
+	 * @param block The block to apply
+	 */
+	public void apply(Block block) {
+		lock.writeLock().lock();
+		try {
+			for (Transaction transaction : block.transactions) {
+				if (transaction.inputs != null) {
+					for (TransactionInput input : transaction.inputs) {
+						remove(input.transactionOutputId);
+					}
+				}
+				for (TransactionOutput output : transaction.outputs) {
+					put(output);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Returns a copy of all unspent outputs, grouped by owner.
+	public List<TransactionOutput> outputs() {
+		lock.readLock().lock();
+		try {
+			List<TransactionOutput> copy = new ArrayList<TransactionOutput>(size);
+			for (Owner owner : owners) {
+				for (Entry entry = owner == null ? null : owner.first; entry != null; entry = entry.next) {
+					copy.add(output(entry, null));
+				}
+			}
+			return copy;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Returns a copy of the set with its own owner index. The parent ids are
+	// shared, since they never change.
+	public UtxoSet copy() {
+		UtxoSet copy = new UtxoSet();
+		lock.readLock().lock();
+		try {
+			copy.table = new Entry[table.length];
+			copy.owners = new Owner[owners.length];
+			for (Owner owner : owners) {
+				for (Entry entry = owner == null ? null : owner.first; entry != null; entry = entry.next) {
+					copy.add(entry.id(), new Entry(entry.a, entry.b, entry.c, entry.d, entry.owner, entry.value,
+							entry.parent));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return copy;
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Returns the number of distinct owners with at least one unspent output.
+	public int owners() {
+		lock.readLock().lock();
+		try {
+			return ownerCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package minichain;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * The UtxoSnapshot class writes the set of unspent outputs to a file and reads
+ * it back, so that a node can start from the snapshot and only replay the
+ * blocks after it instead of every transaction since the genesis block.
+ *
+ * <pre>
+ * snapshot = magic(4) version(1) height(4) block hash(32) count(4) chunk* end checksum(4)
+ * chunk    = length(4) outputs
+ * end      = length(4) of 0
+ * </pre>
+ *
+ * Each chunk is a {@link BlockCodec} output list of up to 4096 outputs. The
+ * outputs are written grouped by owner, so the key dictionary of a chunk stays
+ * small. The CRC-32C checksum covers everything before it. A snapshot is
+ * written to a temporary file first and moved into place once complete, so a
+ * crash never leaves a half written snapshot behind.
+ */
+public class UtxoSnapshot {
+
+	private static final int MAGIC = 0x55545853; // "UTXS"
+	private static final byte VERSION = 2;
+	private static final int HEADER_SIZE = 45;
+	private static final int CHUNK_OUTPUTS = 4096;
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final int MAX_CHUNK_SIZE = 64 << 20;
+
+	public final int height;
+	public final String blockHash;
+	public final UtxoSet utxos;
+
+	private UtxoSnapshot(int height, String blockHash, UtxoSet utxos) {
+		this.height = height;
+		this.blockHash = blockHash;
+		this.utxos = utxos;
+	}
+
+	/**
+	 * Writes the unspent outputs after the block at the given height to a file,
+	 * replacing any earlier snapshot.
+	 *
+	 * @param file      The snapshot file
+	 * @param utxos     The unspent outputs after the block
+	 * @param height    The height of the block
+	 * @param blockHash The hash of the block
+	 */
+	public static void write(Path file, UtxoSet utxos, int height, String blockHash) {
+		List<TransactionOutput> outputs = utxos.outputs();
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		BlockCodec codec = new BlockCodec();
+		CRC32C checksum = new CRC32C();
+
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				buffer.putInt(MAGIC).put(VERSION).putInt(height).put(StringUtil.hexToBytes32(blockHash))
+						.putInt(outputs.size());
+
+				for (int from = 0; from < outputs.size(); from += CHUNK_OUTPUTS) {
+					int to = Math.min(from + CHUNK_OUTPUTS, outputs.size());
+					ByteBuffer chunk = codec.encodeOutputs(outputs.subList(from, to));
+					if (buffer.remaining() < 4 + chunk.remaining()) {
+						flush(channel, buffer, checksum);
+						if (buffer.capacity() < 4 + chunk.remaining())
+							buffer = ByteBuffer.allocateDirect(4 + chunk.remaining());
+					}
+					buffer.putInt(chunk.remaining()).put(chunk);
+				}
+
+				if (buffer.remaining() < 4)
+					flush(channel, buffer, checksum);
+				buffer.putInt(0);
+				flush(channel, buffer, checksum);
+
+				buffer.putInt((int) checksum.getValue()).flip();
+				writeFully(channel, buffer);
+				channel.force(true);
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Writes the buffered bytes to the channel and adds them to the checksum.
+	private static void flush(FileChannel channel, ByteBuffer buffer, CRC32C checksum) throws IOException {
+		buffer.flip();
+		checksum.update(buffer.duplicate());
+		writeFully(channel, buffer);
+		buffer.clear();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads a snapshot, streaming the file in chunks and rebuilding the unspent
+	 * outputs together with their owner index.
+	 *
+	 * @param file The snapshot file
+	 * @return The snapshot
+	 * @throws UncheckedIOException if the file cannot be read, is truncated or its
+	 *                              checksum does not match
+	 */
+	public static UtxoSnapshot read(Path file) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			Reader in = new Reader(channel);
+			ByteBuffer header = in.take(HEADER_SIZE);
+			if (header.getInt() != MAGIC)
+				throw new IOException("Not a UTXO snapshot: " + file);
+			byte version = header.get();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version);
+			int height = header.getInt();
+			byte[] hash = new byte[32];
+			header.get(hash);
+			int count = header.getInt();
+
+			UtxoSet utxos = new UtxoSet();
+			int length;
+			while ((length = in.take(4).getInt()) != 0) {
+				if (length < 0 || length > MAX_CHUNK_SIZE)
+					throw new IOException("Invalid chunk length " + length + " in " + file);
+				for (TransactionOutput output : BlockCodec.decodeOutputs(in.take(length))) {
+					utxos.put(output);
+				}
+			}
+
+			int expected = (int) in.checksum.getValue();
+			if (in.take(4).getInt() != expected)
+				throw new IOException("Checksum mismatch in " + file);
+			if (utxos.size() != count)
+				throw new IOException(
+						"Snapshot " + file + " holds " + utxos.size() + " outputs instead of " + count);
+			return new UtxoSnapshot(height, StringUtil.bytesToHex(hash), utxos);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			throw new UncheckedIOException(new IOException("Corrupt snapshot " + file, e));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Replays the blocks after the snapshot height from the store into the
+	 * unspent outputs of the snapshot, which then match the tip of the store.
+	 *
+	 * @param store The block store the snapshot was taken from
+	 * @return The number of blocks replayed
+	 * @throws IllegalStateException if the store has a different block at the
+	 *                               snapshot height
+	 */
+	public int replay(BlockStore store) {
+		if (height >= store.size() || !blockHash.equals(store.getHash(height)))
+			throw new IllegalStateException("The snapshot at height " + height + " does not match the block store");
+
+		int size = store.size();
+		for (int h = height + 1; h < size; h++) {
+			utxos.apply(store.get(h));
+		}
+		return size - 1 - height;
+	}
+
+	/**
+	 * Rebuilds the unspent outputs at the tip of the store. The snapshot is used
+	 * if it exists and matches the store, otherwise every block is replayed.
+	 *
+	 * @param file  The snapshot file, or null to replay every block
+	 * @param store The block store
+	 * @return The unspent outputs after the last block in the store
+	 */
+	public static UtxoSet restore(Path file, BlockStore store) {
+		if (file != null && Files.exists(file)) {
+			try {
+				UtxoSnapshot snapshot = read(file);
+				snapshot.replay(store);
+				return snapshot.utxos;
+			} catch (UncheckedIOException | IllegalStateException e) {
+				if (MiniChain.logging)
+					System.out.println("Ignoring snapshot: " + e.getMessage());
+			}
+		}
+
+		UtxoSet utxos = new UtxoSet();
+		int size = store.size();
+		for (int h = 0; h < size; h++) {
+			utxos.apply(store.get(h));
+		}
+		return utxos;
+	}
+
+	// Reads a file through a buffer that is refilled as it is consumed, adding
+	// every byte taken to the checksum.
+	private static class Reader {
+
+		final FileChannel channel;
+		final CRC32C checksum = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+
+		Reader(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		// Returns the next bytes of the file as a buffer of their own.
+		ByteBuffer take(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				if (buffer.capacity() < bytes) {
+					buffer = ByteBuffer.allocateDirect(bytes).put(buffer);
+				} else {
+					buffer.compact();
+				}
+				while (buffer.position() < bytes) {
+					if (channel.read(buffer) < 0)
+						throw new EOFException("Snapshot is truncated");
+				}
+				buffer.flip();
+			}
+
+			ByteBuffer slice = buffer.slice(buffer.position(), bytes);
+			buffer.position(buffer.position() + bytes);
+			checksum.update(slice.duplicate());
+			return slice;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package minichain;
+
+/**
+ * The UtxoView interface is the set of spendable outputs a validator replays
+ * transactions against. It is implemented by {@link UtxoSet} and by the
+ * temporary sets of the validators.
+ */
+public interface UtxoView {
+
+	// Returns the unspent output with the given id, or null.
+	TransactionOutput get(String id);
+
+	// Adds an output created by a transaction.
+	void put(TransactionOutput output);
+
+	// Spends the output with the given id and returns it, or null if it was not
+	// unspent.
+	TransactionOutput remove(String id);
+}
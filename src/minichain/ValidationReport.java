@@ -0,0 +1,84 @@
+package minichain;
+
+/**
+ * The ValidationReport class records the outcome of a chain validation and how
+ * long each validation stage took.
+ */
+public class ValidationReport {
+
+	// The stages of a full chain validation, in the order they run.
+	public enum Stage {
+		HEADER_HASH("header hash"), PROOF_OF_WORK("proof of work"), SIGNATURES("signatures"),
+		UTXO_REPLAY("utxo replay");
+
+		private final String label;
+
+		Stage(String label) {
+			this.label = label;
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	private final long[] stageNanos = new long[Stage.values().length];
+	private final int blocks;
+	private String failure; // null while the chain is valid
+
+	public ValidationReport(int blocks) {
+		this.blocks = blocks;
+	}
+
+	void addTime(Stage stage, long nanos) {
+		stageNanos[stage.ordinal()] += nanos;
+	}
+
+	void fail(String reason) {
+		if (failure == null)
+			failure = reason;
+	}
+
+	public boolean isValid() {
+		return failure == null;
+	}
+
+	// Returns the reason the chain was rejected, or null if it is valid.
+	public String getFailure() {
+		return failure;
+	}
+
+	public int getBlocks() {
+		return blocks;
+	}
+
+	public long getNanos(Stage stage) {
+		return stageNanos[stage.ordinal()];
+	}
+
+	public long getTotalNanos() {
+		long total = 0;
+		for (long nanos : stageNanos) {
+			total += nanos;
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(isValid() ? "Valid" : "Invalid").append(" chain of ").append(blocks).append(" blocks in ")
+				.append(formatMillis(getTotalNanos())).append(" (");
+		for (Stage stage : Stage.values()) {
+			if (stage.ordinal() > 0)
+				sb.append(", ");
+			sb.append(stage).append(": ").append(formatMillis(getNanos(stage)));
+		}
+		return sb.append(')').toString();
+	}
+
+	private static String formatMillis(long nanos) {
+		return String.format("%.3f ms", nanos / 1_000_000d);
+	}
+}
@@ -1,103 +1,198 @@
 package minichain;
 
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.security.spec.ECGenParameterSpec;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
- * The Wallet class manages the user's private and public keys and the Unspent
- * Transaction Outputs (UTXOs) belonging to the wallet.
+ * The Wallet class manages the user's private and public keys and spends the
+ * Unspent Transaction Outputs (UTXOs) belonging to the wallet. A wallet gets a
+ * new random key pair, one taken from a {@link KeyPool}, or one derived with
+ * {@link DeterministicKey}.
  */
 public class Wallet {
 
+	public static final int MAX_PAYOUTS = 1000; // recipients per batch transaction
+
 	public PrivateKey privateKey;
 	public PublicKey publicKey;
-
-	public HashMap<String, TransactionOutput> UTXOs = new HashMap<String, TransactionOutput>();
+	public KeyHandle keyHandle; // the public key with its encoding cached
 
 	public Wallet() {
 		generateKeyPair();
 	}
 
+	// Creates a wallet with a key pair from the pool, generated in advance.
+	public Wallet(KeyPool pool) {
+		setKeyPair(pool.take());
+	}
+
+	// Creates a wallet with the given key pair, e.g. from
+	// DeterministicKey.getKeyPair().
+	public Wallet(KeyPair keyPair) {
+		setKeyPair(keyPair);
+	}
+
 	// Generates a new key pair (private and public key) using ECDSA algorithm and
 	// Bouncy Castle provider.
 	public void generateKeyPair() {
+		setKeyPair(CryptoService.generateKeyPair());
+	}
 
-		try {
-			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("ECDSA", "BC");
-			SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
-			ECGenParameterSpec ecSpec = new ECGenParameterSpec("prime192v1");
-			keyGen.initialize(ecSpec, random);
-			KeyPair keyPair = keyGen.generateKeyPair();
-			privateKey = keyPair.getPrivate();
-			publicKey = keyPair.getPublic();
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+	private void setKeyPair(KeyPair keyPair) {
+		privateKey = keyPair.getPrivate();
+		publicKey = keyPair.getPublic();
+		keyHandle = KeyHandle.of(publicKey);
 	}
 
 	/**
-	 * Calculates and returns the balance of the wallet by summing up the values of
-	 * all UTXOs belonging to the wallet.
+	 * Returns the balance of the wallet, which the UTXO set keeps as a running sum
+	 * of all UTXOs belonging to the wallet.
 	 * 
 	 * @return The total balance of the wallet.
 	 */
-	public float getBalance() {
-		float total = 0;
+	public long getBalance() {
+		return getBalance(MiniChain.UTXOs);
+	}
 
-		for (Map.Entry<String, TransactionOutput> item : MiniChain.UTXOs.entrySet()) {
-			TransactionOutput UTXO = item.getValue();
+	// Returns the balance of the wallet in the given set of unspent outputs.
+	public long getBalance(UtxoSet utxos) {
+		return utxos.balanceOf(keyHandle);
+	}
 
-			if (UTXO.isMine(publicKey)) { // If output belongs to this wallet
-				UTXOs.put(UTXO.id, UTXO);
-				total += UTXO.value;
-			}
-		}
-		return total;
+	/**
+	 * Returns the transactions of the main chain that touched this wallet, oldest
+	 * first, read lazily from MiniChain.addressIndex.
+	 * 
+	 * @param cursor The cursor of the first entry, 0 for the oldest, see
+	 *               {@link AddressIndex#cursor}
+	 * @return The entries of the wallet's history
+	 */
+	public Stream<AddressIndex.Entry> getHistory(long cursor) {
+		return MiniChain.addressIndex.history(publicKey, cursor);
 	}
 
 	/**
 	 * Creates a new transaction to send funds from this wallet to a recipient's
-	 * public key.
+	 * public key. The outputs are chosen from MiniChain.UTXOs without regard to
+	 * other transactions that are not on the chain yet; use
+	 * {@link #sendFunds(PublicKey, long, Block)} to pay more than once from one
+	 * block.
+	 * 
+	 * @param _recipient The public key of the recipient.
+	 * @param value      The amount to send.
+	 * @return The created transaction or null if there are insufficient funds.
+	 */
+	public Transaction sendFunds(PublicKey _recipient, long value) {
+		return sendFunds(_recipient, value, MiniChain.UTXOs);
+	}
+
+	/**
+	 * Creates a new transaction for a block that is being built on the tip of
+	 * MiniChain. Outputs already spent by the transactions added to the block are
+	 * not chosen again, so the wallet can pay several times from the same block.
+	 * Outputs created in the block, such as change, are not spent before the
+	 * block is on the chain.
+	 * 
+	 * @param _recipient The public key of the recipient.
+	 * @param value      The amount to send.
+	 * @param block      The block the transaction will be added to
+	 * @return The created transaction or null if there are insufficient funds.
+	 */
+	public Transaction sendFunds(PublicKey _recipient, long value, Block block) {
+		return sendFunds(_recipient, value, MiniChain.UTXOs, block.getPendingUtxos());
+	}
+
+	/**
+	 * Creates a new transaction that spends outputs of the wallet in the given set.
 	 * 
 	 * @param _recipient The public key of the recipient.
 	 * @param value      The amount to send.
+	 * @param utxos      The unspent outputs to pay from, e.g. those of a
+	 *                   {@link Node}
 	 * @return The created transaction or null if there are insufficient funds.
 	 */
-	public Transaction sendFunds(PublicKey _recipient, float value) {
+	public Transaction sendFunds(PublicKey _recipient, long value, UtxoSet utxos) {
+		return sendFunds(_recipient, value, utxos, null);
+	}
+
+	// Pays from the outputs of the wallet in the set that the pending view, if
+	// any, has not spent.
+	private Transaction sendFunds(PublicKey _recipient, long value, UtxoSet utxos, UtxoView pending) {
+		if (value <= 0)
+			throw new IllegalArgumentException("The value must be positive");
 
-		if (getBalance() < value) { // Check if there are enough funds
-			System.out.println("#Not Enough funds to send transaction. Transaction Discarded.");
+		if (getBalance(utxos) < value) { // Check if there are enough funds
+			Metrics.rejectedFunds.increment();
+			if (MiniChain.logging)
+				System.out.println("#Not Enough funds to send transaction. Transaction Discarded.");
 			return null;
 		}
 
+		// Gather enough UTXOs to cover the transaction value. The set can change
+		// after the balance was read, and the pending view may have spent some of
+		// them, so they may no longer cover it.
+		List<TransactionOutput> unspent = utxos.outputsOf(keyHandle);
+		if (pending != null)
+			unspent.removeIf(output -> pending.get(output.id) == null);
+		List<TransactionOutput> coins = new CoinSelector(unspent).select(value);
+		if (coins == null) {
+			Metrics.rejectedFunds.increment();
+			if (MiniChain.logging)
+				System.out.println("#Not Enough funds to send transaction. Transaction Discarded.");
+			return null;
+		}
 		ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
-
-		float total = 0;
-
-		// Gather enough UTXOs to cover the transaction value
-		for (Map.Entry<String, TransactionOutput> item : UTXOs.entrySet()) {
-			TransactionOutput UTXO = item.getValue();
-			total += UTXO.value;
+		for (TransactionOutput UTXO : coins) {
 			inputs.add(new TransactionInput(UTXO.id));
-			if (total > value)
-				break;
 		}
 
 		Transaction newTransaction = new Transaction(publicKey, _recipient, value, inputs);
 		newTransaction.generateSignature(privateKey);
 
-		// Remove the used UTXOs from the wallet's UTXOs
-		for (TransactionInput input : inputs) {
-			UTXOs.remove(input.transactionOutputId);
+		return newTransaction;
+	}
+
+	/**
+	 * Creates batch transactions that pay every payout. The wallet's UTXOs are
+	 * read and sorted once, each transaction pays up to MAX_PAYOUTS recipients from
+	 * its own inputs, and the transactions are signed in parallel.
+	 * 
+	 * @param payouts The recipients and the amounts to pay them
+	 * @return The signed transactions, or null if there are insufficient funds
+	 */
+	public List<Transaction> sendBatch(List<Payout> payouts) {
+		for (Payout payout : payouts) {
+			if (payout.value <= 0)
+				throw new IllegalArgumentException("Payouts must be positive");
+		}
+
+		CoinSelector selector = new CoinSelector(MiniChain.UTXOs.outputsOf(keyHandle));
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		for (int from = 0; from < payouts.size(); from += MAX_PAYOUTS) {
+			ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+			Transaction transaction = new Transaction(publicKey,
+					payouts.subList(from, Math.min(from + MAX_PAYOUTS, payouts.size())), inputs);
+
+			// The change of one transaction cannot pay for the next, so the funds can
+			// run out even if the balance covers the total.
+			List<TransactionOutput> coins = selector.select(transaction.value);
+			if (coins == null) {
+				Metrics.rejectedFunds.increment();
+				if (MiniChain.logging)
+					System.out.println("#Not Enough funds to send batch. Transactions Discarded.");
+				return null;
+			}
+			for (TransactionOutput UTXO : coins) {
+				inputs.add(new TransactionInput(UTXO.id));
+			}
+			transactions.add(transaction);
 		}
 
-		return newTransaction;
+		transactions.parallelStream().forEach(transaction -> transaction.generateSignature(privateKey));
+		return transactions;
 	}
 }
\ No newline at end of file
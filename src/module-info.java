@@ -1,5 +1,6 @@
 module minichain {
 	requires java.sql;
+	requires jdk.httpserver;
 	requires gson;
 	requires org.bouncycastle.provider;
 
@@ -0,0 +1,118 @@
+package minichain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The AddressIndex when blocks leave the main chain: their entries are cut
+ * off the histories, and cursors read before still point to the same height.
+ */
+public class AddressIndexTest {
+
+	private final TestChain chain = new TestChain();
+	private final Wallet alice = new Wallet();
+	private final Wallet bob = new Wallet();
+	private final UtxoSet genesisUtxos = chain.utxos().copy();
+	private final AddressIndex index = new AddressIndex();
+
+	@Test
+	public void reorganizationTruncatesTheHistories() {
+		index.add(chain.genesis, 0);
+		chain.tree.addListener(index);
+
+		Block a1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(10), chain.owner, alice);
+		chain.tree.add(a1);
+		assertEquals(1, index.count(alice.publicKey));
+		assertEquals(2, index.count(chain.owner.publicKey));
+
+		Block b1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(20), chain.owner, bob);
+		chain.tree.add(b1);
+		UtxoSet afterB1 = genesisUtxos.copy();
+		afterB1.apply(b1);
+		assertEquals(BlockTree.Result.REORGANIZED,
+				chain.tree.add(chain.block(b1, afterB1, Amount.coins(5), bob, alice)));
+
+		List<AddressIndex.Entry> history = index.history(alice.publicKey, 0).toList();
+		assertEquals(1, history.size());
+		assertEquals(2, history.get(0).height);
+		assertEquals(AddressIndex.Direction.RECEIVED, history.get(0).direction);
+		assertEquals(Amount.coins(5), history.get(0).amount);
+
+		history = index.history(chain.owner.publicKey, 0).toList();
+		assertEquals(2, history.size());
+		assertEquals("0", history.get(0).getTransactionId());
+		assertEquals(b1.transactions.get(0).transactionId, history.get(1).getTransactionId());
+		assertEquals(Amount.coins(20), history.get(1).amount);
+		assertEquals(5, index.size());
+	}
+
+	@Test
+	public void cursorSurvivesTheTruncation() {
+		index.add(chain.genesis, 0);
+		Block a1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(10), chain.owner, alice, chain.owner,
+				alice);
+		index.add(a1, 1);
+
+		AddressIndex.Page page = index.page(alice.publicKey, 0, 1);
+		assertEquals(1, page.entries.size());
+		assertTrue(page.more);
+		assertEquals(AddressIndex.cursor(1, 1), page.next);
+
+		// The block is replaced by one with a single entry of alice
+		index.remove(a1, 1);
+		assertEquals(0, index.count(alice.publicKey));
+		Block b1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(20), chain.owner, alice);
+		index.add(b1, 1);
+
+		page = index.page(alice.publicKey, page.next, 10);
+		assertTrue(page.entries.isEmpty());
+		assertFalse(page.more);
+
+		UtxoSet afterB1 = genesisUtxos.copy();
+		afterB1.apply(b1);
+		Block b2 = chain.block(b1, afterB1, Amount.coins(3), alice, bob);
+		index.add(b2, 2);
+
+		// The next page starts after the entries of height 1, not within those of height 2
+		page = index.page(alice.publicKey, page.next, 10);
+		assertEquals(1, page.entries.size());
+		assertEquals(2, page.entries.get(0).height);
+		assertEquals(AddressIndex.cursor(2, 1), page.next);
+	}
+
+	@Test
+	public void textIdOfAReplacedBlock() {
+		index.add(chain.genesis, 0);
+		Block first = textBlock("first");
+		index.add(first, 1);
+		index.remove(first, 1);
+		index.add(textBlock("second"), 1);
+
+		List<AddressIndex.Entry> history = index.history(alice.publicKey, 0).toList();
+		assertEquals(1, history.size());
+		assertEquals("second", history.get(0).getTransactionId());
+		assertEquals("0", index.history(chain.owner.publicKey, 0).findFirst().get().getTransactionId());
+	}
+
+	@Test
+	public void negativeCursorIsRejected() {
+		assertThrows(IllegalArgumentException.class, () -> index.history(alice.publicKey, -1));
+		assertThrows(IllegalArgumentException.class, () -> AddressIndex.cursor(-1, 0));
+	}
+
+	// A block with a coinbase-like transaction to alice whose id is not a hash.
+	private Block textBlock(String id) {
+		Transaction transaction = new Transaction(alice.publicKey, alice.publicKey, Amount.coins(1), null);
+		transaction.transactionId = id;
+		transaction.outputs.add(new TransactionOutput(alice.publicKey, Amount.coins(1), id));
+		Block block = new Block(chain.genesis.hash, TestChain.NO_WORK);
+		block.transactions.add(transaction);
+		return block;
+	}
+}
@@ -0,0 +1,280 @@
+package minichain;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round trips of blocks and transactions through every version of the
+ * BlockCodec. Version 4 is what the codec writes. Records of versions 2 and 3
+ * are made from version 4 records by taking out what those versions lacked.
+ */
+public class BlockCodecTest {
+
+	private final TestChain chain = new TestChain();
+	private final Wallet alice = new Wallet();
+	private final Wallet bob = new Wallet();
+
+	@Test
+	public void genesisBlockRoundTrip() {
+		Block decoded = decode(encode(chain.genesis));
+
+		assertHeader(chain.genesis, decoded);
+		Transaction transaction = decoded.transactions.get(0);
+		assertNull(transaction.inputs);
+		assertNull(transaction.payouts);
+		assertTransaction(chain.genesisTransaction, transaction);
+	}
+
+	@Test
+	public void blockRoundTripSharesKeys() {
+		Block block = chain.block(chain.genesis, chain.utxos(), Amount.coins(10), chain.owner, alice, chain.owner,
+				bob);
+		Block decoded = decode(encode(block));
+
+		assertHeader(block, decoded);
+		assertEquals(2, decoded.transactions.size());
+		for (int t = 0; t < 2; t++) {
+			assertTransaction(block.transactions.get(t), decoded.transactions.get(t));
+		}
+		// The sender of both transfers is written once and decoded into one key
+		assertSame(decoded.transactions.get(0).sender, decoded.transactions.get(1).sender);
+		assertEquals(decoded.hash, decoded.calculateHash(TestChain.NO_WORK));
+	}
+
+	@Test
+	public void batchTransactionRoundTrip() {
+		Transaction batch = batch();
+		Transaction decoded = BlockCodec.decodeTransaction(copy(new BlockCodec().encode(batch)));
+
+		assertTransaction(batch, decoded);
+		assertEquals(batch.payouts.size(), decoded.payouts.size());
+		for (int p = 0; p < batch.payouts.size(); p++) {
+			assertEquals(batch.payouts.get(p).recipient, decoded.payouts.get(p).recipient);
+			assertEquals(batch.payouts.get(p).value, decoded.payouts.get(p).value);
+		}
+		assertTrue(decoded.verifySignature());
+	}
+
+	@Test
+	public void keysAreCompressedPoints() {
+		Transaction transfer = transfer();
+		byte[] encoded = copy(new BlockCodec().encode(transfer)).array();
+
+		assertEquals(25, CryptoService.compressKey(alice.publicKey).length);
+		assertEquals(alice.publicKey, CryptoService.decompressKey(CryptoService.compressKey(alice.publicKey)));
+		// version, two keys of a length and 25 bytes each, then the transaction
+		assertEquals(2, encoded[1]);
+		assertEquals(26, encoded[2]);
+		assertArrayEquals(CryptoService.compressKey(alice.publicKey), Arrays.copyOfRange(encoded, 3, 28));
+	}
+
+	@Test
+	public void version3BlockReadsWithoutTarget() {
+		Block block = chain.block(chain.genesis, chain.utxos(), Amount.coins(10), chain.owner, alice);
+		byte[] v4 = encode(block).array();
+
+		// The target follows the three hashes and the timestamp
+		int target = 1 + 3 * 33 + 8;
+		byte[] v3 = new byte[v4.length - 4];
+		System.arraycopy(v4, 0, v3, 0, target);
+		System.arraycopy(v4, target + 4, v3, target, v4.length - target - 4);
+		v3[0] = 3;
+
+		Block decoded = decode(ByteBuffer.wrap(v3));
+		assertEquals(0, decoded.target);
+		assertEquals(block.hash, decoded.hash);
+		assertEquals(block.getNonce(), decoded.getNonce());
+		assertTransaction(block.transactions.get(0), decoded.transactions.get(0));
+	}
+
+	@Test
+	public void version3TransactionReadsPayouts() {
+		Transaction batch = batch();
+		byte[] encoded = copy(new BlockCodec().encode(batch)).array();
+		encoded[0] = 3;
+
+		Transaction decoded = BlockCodec.decodeTransaction(ByteBuffer.wrap(encoded));
+		assertTransaction(batch, decoded);
+		assertEquals(batch.payouts.size(), decoded.payouts.size());
+	}
+
+	@Test
+	public void version2TransactionHasNoPayouts() {
+		Transaction transfer = transfer();
+		byte[] v4 = copy(new BlockCodec().encode(transfer)).array();
+
+		// The payouts of a plain transfer are the last byte, a count of 0 for null
+		assertEquals(0, v4[v4.length - 1]);
+		byte[] v2 = Arrays.copyOf(v4, v4.length - 1);
+		v2[0] = 2;
+
+		ByteBuffer in = ByteBuffer.wrap(v2);
+		Transaction decoded = BlockCodec.decodeTransaction(in);
+		assertEquals(0, in.remaining());
+		assertNull(decoded.payouts);
+		assertTransaction(transfer, decoded);
+	}
+
+	@Test
+	public void version1IsRejected() {
+		byte[] encoded = copy(new BlockCodec().encode(transfer())).array();
+		encoded[0] = 1;
+
+		assertThrows(IllegalArgumentException.class, () -> BlockCodec.decodeTransaction(ByteBuffer.wrap(encoded)));
+	}
+
+	@Test
+	public void newerVersionIsRejected() {
+		byte[] encoded = copy(new BlockCodec().encode(transfer())).array();
+		encoded[0] = BlockCodec.VERSION + 1;
+
+		assertThrows(IllegalArgumentException.class, () -> BlockCodec.decodeTransaction(ByteBuffer.wrap(encoded)));
+	}
+
+	@Test
+	public void lengthBeyondTheRecordIsRejected() {
+		// A text id whose length claims 2 GB
+		byte[] encoded = { BlockCodec.VERSION, 0, 2, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 };
+
+		assertThrows(IllegalArgumentException.class, () -> BlockCodec.decodeTransaction(ByteBuffer.wrap(encoded)));
+	}
+
+	@Test
+	public void negativeCountIsRejected() {
+		byte[] encoded = { BlockCodec.VERSION, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f };
+
+		assertThrows(IllegalArgumentException.class, () -> BlockCodec.decodeTransaction(ByteBuffer.wrap(encoded)));
+	}
+
+	@Test
+	public void transactionCountBeyondTheBlockIsRejected() {
+		byte[] v4 = encode(chain.genesis).array();
+
+		// The header, an empty key dictionary and then a count of 2^28 transactions
+		int keys = 1 + 3 * 33 + 16;
+		byte[] encoded = Arrays.copyOf(v4, keys + 5);
+		encoded[keys] = 0;
+		encoded[keys + 1] = (byte) 0x80;
+		encoded[keys + 2] = (byte) 0x80;
+		encoded[keys + 3] = (byte) 0x80;
+		encoded[keys + 4] = 0x01;
+
+		assertThrows(IllegalArgumentException.class, () -> BlockCodec.decode(ByteBuffer.wrap(encoded)));
+	}
+
+	@Test
+	public void unknownKeyReferenceIsRejected() {
+		byte[] encoded = copy(new BlockCodec().encode(transfer())).array();
+		// The sender refers to the first of the two keys; make it the third
+		int sender = 2 + 2 * 26 + 33;
+		assertEquals(1, encoded[sender]);
+		encoded[sender] = 3;
+
+		assertThrows(IllegalArgumentException.class, () -> BlockCodec.decodeTransaction(ByteBuffer.wrap(encoded)));
+	}
+
+	@Test
+	public void outputsRoundTrip() {
+		Transaction batch = batch();
+		List<TransactionOutput> decoded = BlockCodec
+				.decodeOutputs(copy(new BlockCodec().encodeOutputs(batch.outputs)));
+
+		assertEquals(batch.outputs.size(), decoded.size());
+		for (int o = 0; o < decoded.size(); o++) {
+			assertOutput(batch.outputs.get(o), decoded.get(o));
+		}
+	}
+
+	// A signed transfer from alice to bob with an input and two outputs.
+	private Transaction transfer() {
+		ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+		inputs.add(new TransactionInput(StringUtil.applySha256("input")));
+		Transaction transfer = new Transaction(alice.publicKey, bob.publicKey, Amount.coins(3), inputs);
+		transfer.generateSignature(alice.privateKey);
+		transfer.transactionId = StringUtil.applySha256("transfer");
+		transfer.outputs.add(new TransactionOutput(bob.publicKey, Amount.coins(3), transfer.transactionId));
+		transfer.outputs.add(new TransactionOutput(alice.publicKey, Amount.coins(2), transfer.transactionId));
+		return transfer;
+	}
+
+	// A signed batch from alice paying bob twice and the chain owner once.
+	private Transaction batch() {
+		List<Payout> payouts = List.of(new Payout(bob.publicKey, Amount.coins(1)),
+				new Payout(chain.owner.publicKey, Amount.coins(2)), new Payout(bob.publicKey, Amount.coins(1)));
+		ArrayList<TransactionInput> inputs = new ArrayList<TransactionInput>();
+		inputs.add(new TransactionInput(StringUtil.applySha256("first")));
+		inputs.add(new TransactionInput(StringUtil.applySha256("second")));
+		Transaction batch = new Transaction(alice.publicKey, payouts, inputs);
+		batch.generateSignature(alice.privateKey);
+		batch.transactionId = StringUtil.applySha256("batch");
+		for (int p = 0; p < payouts.size(); p++) {
+			batch.outputs.add(new TransactionOutput(payouts.get(p).recipient, payouts.get(p).value,
+					batch.transactionId, p));
+		}
+		return batch;
+	}
+
+	private static ByteBuffer encode(Block block) {
+		return copy(new BlockCodec().encode(block));
+	}
+
+	private static Block decode(ByteBuffer in) {
+		Block block = BlockCodec.decode(in);
+		assertEquals(0, in.remaining());
+		return block;
+	}
+
+	// Copies the codec's own buffer, which the next call would overwrite.
+	private static ByteBuffer copy(ByteBuffer encoded) {
+		byte[] bytes = new byte[encoded.remaining()];
+		encoded.get(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private static void assertHeader(Block expected, Block actual) {
+		assertEquals(expected.hash, actual.hash);
+		assertEquals(expected.previousHash, actual.previousHash);
+		assertEquals(expected.merkleRoot, actual.merkleRoot);
+		assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+		assertEquals(expected.target, actual.target);
+		assertEquals(expected.getNonce(), actual.getNonce());
+	}
+
+	private static void assertTransaction(Transaction expected, Transaction actual) {
+		assertEquals(expected.transactionId, actual.transactionId);
+		assertEquals(expected.sender, actual.sender);
+		assertEquals(expected.recipient, actual.recipient);
+		assertEquals(expected.value, actual.value);
+		assertArrayEquals(expected.signature, actual.signature);
+		if (expected.inputs == null) {
+			assertNull(actual.inputs);
+		} else {
+			assertEquals(expected.inputs.size(), actual.inputs.size());
+			for (int i = 0; i < expected.inputs.size(); i++) {
+				assertEquals(expected.inputs.get(i).transactionOutputId, actual.inputs.get(i).transactionOutputId);
+			}
+		}
+		assertEquals(expected.outputs.size(), actual.outputs.size());
+		for (int o = 0; o < expected.outputs.size(); o++) {
+			assertOutput(expected.outputs.get(o), actual.outputs.get(o));
+		}
+	}
+
+	private static void assertOutput(TransactionOutput expected, TransactionOutput actual) {
+		assertEquals(expected.id, actual.id);
+		assertEquals(expected.reciepient, actual.reciepient);
+		assertEquals(expected.value, actual.value);
+		assertEquals(expected.parentTransactionId, actual.parentTransactionId);
+	}
+}
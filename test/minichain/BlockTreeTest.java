@@ -0,0 +1,161 @@
+package minichain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reorganizations of the BlockTree, and the undo records of the
+ * IncrementalValidator that disconnect the main chain back to the fork.
+ */
+public class BlockTreeTest {
+
+	private final TestChain chain = new TestChain();
+	private final Wallet alice = new Wallet();
+	private final Wallet bob = new Wallet();
+	private final UtxoSet genesisUtxos = chain.utxos().copy();
+
+	@Test
+	public void branchWithMoreWorkBecomesTheMainChain() {
+		Block a1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(10), chain.owner, alice);
+		assertEquals(BlockTree.Result.EXTENDED, chain.tree.add(a1));
+		UtxoSet afterA1 = chain.utxos().copy();
+
+		Block b1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(20), chain.owner, bob);
+		assertEquals(BlockTree.Result.SIDE_BRANCH, chain.tree.add(b1));
+		assertSame(a1, chain.tree.getTip());
+		assertEquals(Amount.coins(10), chain.utxos().balanceOf(alice.publicKey));
+
+		Block b2 = chain.block(b1, after(genesisUtxos, b1), Amount.coins(5), bob, alice);
+		assertEquals(BlockTree.Result.REORGANIZED, chain.tree.add(b2));
+		assertEquals(List.of(chain.genesis, b1, b2), chain.chain);
+		assertEquals(Amount.coins(80), chain.utxos().balanceOf(chain.owner.publicKey));
+		assertEquals(Amount.coins(5), chain.utxos().balanceOf(alice.publicKey));
+		assertEquals(Amount.coins(15), chain.utxos().balanceOf(bob.publicKey));
+
+		// The old branch takes the lead again two blocks later
+		Block a2 = chain.block(a1, afterA1, Amount.coins(1), alice, bob);
+		assertEquals(BlockTree.Result.SIDE_BRANCH, chain.tree.add(a2));
+		Block a3 = chain.block(a2, after(afterA1, a2), Amount.coins(1), alice, bob);
+		assertEquals(BlockTree.Result.REORGANIZED, chain.tree.add(a3));
+		assertEquals(List.of(chain.genesis, a1, a2, a3), chain.chain);
+		assertEquals(Amount.coins(90), chain.utxos().balanceOf(chain.owner.publicKey));
+		assertEquals(Amount.coins(8), chain.utxos().balanceOf(alice.publicKey));
+		assertEquals(Amount.coins(2), chain.utxos().balanceOf(bob.publicKey));
+
+		assertTrue(chain.validator.revalidate(chain.chain).isValid());
+	}
+
+	@Test
+	public void invalidBranchRestoresTheMainChain() {
+		Block a1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(10), chain.owner, alice);
+		chain.tree.add(a1);
+		TreeMap<String, Long> before = outputs(chain.utxos());
+
+		Block b1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(20), chain.owner, bob);
+		chain.tree.add(b1);
+		// Spends the genesis output that b1 already spent
+		Block b2 = chain.block(b1, genesisUtxos, Amount.coins(30), chain.owner, alice);
+		assertEquals(BlockTree.Result.INVALID, chain.tree.add(b2));
+		assertNotNull(chain.tree.getLastFailure());
+
+		assertEquals(List.of(chain.genesis, a1), chain.chain);
+		assertEquals(before, outputs(chain.utxos()));
+		assertEquals(Amount.coins(10), chain.utxos().balanceOf(alice.publicKey));
+	}
+
+	@Test
+	public void forgedBodyDoesNotBlockTheRealBlock() {
+		Block a1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(10), chain.owner, alice);
+		Block other = chain.block(chain.genesis, genesisUtxos, Amount.coins(20), chain.owner, bob);
+
+		assertEquals(BlockTree.Result.INVALID, chain.tree.add(forged(a1, other)));
+		assertEquals(BlockTree.Result.EXTENDED, chain.tree.add(a1));
+		assertSame(a1, chain.tree.getTip());
+	}
+
+	@Test
+	public void forgedBodyOnABranchDoesNotBlockTheRealBlock() {
+		Block a1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(10), chain.owner, alice);
+		chain.tree.add(a1);
+		Block b1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(20), chain.owner, bob);
+		Block b2 = chain.block(b1, after(genesisUtxos, b1), Amount.coins(5), bob, alice);
+
+		assertEquals(BlockTree.Result.SIDE_BRANCH, chain.tree.add(forged(b1, a1)));
+		assertEquals(BlockTree.Result.INVALID, chain.tree.add(b2));
+		assertSame(a1, chain.tree.getTip());
+
+		// b2 waits for the real b1, and follows it in
+		assertEquals(BlockTree.Result.SIDE_BRANCH, chain.tree.add(b1));
+		assertEquals(List.of(chain.genesis, b1, b2), chain.chain);
+	}
+
+	@Test
+	public void invalidBlockIsKept() {
+		Block a1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(10), chain.owner, alice);
+		chain.tree.add(a1);
+		// Spends the genesis output that a1 already spent
+		Block a2 = chain.block(a1, genesisUtxos, Amount.coins(30), chain.owner, bob);
+
+		assertEquals(BlockTree.Result.INVALID, chain.tree.add(a2));
+		assertTrue(chain.tree.contains(a2.hash));
+		assertEquals(BlockTree.Result.DUPLICATE, chain.tree.add(a2));
+	}
+
+	@Test
+	public void disconnectRestoresTheOutputs() {
+		TreeMap<String, Long> atGenesis = outputs(chain.utxos());
+		Block a1 = chain.block(chain.genesis, genesisUtxos, Amount.coins(10), chain.owner, alice);
+		chain.tree.add(a1);
+		TreeMap<String, Long> atA1 = outputs(chain.utxos());
+		Block a2 = chain.block(a1, chain.utxos(), Amount.coins(4), alice, bob);
+		chain.tree.add(a2);
+		assertEquals(Amount.coins(4), chain.utxos().balanceOf(bob.publicKey));
+
+		assertSame(a2, chain.validator.disconnect());
+		assertEquals(1, chain.validator.getHeight());
+		assertEquals(atA1, outputs(chain.utxos()));
+		assertEquals(Amount.coins(10), chain.utxos().balanceOf(alice.publicKey));
+		assertEquals(0, chain.utxos().balanceOf(bob.publicKey));
+
+		assertSame(a1, chain.validator.disconnect());
+		assertEquals(atGenesis, outputs(chain.utxos()));
+		assertEquals(Amount.coins(100), chain.utxos().balanceOf(chain.owner.publicKey));
+		assertThrows(IllegalStateException.class, () -> chain.validator.disconnect());
+
+		// The blocks connect again on the restored outputs
+		assertTrue(chain.validator.validate(a1).isValid());
+		assertTrue(chain.validator.validate(a2).isValid());
+		assertEquals(atA1.size() + 1, chain.utxos().size());
+	}
+
+	// Returns the unspent outputs after a block on top of the given ones.
+	private static UtxoSet after(UtxoSet utxos, Block block) {
+		UtxoSet copy = utxos.copy();
+		copy.apply(block);
+		return copy;
+	}
+
+	// A block with the header of one block and the transactions of another.
+	private static Block forged(Block header, Block body) {
+		Block forged = new Block(header.hash, header.previousHash, header.merkleRoot, header.getTimeStamp(),
+				header.target, header.getNonce());
+		forged.transactions.addAll(body.transactions);
+		return forged;
+	}
+
+	private static TreeMap<String, Long> outputs(UtxoSet utxos) {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for (TransactionOutput output : utxos.outputs()) {
+			values.put(output.id, output.value);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,108 @@
+package minichain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Merkle roots and inclusion proofs, for trees with odd numbers of leaves
+ * whose last node is hashed with itself.
+ */
+public class MerkleTreeTest {
+
+	@Test
+	public void appendingGivesTheBuiltRoot() {
+		for (int count = 1; count <= 17; count++) {
+			List<Transaction> transactions = transactions(count);
+			MerkleTree appended = new MerkleTree();
+			for (Transaction transaction : transactions) {
+				appended.append(transaction.transactionId);
+			}
+			assertEquals(MerkleTree.build(transactions).getRootHex(), appended.getRootHex());
+			assertEquals(count, appended.size());
+		}
+	}
+
+	@Test
+	public void singleLeafIsTheRoot() {
+		String id = StringUtil.applySha256("only");
+		MerkleTree tree = new MerkleTree();
+		tree.append(id);
+
+		assertEquals(id, tree.getRootHex());
+		assertTrue(tree.prove(0).verify(id, tree.getRootHex()));
+	}
+
+	@Test
+	public void everyLeafIsProven() {
+		for (int count = 1; count <= 17; count++) {
+			List<Transaction> transactions = transactions(count);
+			MerkleTree tree = MerkleTree.build(transactions);
+			String root = tree.getRootHex();
+			for (int i = 0; i < count; i++) {
+				MerkleTree.Proof proof = tree.prove(i);
+				assertEquals(i, proof.getIndex());
+				assertTrue(proof.verify(transactions.get(i).transactionId, root), count + " leaves, leaf " + i);
+			}
+		}
+	}
+
+	@Test
+	public void proofOfAnotherLeafFails() {
+		List<Transaction> transactions = transactions(7);
+		MerkleTree tree = MerkleTree.build(transactions);
+		String root = tree.getRootHex();
+
+		assertFalse(tree.prove(2).verify(transactions.get(3).transactionId, root));
+		assertFalse(tree.prove(6).verify(StringUtil.applySha256("missing"), root));
+		assertFalse(tree.prove(6).verify(transactions.get(6).transactionId, MerkleTree.build(transactions(6))
+				.getRootHex()));
+	}
+
+	@Test
+	public void proofRoundTripsThroughBytes() {
+		List<Transaction> transactions = transactions(11);
+		MerkleTree tree = MerkleTree.build(transactions);
+		MerkleTree.Proof proof = MerkleTree.Proof.fromBytes(tree.prove(10).toBytes());
+
+		assertEquals(10, proof.getIndex());
+		assertTrue(proof.verify(transactions.get(10).transactionId, tree.getRootHex()));
+	}
+
+	@Test
+	public void leafOutsideTheTreeCannotBeProven() {
+		MerkleTree tree = MerkleTree.build(transactions(3));
+
+		assertThrows(IndexOutOfBoundsException.class, () -> tree.prove(3));
+		assertThrows(IndexOutOfBoundsException.class, () -> tree.prove(-1));
+	}
+
+	@Test
+	public void blockRootIsTheTreeRoot() {
+		TestChain chain = new TestChain();
+		Wallet other = new Wallet();
+		Block block = chain.block(chain.genesis, chain.utxos(), Amount.coins(1), chain.owner, other, chain.owner,
+				other, chain.owner, other);
+
+		assertEquals(MerkleTree.build(block.transactions).getRootHex(), block.merkleRoot);
+		assertTrue(block.getMerkleTree().prove(2).verify(block.transactions.get(2).transactionId,
+				block.merkleRoot));
+	}
+
+	// Transactions that only have an id, which is all the tree reads.
+	private static List<Transaction> transactions(int count) {
+		List<Transaction> transactions = new ArrayList<Transaction>(count);
+		for (int i = 0; i < count; i++) {
+			Transaction transaction = new Transaction(null, null, 0, null);
+			transaction.transactionId = StringUtil.applySha256("transaction" + i);
+			transactions.add(transaction);
+		}
+		return transactions;
+	}
+}
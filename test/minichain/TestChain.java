@@ -0,0 +1,73 @@
+package minichain;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds small chains for the tests: a genesis block that pays 100 coins to a
+ * wallet, and blocks on top of it mined without work.
+ */
+class TestChain {
+
+	static final ProofOfWork NO_WORK = ProofOfWork.fixed(0);
+
+	static {
+		Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+		MiniChain.logging = false;
+	}
+
+	final Wallet owner = new Wallet();
+	final Transaction genesisTransaction;
+	final Block genesis;
+	final IncrementalValidator validator;
+	final List<Block> chain = new ArrayList<Block>();
+	final BlockTree tree;
+
+	TestChain() {
+		genesisTransaction = new Transaction(owner.publicKey, owner.publicKey, Amount.coins(100), null);
+		genesisTransaction.generateSignature(owner.privateKey);
+		genesisTransaction.transactionId = "0";
+		genesisTransaction.outputs.add(new TransactionOutput(owner.publicKey, Amount.coins(100), "0"));
+		genesis = new Block("0", NO_WORK);
+		genesis.addTransaction(genesisTransaction, null);
+		genesis.mineBlock(NO_WORK);
+
+		validator = new IncrementalValidator(genesis, genesisTransaction.outputs, NO_WORK, 1000, false);
+		tree = new BlockTree(validator, chain);
+	}
+
+	// Creates a wallet, once the provider its keys need is installed.
+	static Wallet wallet() {
+		return new Wallet();
+	}
+
+	// Returns the unspent outputs at the tip of the main chain.
+	UtxoSet utxos() {
+		return validator.getUtxos();
+	}
+
+	/**
+	 * Mines a block on the given parent with transfers built against the
+	 * unspent outputs at that parent.
+	 *
+	 * @param parent    The parent block
+	 * @param utxos     The unspent outputs after the parent, not changed
+	 * @param transfers Pairs of a paying wallet and a recipient wallet, each
+	 *                  paying the amount
+	 * @param amount    The amount of every transfer
+	 * @return The mined block
+	 */
+	Block block(Block parent, UtxoSet utxos, long amount, Wallet... transfers) {
+		Block block = new Block(parent.hash, NO_WORK);
+		block.target = NO_WORK.getInitialTarget();
+		UtxoSet pending = utxos.copy();
+		for (int i = 0; i + 1 < transfers.length; i += 2) {
+			Transaction transaction = transfers[i].sendFunds(transfers[i + 1].publicKey, amount, pending);
+			if (!block.addTransaction(transaction, pending))
+				throw new IllegalStateException("The transfer " + i / 2 + " was rejected");
+		}
+		block.mineBlock(NO_WORK);
+		return block;
+	}
+}
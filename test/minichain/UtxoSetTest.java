@@ -0,0 +1,181 @@
+package minichain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The open-addressing table of the UtxoSet: removing from the middle of a probe
+ * run shifts the entries after it back, and a copy does not share entries or
+ * owner lists with the set it was made from.
+ */
+public class UtxoSetTest {
+
+	private final PublicKey alice = TestChain.wallet().publicKey;
+	private final PublicKey bob = TestChain.wallet().publicKey;
+
+	@Test
+	public void removeFromTheMiddleOfAProbeRun() {
+		// The ids share their first 8 bytes, so they all land in one slot
+		UtxoSet utxos = new UtxoSet();
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			String id = colliding(i);
+			ids.add(id);
+			utxos.put(new TransactionOutput(id, alice, Amount.coins(i + 1), "parent"));
+		}
+
+		assertNotNull(utxos.remove(ids.get(3)));
+		assertNotNull(utxos.remove(ids.get(0)));
+		assertNull(utxos.remove(ids.get(3)));
+
+		assertEquals(8, utxos.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i != 0 && i != 3, utxos.contains(ids.get(i)), "output " + i);
+		}
+		assertEquals(Amount.coins(55 - 1 - 4), utxos.balanceOf(alice));
+		assertEquals(8, utxos.outputsOf(alice).size());
+
+		// A removed id can be added again at the end of the run
+		utxos.put(new TransactionOutput(ids.get(3), bob, Amount.coins(4), "parent"));
+		assertEquals(bob, utxos.get(ids.get(3)).reciepient);
+		assertEquals(9, utxos.size());
+	}
+
+	@Test
+	public void behavesLikeAMap() {
+		Random random = new Random(21);
+		PublicKey[] owners = { alice, bob, TestChain.wallet().publicKey };
+		UtxoSet utxos = new UtxoSet();
+		Map<String, TransactionOutput> expected = new HashMap<String, TransactionOutput>();
+		List<String> ids = new ArrayList<String>();
+
+		for (int step = 0; step < 20_000; step++) {
+			if (ids.isEmpty() || random.nextInt(3) != 0) {
+				// Every fourth id collides with others, to make long probe runs
+				String id = random.nextInt(4) == 0 ? colliding(random.nextInt(1 << 20))
+						: StringUtil.applySha256("output" + step);
+				TransactionOutput output = new TransactionOutput(id, owners[random.nextInt(owners.length)],
+						1 + random.nextInt(1000), "parent" + step / 3);
+				if (expected.put(id, output) == null)
+					ids.add(id);
+				utxos.put(output);
+			} else {
+				String id = ids.remove(random.nextInt(ids.size()));
+				assertEquals(expected.remove(id).value, utxos.remove(id).value);
+			}
+		}
+
+		assertEquals(expected.size(), utxos.size());
+		long[] balances = new long[owners.length];
+		for (TransactionOutput output : expected.values()) {
+			TransactionOutput found = utxos.get(output.id);
+			assertNotNull(found, output.id);
+			assertEquals(output.value, found.value);
+			assertEquals(output.reciepient, found.reciepient);
+			assertEquals(output.parentTransactionId, found.parentTransactionId);
+			for (int o = 0; o < owners.length; o++) {
+				if (owners[o].equals(output.reciepient))
+					balances[o] += output.value;
+			}
+		}
+		for (int o = 0; o < owners.length; o++) {
+			assertEquals(balances[o], utxos.balanceOf(owners[o]));
+		}
+		assertEquals(expected.size(), utxos.outputs().size());
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		UtxoSet utxos = new UtxoSet();
+		for (int i = 0; i < 100; i++) {
+			utxos.put(new TransactionOutput(StringUtil.applySha256("output" + i), i % 2 == 0 ? alice : bob,
+					Amount.coins(1), "parent"));
+		}
+		UtxoSet copy = utxos.copy();
+
+		assertEquals(utxos.size(), copy.size());
+		assertEquals(utxos.owners(), copy.owners());
+		assertEquals(Amount.coins(50), copy.balanceOf(alice));
+		assertEquals(50, copy.outputsOf(bob).size());
+
+		String spent = StringUtil.applySha256("output0");
+		copy.remove(spent);
+		copy.put(new TransactionOutput(StringUtil.applySha256("new"), bob, Amount.coins(5), "other"));
+
+		assertTrue(utxos.contains(spent));
+		assertFalse(copy.contains(spent));
+		assertFalse(utxos.contains(StringUtil.applySha256("new")));
+		assertEquals(Amount.coins(50), utxos.balanceOf(alice));
+		assertEquals(Amount.coins(50), utxos.balanceOf(bob));
+		assertEquals(Amount.coins(49), copy.balanceOf(alice));
+		assertEquals(Amount.coins(55), copy.balanceOf(bob));
+		assertEquals(50, utxos.outputsOf(bob).size());
+		assertEquals(51, copy.outputsOf(bob).size());
+	}
+
+	@Test
+	public void spentOwnerIsForgotten() {
+		UtxoSet utxos = new UtxoSet();
+		String id = StringUtil.applySha256("only");
+		utxos.put(new TransactionOutput(id, alice, Amount.coins(1), "parent"));
+		assertEquals(1, utxos.owners());
+
+		utxos.remove(id);
+		assertEquals(0, utxos.owners());
+		assertEquals(0, utxos.balanceOf(alice));
+		assertTrue(utxos.outputsOf(alice).isEmpty());
+	}
+
+	@Test
+	public void overflowLeavesTheSetUnchanged() {
+		UtxoSet utxos = new UtxoSet();
+		String first = StringUtil.applySha256("first");
+		utxos.put(new TransactionOutput(first, alice, Long.MAX_VALUE - 1, "parent"));
+		String second = StringUtil.applySha256("second");
+
+		assertThrows(ArithmeticException.class,
+				() -> utxos.put(new TransactionOutput(second, alice, Amount.coins(1), "parent")));
+		assertFalse(utxos.contains(second));
+		assertEquals(1, utxos.size());
+		assertEquals(Long.MAX_VALUE - 1, utxos.balanceOf(alice));
+		assertEquals(1, utxos.outputsOf(alice).size());
+
+		// Replacing the output of the same owner is not an overflow
+		utxos.put(new TransactionOutput(first, alice, Long.MAX_VALUE, "parent"));
+		assertEquals(Long.MAX_VALUE, utxos.balanceOf(alice));
+		assertEquals(1, utxos.size());
+	}
+
+	@Test
+	public void parentIdsAreKept() {
+		UtxoSet utxos = new UtxoSet();
+		String parent = StringUtil.applySha256("parent");
+		String[] parents = { parent, parent, "0", null, parent };
+		for (int i = 0; i < parents.length; i++) {
+			utxos.put(new TransactionOutput(StringUtil.applySha256("output" + i), alice, Amount.coins(1), parents[i]));
+		}
+
+		for (int i = 0; i < parents.length; i++) {
+			assertEquals(parents[i], utxos.get(StringUtil.applySha256("output" + i)).parentTransactionId);
+		}
+		assertEquals(parent, utxos.copy().get(StringUtil.applySha256("output0")).parentTransactionId);
+	}
+
+	// An id whose first 8 bytes are those of every other colliding id.
+	private static String colliding(int i) {
+		return "00000000000000a1" + StringUtil.applySha256("colliding" + i).substring(16);
+	}
+}